@@ -0,0 +1,298 @@
+package com.hmdp.loadtest;
+
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IStockReconcileService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.StockShards;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+import redis.embedded.RedisServer;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static org.junit.Assert.*;
+
+/**
+ * 秒杀压测
+ * 启动内嵌的Redis、H2内存数据库（MySQL兼容模式）和整个应用，模拟大量用户同时抢购一张秒杀券：
+ * 1. 新增一张秒杀券，为每个用户在Redis中写入登录token
+ * 2. concurrency个线程并发请求POST /voucher-order/seckill/{id}，每个用户请求requests-per-user次
+ * 3. 统计吞吐量、响应时间的p50/p99/p999
+ * 4. 等待消息队列中的订单全部写入数据库，统计从下单成功响应到订单写入数据库的延迟
+ * 5. 检查没有超卖、没有重复下单：成功数不超过库存，数据库订单数等于成功数，每个用户最多一单，
+ *    数据库库存、Redis库存与订单数一致
+ * 6. 模拟一个丢失的订单（Redis中有购买用户、扣减了库存，数据库中没有订单），检查库存对账能够发现并以数据库为准修复
+ *
+ * 运行：mvn -P loadtest test -Dloadtest.users=5000 -Dloadtest.concurrency=200 -Dloadtest.stock=1000
+ * 其它参数：loadtest.requests-per-user（默认2，第二次请求用于检查一人一单）、loadtest.persist-timeout-seconds、
+ * loadtest.redis-port，以及应用本身的配置，例如 -Dhmdp.seckill.stock-shards=4 -Dhmdp.order.consumer.count=8
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("loadtest")
+public class SeckillLoadTest {
+
+    private static final int USERS = Integer.getInteger("loadtest.users", 5000);
+    private static final int CONCURRENCY = Integer.getInteger("loadtest.concurrency", 200);
+    private static final int STOCK = Integer.getInteger("loadtest.stock", 1000);
+    private static final int REQUESTS_PER_USER = Integer.getInteger("loadtest.requests-per-user", 2);
+    private static final int PERSIST_TIMEOUT_SECONDS = Integer.getInteger("loadtest.persist-timeout-seconds", 60);
+    private static final int REDIS_PORT = Integer.getInteger("loadtest.redis-port", 6390);
+
+    private static RedisServer redisServer;
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private IVoucherService voucherService;
+
+    @Autowired
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Autowired
+    private IVoucherOrderService voucherOrderService;
+
+    @Autowired
+    private StockShards stockShards;
+
+    @Autowired
+    private IStockReconcileService stockReconcileService;
+
+    /**
+     * 在应用启动之前启动内嵌的Redis
+     */
+    @BeforeClass
+    public static void startRedis() throws Exception {
+        redisServer = new RedisServer(REDIS_PORT);
+        redisServer.start();
+    }
+
+    @AfterClass
+    public static void stopRedis() throws Exception {
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    @Test
+    public void seckill() throws Exception {
+        // 1. 新增秒杀券、写入登录token
+        Long voucherId = addVoucher();
+        String[] tokens = login();
+
+        // 2. 并发请求
+        // 订单id --> 下单成功响应的时间
+        Map<Long, Long> responded = new ConcurrentHashMap<>();
+        // 订单id --> 在数据库中查询到的时间
+        Map<Long, Long> persisted = new ConcurrentHashMap<>();
+        long[] latencies = new long[USERS * REQUESTS_PER_USER];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        Map<String, AtomicInteger> messages = new ConcurrentHashMap<>();
+        ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor();
+        poller.scheduleWithFixedDelay(() -> poll(voucherId, persisted), 20, 20, TimeUnit.MILLISECONDS);
+        ExecutorService clients = Executors.newFixedThreadPool(CONCURRENCY);
+        CountDownLatch done = new CountDownLatch(CONCURRENCY);
+        long begin = System.nanoTime();
+        for (int c = 0; c < CONCURRENCY; c++) {
+            clients.submit(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < latencies.length) {
+                    // 先让每个用户请求一次，再重复请求
+                    String token = tokens[i % USERS];
+                    long start = System.nanoTime();
+                    try {
+                        JSONObject result = post("/voucher-order/seckill/" + voucherId, token);
+                        long end = System.nanoTime();
+                        latencies[i] = end - start;
+                        if (Boolean.TRUE.equals(result.getBool("success"))) {
+                            responded.put(result.getLong("data"), end);
+                        } else {
+                            messages.computeIfAbsent(result.getStr("errorMsg"), m -> new AtomicInteger()).incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        latencies[i] = System.nanoTime() - start;
+                        failed.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        long elapsedNanos = System.nanoTime() - begin;
+        clients.shutdown();
+
+        // 3. 等待订单全部写入数据库
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(PERSIST_TIMEOUT_SECONDS);
+        while (persisted.size() < responded.size() && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        poller.shutdown();
+        poller.awaitTermination(5, TimeUnit.SECONDS);
+        poll(voucherId, persisted);
+
+        // 4. 报告
+        Arrays.sort(latencies);
+        List<Long> lags = responded.entrySet().stream()
+                .filter(e -> persisted.containsKey(e.getKey()))
+                .map(e -> Math.max(0, persisted.get(e.getKey()) - e.getValue()))
+                .sorted().collect(Collectors.toList());
+        System.out.println("========== 秒杀压测 ==========");
+        System.out.printf("用户数: %d  并发数: %d  库存: %d  每个用户请求次数: %d%n", USERS, CONCURRENCY, STOCK, REQUESTS_PER_USER);
+        System.out.printf("请求数: %d  耗时: %dms  吞吐量: %d req/s  请求失败: %d%n", latencies.length,
+                elapsedNanos / 1_000_000, latencies.length * 1_000_000_000L / Math.max(1, elapsedNanos), failed.get());
+        System.out.printf("响应时间 p50: %.2fms  p99: %.2fms  p999: %.2fms  max: %.2fms%n",
+                millis(percentile(latencies, 0.5)), millis(percentile(latencies, 0.99)),
+                millis(percentile(latencies, 0.999)), millis(latencies[latencies.length - 1]));
+        System.out.printf("下单成功: %d  下单失败: %s%n", responded.size(), messages);
+        if (!lags.isEmpty()) {
+            System.out.printf("订单写入数据库的延迟 p50: %.2fms  p99: %.2fms  max: %.2fms%n",
+                    millis(lags.get(lags.size() / 2)), millis(lags.get((int) (lags.size() * 0.99))),
+                    millis(lags.get(lags.size() - 1)));
+        }
+        System.out.println("订单消息队列: " + voucherOrderService.consumerStats());
+
+        // 5. 检查超卖、重复下单
+        List<VoucherOrder> orders = voucherOrderService.query().eq("voucher_id", voucherId).list();
+        long buyers = orders.stream().map(VoucherOrder::getUserId).distinct().count();
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        assertTrue("超卖", responded.size() <= STOCK);
+        assertEquals("订单未全部写入数据库", responded.size(), orders.size());
+        assertEquals("重复下单", orders.size(), buyers);
+        assertEquals("数据库库存与订单数不一致", STOCK - orders.size(), seckillVoucher.getStock().intValue());
+        assertEquals("Redis库存与成功数不一致", STOCK - responded.size(), redisStock(voucherId));
+        assertTrue("返回了数据库中不存在的订单", orders.stream().map(VoucherOrder::getId).collect(Collectors.toSet())
+                .containsAll(responded.keySet()));
+        if (USERS >= STOCK) {
+            assertEquals("用户数不少于库存时应该全部卖完", STOCK, responded.size());
+        }
+
+        // 6. 模拟丢失的订单，对账两次（连续两次相同的偏差才会修复）
+        assertEquals("对账发现了偏差", 0, ((Number) reconcile().get("drifted")).intValue());
+        int shards = stockShards.shardsOf(voucherId);
+        String lostUser = String.valueOf(USERS + 1);
+        int home = StockShards.homeShard(Long.valueOf(lostUser), shards);
+        redisTemplate.opsForSet().add(StockShards.buyerKey(voucherId, home, shards), lostUser);
+        redisTemplate.opsForValue().decrement(StockShards.stockKey(voucherId, home, shards));
+        assertEquals("对账没有发现丢失的订单", 1, ((Number) reconcile().get("unpersisted")).intValue());
+        Map<String, Object> report = reconcile();
+        System.out.println("库存对账: " + report);
+        assertEquals("对账没有修复丢失的订单", 0, ((Number) report.get("drifted")).intValue());
+        assertFalse("没有移除丢失订单的购买用户",
+                redisTemplate.opsForSet().isMember(StockShards.buyerKey(voucherId, home, shards), lostUser));
+        assertEquals("没有归还丢失订单的库存", STOCK - responded.size(), redisStock(voucherId));
+    }
+
+    /**
+     * 执行一次库存对账并等待结束
+     * @return 对账结果
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> reconcile() throws InterruptedException {
+        long runs = (long) ((Map<String, Object>) stockReconcileService.report().getData()).get("runs");
+        assertTrue(stockReconcileService.start().getSuccess());
+        while (true) {
+            Map<String, Object> report = (Map<String, Object>) stockReconcileService.report().getData();
+            if ((long) report.get("runs") > runs) {
+                return report;
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private Long addVoucher() {
+        Voucher voucher = new Voucher()
+                .setShopId(1L).setTitle("压测秒杀券").setPayValue(100L).setActualValue(1000L)
+                .setType(1).setStatus(1).setStock(STOCK)
+                .setBeginTime(LocalDateTime.now().minusHours(1)).setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    /**
+     * 为每个用户写入登录token（与UserServiceImpl.login写入的数据一致）
+     */
+    private String[] login() {
+        String[] tokens = new String[USERS];
+        for (int i = 0; i < USERS; i++) {
+            tokens[i] = "loadtest-" + UUID.randomUUID();
+            Map<String, String> user = new HashMap<>();
+            user.put("id", String.valueOf(i + 1));
+            user.put("nickName", "user_" + (i + 1));
+            redisTemplate.opsForHash().putAll(LOGIN_USER_KEY + tokens[i], user);
+            redisTemplate.expire(LOGIN_USER_KEY + tokens[i], 1, TimeUnit.HOURS);
+        }
+        return tokens;
+    }
+
+    private JSONObject post(String path, String token) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("authorization", token);
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(30000);
+        try (InputStream in = connection.getInputStream()) {
+            return JSONUtil.parseObj(IoUtil.readUtf8(in));
+        }
+    }
+
+    /**
+     * 查询已经写入数据库的订单，记录第一次查询到的时间
+     */
+    private void poll(Long voucherId, Map<Long, Long> persisted) {
+        try {
+            long now = System.nanoTime();
+            voucherOrderService.query().select("id").eq("voucher_id", voucherId).list()
+                    .forEach(order -> persisted.putIfAbsent(order.getId(), now));
+        } catch (Exception e) {
+            // 忽略 下次再查询
+        }
+    }
+
+    /**
+     * @return Redis中的库存（分片库存时为各分片之和）
+     */
+    private int redisStock(Long voucherId) {
+        int shards = stockShards.shardsOf(voucherId);
+        int stock = 0;
+        for (int i = 0; i < shards; i++) {
+            stock += Integer.parseInt(redisTemplate.opsForValue().get(StockShards.stockKey(voucherId, i, shards)));
+        }
+        return stock;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,168 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.ShopType;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.utils.BinaryCodec;
+import com.hmdp.utils.BloomFilter;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheFormat;
+import com.hmdp.utils.HashCodec;
+import com.hmdp.utils.NearCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 缓存配置
+ * 按key前缀配置各业务缓存的特性（例如是否开启本地缓存、存储格式、提前刷新、布隆过滤器），并预先生成常用类型的编解码器
+ */
+@Configuration
+public class CacheConfig {
+    /**
+     * 重建布隆过滤器时每次从数据库加载的id个数
+     */
+    private static final int BLOOM_LOAD_PAGE_SIZE = 1000;
+
+    @Autowired
+    private NearCache nearCache;
+
+    @Autowired
+    private CacheClient cacheClient;
+
+    @Autowired
+    private BloomFilter bloomFilter;
+
+    @Autowired
+    private ShopMapper shopMapper;
+
+    @Autowired
+    private BlogMapper blogMapper;
+
+    /**
+     * 商铺缓存是否开启本地缓存
+     */
+    @Value("${hmdp.cache.near.shop.enabled:true}")
+    private boolean shopNearCacheEnabled;
+
+    /**
+     * 商铺本地缓存最多缓存的商铺数量
+     */
+    @Value("${hmdp.cache.near.shop.capacity:10000}")
+    private int shopNearCacheCapacity;
+
+    /**
+     * 商铺本地缓存的有效时间（秒）
+     */
+    @Value("${hmdp.cache.near.shop.ttl-seconds:10}")
+    private long shopNearCacheTtl;
+
+    /**
+     * 商铺缓存的存储格式：HASH / BINARY
+     */
+    @Value("${hmdp.cache.format.shop:HASH}")
+    private CacheFormat shopFormat;
+
+    /**
+     * 商铺类型缓存的存储格式：HASH（ZSet中存放JSON） / BINARY
+     */
+    @Value("${hmdp.cache.format.shop-type:HASH}")
+    private CacheFormat shopTypeFormat;
+
+    /**
+     * 是否将热点key缓存在本地
+     */
+    @Value("${hmdp.hotkey.pin.enabled:true}")
+    private boolean hotKeyPinEnabled;
+
+    /**
+     * 本地最多缓存的热点key个数
+     */
+    @Value("${hmdp.hotkey.pin.capacity:1000}")
+    private int hotKeyPinCapacity;
+
+    /**
+     * 热点key本地缓存的有效时间（秒）
+     */
+    @Value("${hmdp.hotkey.pin.ttl-seconds:3}")
+    private long hotKeyPinTtl;
+
+    /**
+     * 商铺逻辑过期缓存提前刷新（XFetch）的beta系数，小于等于0表示关闭
+     */
+    @Value("${hmdp.cache.early-refresh.shop.beta:1.0}")
+    private double shopEarlyRefreshBeta;
+
+    /**
+     * 是否开启布隆过滤器
+     */
+    @Value("${hmdp.cache.bloom.enabled:true}")
+    private boolean bloomEnabled;
+
+    /**
+     * 布隆过滤器期望的误判率
+     */
+    @Value("${hmdp.cache.bloom.fpp:0.01}")
+    private double bloomFpp;
+
+    /**
+     * 商铺布隆过滤器预计的商铺数量
+     */
+    @Value("${hmdp.cache.bloom.shop.expected-insertions:100000}")
+    private long shopExpectedInsertions;
+
+    /**
+     * 帖子布隆过滤器预计的帖子数量
+     */
+    @Value("${hmdp.cache.bloom.blog.expected-insertions:1000000}")
+    private long blogExpectedInsertions;
+
+    @PostConstruct
+    private void init() {
+        // 预先生成常用类型的编解码器，避免第一次请求时才生成
+        HashCodec.of(Shop.class);
+        HashCodec.of(UserDTO.class);
+        HashCodec.of(Blog.class);
+        HashCodec.of(Voucher.class);
+        BinaryCodec.of(Shop.class);
+        BinaryCodec.of(ShopType.class);
+        // 设置存储格式
+        cacheClient.setFormat(CACHE_SHOP_KEY, shopFormat);
+        cacheClient.setFormat(SHOP_TYPE_KEY, shopTypeFormat);
+        // 逻辑过期缓存的提前刷新
+        cacheClient.setEarlyRefresh(CACHE_SHOP_KEY, shopEarlyRefreshBeta);
+        // 开启布隆过滤器（在后台线程中从数据库加载id）
+        if (bloomEnabled) {
+            bloomFilter.register(BLOOM_SHOP, shopExpectedInsertions, bloomFpp,
+                    lastId -> toIds(shopMapper.selectObjs(new QueryWrapper<Shop>().select("id")
+                            .gt("id", lastId).orderByAsc("id").last("limit " + BLOOM_LOAD_PAGE_SIZE))));
+            bloomFilter.register(BLOOM_BLOG, blogExpectedInsertions, bloomFpp,
+                    lastId -> toIds(blogMapper.selectObjs(new QueryWrapper<Blog>().select("id")
+                            .gt("id", lastId).orderByAsc("id").last("limit " + BLOOM_LOAD_PAGE_SIZE))));
+            cacheClient.setBloomFilter(CACHE_SHOP_KEY, BLOOM_SHOP);
+        }
+        // 开启本地缓存
+        if (shopNearCacheEnabled) {
+            nearCache.register(CACHE_SHOP_KEY, shopNearCacheCapacity, shopNearCacheTtl, TimeUnit.SECONDS);
+        }
+        if (hotKeyPinEnabled) {
+            nearCache.enablePinning(hotKeyPinCapacity, hotKeyPinTtl, TimeUnit.SECONDS);
+        }
+    }
+
+    private static List<Long> toIds(List<Object> objects) {
+        return objects.stream().map(id -> ((Number) id).longValue()).collect(Collectors.toList());
+    }
+}
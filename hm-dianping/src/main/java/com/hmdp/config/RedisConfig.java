@@ -0,0 +1,37 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.BloomFilter;
+import com.hmdp.utils.NearCache;
+import com.hmdp.utils.SeckillGate;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_FILTER_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * Redis发布订阅配置
+ * 各节点通过订阅频道接收其它节点广播的消息（例如本地缓存失效消息、布隆过滤器新增消息）
+ */
+@Configuration
+public class RedisConfig {
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       NearCache nearCache,
+                                                                       BloomFilter bloomFilter,
+                                                                       SeckillGate seckillGate) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        // 本地缓存失效消息
+        container.addMessageListener(nearCache, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        // 布隆过滤器新增消息
+        container.addMessageListener(bloomFilter, new ChannelTopic(BLOOM_FILTER_CHANNEL));
+        // 秒杀优惠券售罄、恢复消息
+        container.addMessageListener(seckillGate, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        return container;
+    }
+}
@@ -3,6 +3,7 @@ package com.hmdp.config;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -13,12 +14,25 @@ import org.springframework.context.annotation.Configuration;
  */
 @Configuration
 public class RedissonConfig {
+    /**
+     * 与spring.redis使用同一个Redis（压测时指向内嵌的Redis）
+     */
+    @Value("${spring.redis.host}")
+    private String host;
+
+    @Value("${spring.redis.port:6379}")
+    private int port;
+
+    @Value("${spring.redis.password:}")
+    private String password;
+
     @Bean
     public RedissonClient redissonClient() {
         // 配置类
         Config config = new Config();
         // 添加Redis地址，这里添加了单点的地址，也可以使用config.useClusterServers()添加集群地址
-        config.useSingleServer().setAddress("redis:// 192.168.160.128:6379");
+        config.useSingleServer().setAddress("redis://" + host + ":" + port)
+                .setPassword(password.isEmpty() ? null : password);
         // 创建客户端
         return Redisson.create(config);
     }
@@ -1,5 +1,6 @@
 package com.hmdp.config;
 
+import com.hmdp.controller.interceptor.AdminInterceptor;
 import com.hmdp.controller.interceptor.LoginInterceptor;
 import com.hmdp.controller.interceptor.RefreshTokenInterceptor;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -16,6 +17,9 @@ public class WebMvcConfig implements WebMvcConfigurer {
     @Autowired
     private RefreshTokenInterceptor refreshTokenInterceptor;
 
+    @Autowired
+    private AdminInterceptor adminInterceptor;
+
     /**
      * 添加、配置拦截器
      * order表示拦截器的访问次序 order越小 越先访问
@@ -35,5 +39,7 @@ public class WebMvcConfig implements WebMvcConfigurer {
                         "/upload/**"
                 ).order(1);
         registry.addInterceptor(refreshTokenInterceptor).order(0);
+        // 运维接口只允许hmdp.admin.user-ids中的用户访问
+        registry.addInterceptor(adminInterceptor).addPathPatterns("/admin/**").order(2);
     }
 }
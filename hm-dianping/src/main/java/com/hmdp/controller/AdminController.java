@@ -0,0 +1,150 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IFeedService;
+import com.hmdp.service.IStockReconcileService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IWarmUpService;
+import com.hmdp.utils.BloomFilter;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.NearCache;
+import com.hmdp.utils.SeckillGate;
+import com.hmdp.utils.TtlRefresher;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 运维接口：缓存预热、缓存情况、热点key、下单消息队列、秒杀闸门、库存对账、帖子推送
+ * 只允许hmdp.admin.user-ids中的用户访问（见AdminInterceptor）
+ */
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+
+    @Resource
+    private IWarmUpService warmUpService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private NearCache nearCache;
+
+    @Resource
+    private BloomFilter bloomFilter;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private TtlRefresher ttlRefresher;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillGate seckillGate;
+
+    @Resource
+    private IStockReconcileService stockReconcileService;
+
+    @Resource
+    private IFeedService feedService;
+
+    /**
+     * 开始缓存预热（在后台执行）
+     * @param shop 是否预热商铺缓存
+     * @param geo 是否预热商铺GEO索引
+     * @param stock 是否预热秒杀券库存
+     * @return 无
+     */
+    @PostMapping("/warmup")
+    public Result startWarmUp(@RequestParam(value = "shop", defaultValue = "true") Boolean shop,
+                              @RequestParam(value = "geo", defaultValue = "true") Boolean geo,
+                              @RequestParam(value = "stock", defaultValue = "true") Boolean stock) {
+        return warmUpService.start(shop, geo, stock);
+    }
+
+    /**
+     * 查询缓存预热的进度
+     * @return 各阶段已写入的数据条数、耗时、吞吐量
+     */
+    @GetMapping("/warmup")
+    public Result queryWarmUpProgress() {
+        return warmUpService.progress();
+    }
+
+    /**
+     * 查询缓存情况
+     * @return 本地缓存、布隆过滤器、并发未命中合并、逻辑过期缓存、过期时间刷新的统计数据
+     */
+    @GetMapping("/cache/stats")
+    public Result queryCacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("nearCache", nearCache.stats());
+        stats.put("bloomFilter", bloomFilter.stats());
+        stats.put("singleFlight", cacheClient.singleFlightStats());
+        stats.put("logicalExpire", cacheClient.logicalExpireStats());
+        stats.put("ttlRefresh", ttlRefresher.stats());
+        return Result.ok(stats);
+    }
+
+    /**
+     * 查询当前的热点key（只原样展示hmdp.hotkey.exposed-prefixes中的key前缀，其它key做掩码）
+     * @return 热点key --> 估计的访问次数，按访问次数降序排列
+     */
+    @GetMapping("/hotkeys")
+    public Result queryHotKeys() {
+        return Result.ok(hotKeyDetector.exposedHotKeys());
+    }
+
+    /**
+     * 查询下单消息队列的消费情况
+     * @return 消费的消息条数、批次、吞吐量、积压情况
+     */
+    @GetMapping("/orders/stream")
+    public Result queryOrderStreamStats() {
+        return Result.ok(voucherOrderService.consumerStats());
+    }
+
+    /**
+     * 查询秒杀请求本地闸门的情况
+     * @return 已售罄的优惠券、被拒绝的请求数
+     */
+    @GetMapping("/seckill/gate")
+    public Result querySeckillGateStats() {
+        return Result.ok(seckillGate.stats());
+    }
+
+    /**
+     * 立即执行一次秒杀券库存对账（在后台执行）
+     * @return 无
+     */
+    @PostMapping("/seckill/reconcile")
+    public Result startReconcile() {
+        return stockReconcileService.start();
+    }
+
+    /**
+     * 查询秒杀券库存对账的结果
+     * @return Redis与数据库不一致的优惠券及其偏差、修复的次数
+     */
+    @GetMapping("/seckill/reconcile")
+    public Result queryReconcileReport() {
+        return stockReconcileService.report();
+    }
+
+    /**
+     * 查询帖子推送任务队列的情况
+     * @return 完成的任务数、推送的收件箱个数、积压的任务数、最早的未完成任务已经等待的时间
+     */
+    @GetMapping("/feed/fanout")
+    public Result queryFanoutStats() {
+        return Result.ok(feedService.fanoutStats());
+    }
+}
@@ -32,6 +32,16 @@ public class BlogController {
         return blogService.saveBlog(blog);
     }
 
+    /**
+     * 查询帖子推送到粉丝收件箱的进度
+     * @param id 帖子id
+     * @return 粉丝总数、已推送的粉丝数、是否完成、推送延迟
+     */
+    @GetMapping("/fanout/{id}")
+    public Result queryFanoutProgress(@PathVariable("id") Long id) {
+        return blogService.queryFanoutProgress(id);
+    }
+
     @PutMapping("/like/{id}")
     public Result likeBlog(@PathVariable("id") Long id) {
         // // 修改点赞数量
@@ -0,0 +1,46 @@
+package com.hmdp.controller.interceptor;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Arrays;
+
+@Slf4j
+@Component
+public class AdminInterceptor implements HandlerInterceptor {
+
+    /**
+     * 可以调用运维接口的用户id，为空时拒绝所有请求
+     */
+    @Value("${hmdp.admin.user-ids:}")
+    private Long[] adminUserIds;
+
+    /**
+     * 运维接口（/admin/**）的权限校验
+     * 1. 未登录 --> 401
+     * 2. 登录用户不在hmdp.admin.user-ids中 --> 403
+     * 3. 否则放行
+     */
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 1. 未登录
+        UserDTO userDto = UserHolder.getUser();
+        if (userDto == null) {
+            response.setStatus(401);
+            return false;
+        }
+        // 2. 不是管理员
+        if (!Arrays.asList(adminUserIds).contains(userDto.getId())) {
+            log.warn("用户{}没有权限访问{} {}", userDto.getId(), request.getMethod(), request.getRequestURI());
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
@@ -1,8 +1,11 @@
 package com.hmdp.controller.interceptor;
 
-import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.crypto.digest.DigestUtil;
 import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.HashCodec;
+import com.hmdp.utils.HotKeyDetector;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.TtlRefresher;
 import com.hmdp.utils.UserHolder;
 import org.apache.logging.log4j.util.Strings;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -21,6 +24,12 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
     @Autowired
     private StringRedisTemplate redisTemplate;
 
+    @Autowired
+    private HotKeyDetector hotKeyDetector;
+
+    @Autowired
+    private TtlRefresher ttlRefresher;
+
     /**
      * redis实现手机登录的代码
      * 1. 从请求头获取token
@@ -58,6 +67,9 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 
         // 2. 根据token去redis中查询用户数据user
         String tokenKey = RedisConstants.LOGIN_USER_KEY + token;
+        // 记录访问 用于探测被集中访问的token（例如被脚本盗用）
+        // 只记录token的哈希前缀，热点key会通过运维接口展示，不能暴露token本身
+        hotKeyDetector.record(RedisConstants.LOGIN_USER_KEY + "#" + DigestUtil.sha256Hex(token).substring(0, 16));
         Map<Object, Object> userMap = redisTemplate.opsForHash().entries(tokenKey);
 
         // 3. 判断用户是否存在
@@ -68,11 +80,11 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 
         // 3.2 如果user存在
         // 将userMap转化为UserDTO对象
-        UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
+        UserDTO userDTO = HashCodec.of(UserDTO.class).decode(userMap);
         // 将用户保存到ThreadLocal中
         UserHolder.saveUser(userDTO);
-        // 刷新token的有效期 30分钟
-        redisTemplate.expire(tokenKey, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
+        // 刷新token的有效期 30分钟（异步批量执行，剩余有效期还足够时不会刷新）
+        ttlRefresher.touch(tokenKey, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
 
         // 放行
         return true;
@@ -2,6 +2,11 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +18,34 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface BlogMapper extends BaseMapper<Blog> {
 
+    /**
+     * 查询每个用户在[since, before]之间最新的limit篇帖子（只查询id、user_id、create_time）：
+     * (SELECT id, user_id, create_time FROM tb_blog WHERE user_id = ? AND create_time >= ? AND create_time <= ?
+     * ORDER BY create_time DESC LIMIT ?) UNION ALL ...
+     * 每个子查询走(user_id, create_time)索引，避免IN (...) ORDER BY create_time对所有帖子排序
+     * @param befores 用户id --> 该用户帖子的create_time上界（包含，null表示不限制）
+     * @param since 所有用户帖子的create_time下界（包含，null表示不限制）
+     * @param limit 每个用户最多返回的帖子数
+     * @return 帖子（不保证顺序）
+     */
+    List<Blog> selectLatestByUsers(@Param("befores") Map<Long, LocalDateTime> befores,
+                                   @Param("since") LocalDateTime since, @Param("limit") int limit);
+
+    /**
+     * 批量累加点赞数：UPDATE tb_blog SET liked = liked + CASE id WHEN ? THEN ? ... END WHERE id IN (...)
+     * @param deltas 帖子id --> 点赞数增量
+     * @return 更新的帖子个数
+     */
+    int incrLikedBatch(@Param("deltas") Map<Long, Long> deltas);
+
+    /**
+     * 记录点赞数写回的批次，批次已经写回过时忽略
+     * @return 1-新的批次，0-已经写回过
+     */
+    int insertLikeFlush(@Param("batchId") Long batchId);
+
+    /**
+     * 删除过期的写回批次记录
+     */
+    int deleteLikeFlushBefore(@Param("time") LocalDateTime time);
 }
@@ -4,5 +4,15 @@ import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import org.apache.ibatis.annotations.Param;
 
+import java.util.List;
+
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
+
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 批量插入订单，忽略违反唯一索引uk_user_voucher（用户已经购买过该优惠券）的订单
+     * @return 实际插入的订单个数
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
 }
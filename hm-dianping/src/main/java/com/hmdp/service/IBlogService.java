@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.Map;
+
 public interface IBlogService extends IService<Blog> {
 
     Result queryBlogById(Long id);
@@ -16,5 +18,15 @@ public interface IBlogService extends IService<Blog> {
 
     Result saveBlog(Blog blog);
 
+    Result queryFanoutProgress(Long id);
+
     Result queryFolloweeBlogByPage(Long max, Integer offset);
+
+    /**
+     * 将一个批次的点赞数增量写回数据库（同一批次只写回一次）
+     * @param batchId 批次id
+     * @param deltas 帖子id --> 点赞数增量
+     * @return 是否写回（批次已经写回过时返回false）
+     */
+    boolean flushLikeDeltas(Long batchId, Map<Long, Long> deltas);
 }
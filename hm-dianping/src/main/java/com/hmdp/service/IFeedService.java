@@ -0,0 +1,41 @@
+package com.hmdp.service;
+
+import com.hmdp.entity.Blog;
+
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 关注的人发布的帖子（推送到粉丝的收件箱）
+ */
+public interface IFeedService {
+
+    /**
+     * 提交推送任务，由后台线程将帖子推送到作者所有粉丝的收件箱（大V只写入自己的发件箱）
+     * @param blog 已经保存的帖子
+     */
+    void publish(Blog blog);
+
+    /**
+     * 滚动分页查询关注流（收件箱与所关注大V的发件箱归并后的结果）
+     * @param userId 用户id
+     * @param max 时间戳的最大值
+     * @param offset 跳过时间戳=max的前offset条
+     * @param count 返回的条数
+     * @return 帖子id和发布时间，按发布时间从新到旧
+     */
+    List<ZSetOperations.TypedTuple<String>> queryFeed(Long userId, long max, int offset, int count);
+
+    /**
+     * @param blogId 帖子id
+     * @return 帖子的推送进度
+     */
+    Map<String, Object> fanoutProgress(Long blogId);
+
+    /**
+     * @return 推送任务队列的处理情况
+     */
+    Map<String, Object> fanoutStats();
+}
@@ -0,0 +1,20 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.Result;
+
+/**
+ * 秒杀券库存对账（Redis与数据库）
+ */
+public interface IStockReconcileService {
+
+    /**
+     * 在后台立即执行一次对账（已有对账在进行时直接返回失败）
+     * @return 是否开始
+     */
+    Result start();
+
+    /**
+     * @return 当前/上一次对账的结果
+     */
+    Result report();
+}
@@ -0,0 +1,23 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.Result;
+
+/**
+ * 缓存预热
+ */
+public interface IWarmUpService {
+
+    /**
+     * 在后台开始一次缓存预热（已有预热在进行时直接返回失败）
+     * @param shop 是否预热商铺缓存
+     * @param geo 是否预热商铺GEO索引
+     * @param stock 是否预热秒杀券库存
+     * @return 是否开始
+     */
+    Result start(boolean shop, boolean geo, boolean stock);
+
+    /**
+     * @return 当前/上一次预热的进度
+     */
+    Result progress();
+}
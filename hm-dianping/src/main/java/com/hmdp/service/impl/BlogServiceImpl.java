@@ -11,37 +11,114 @@ import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.service.IFollowService;
+import com.hmdp.service.IFeedService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilter;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.RedisIdWorker;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_DELTA_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_FLUSHING_KEY;
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
-import static com.hmdp.utils.RedisConstants.INBOX_KEY;
+import static com.hmdp.utils.RedisConstants.BLOOM_BLOG;
 
 
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
+    // 线程池 定时将点赞数增量写回数据库
+    private static final ScheduledExecutorService LIKE_FLUSH_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    private static final DefaultRedisScript<Long> LIKE_SCRIPT;
+    private static final DefaultRedisScript<String> LIKE_FLUSH_SCRIPT;
+    /**
+     * 正在写回的增量hash中的字段：本批次已经写回数据库
+     */
+    private static final String LIKE_FLUSH_APPLIED = "_applied";
+
+    // 加载点赞、点赞数写回对应的lua脚本
+    static {
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("blogLike.lua"));
+        LIKE_SCRIPT.setResultType(Long.class);
+        LIKE_FLUSH_SCRIPT = new DefaultRedisScript<>();
+        LIKE_FLUSH_SCRIPT.setLocation(new ClassPathResource("blogLikeFlush.lua"));
+        LIKE_FLUSH_SCRIPT.setResultType(String.class);
+    }
 
     @Resource
     private IUserService userService;
 
     @Autowired
-    private IFollowService followService;
+    private IFeedService feedService;
 
     @Autowired
     private StringRedisTemplate redisTemplate;
 
+    @Autowired
+    private BloomFilter bloomFilter;
+
+    @Autowired
+    private HotKeyDetector hotKeyDetector;
+
+    @Autowired
+    private RedisIdWorker redisIdWorker;
+
+    @Autowired
+    private RedissonClient redissonClient;
+
+    @Autowired
+    private IBlogService blogService;
+
+    /**
+     * 每隔多长时间将点赞数增量写回数据库（毫秒）
+     */
+    @Value("${hmdp.blog.like.flush-interval-ms:3000}")
+    private long likeFlushIntervalMillis;
+
+    /**
+     * 每条UPDATE语句更新的帖子个数
+     */
+    @Value("${hmdp.blog.like.batch-size:500}")
+    private int likeFlushBatchSize;
+
+    /**
+     * 写回批次记录的保留时间（小时）
+     */
+    @Value("${hmdp.blog.like.flush-log-retention-hours:24}")
+    private long likeFlushRetentionHours;
+
+    @PostConstruct
+    private void init() {
+        LIKE_FLUSH_EXECUTOR.scheduleWithFixedDelay(this::flushLikes,
+                likeFlushIntervalMillis, likeFlushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -50,75 +127,170 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog ->{
-            queryBlogUser(blog);
-            queryBlogLiked(blog);
-        });
+        // 批量查询用户和点赞状态
+        queryBlogUsers(records);
+        queryBlogsLiked(records);
         return Result.ok(records);
     }
 
     /**
-     * 查看当前用户对帖子的点赞状态
+     * 批量查看当前用户对帖子的点赞状态，并加上还没有写回数据库的点赞数增量
+     * 一个pipeline中对每篇帖子执行ZSCORE blog:liked:帖子id 用户id、HGET 增量hash 帖子id，一次网络往返
+     * 正在写回的增量hash带有_applied字段时说明已经写回数据库（见flushLikeDeltas），不再重复加上
      * 如果已点赞，则blog对象的isLike值为true
      * 如果未点赞，则blog对象的isLike值为false
-     * @param blog
+     * @param blogs
      */
-    private void queryBlogLiked(Blog blog) {
-        // 1. 查询当前用户信息
-        UserDTO user = UserHolder.getUser();
-        // 如果用户未登录 则无需显示点赞状态
-        if (user == null) {
+    private void queryBlogsLiked(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
             return;
         }
-        Long userId = user.getId();
-        // 2. 查询该用户是否已经点过赞
-        String key = BLOG_LIKED_KEY + blog.getId();
-        Double score = redisTemplate.opsForZSet().score(key, userId.toString());
-        // 3. 设置blog的isLiked属性值
-        blog.setIsLike(score != null);
+        // 1. 查询当前用户信息（如果用户未登录 则无需显示点赞状态）
+        UserDTO user = UserHolder.getUser();
+        String userId = user == null ? null : user.getId().toString();
+        // 2. 查询该用户是否已经点过赞、点赞数增量（正在写回和新累计的两部分）
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hGet(BLOG_LIKED_FLUSHING_KEY, LIKE_FLUSH_APPLIED);
+            for (Blog blog : blogs) {
+                String blogId = blog.getId().toString();
+                if (userId != null) {
+                    String key = BLOG_LIKED_KEY + blogId;
+                    hotKeyDetector.record(key);
+                    conn.zScore(key, userId);
+                }
+                conn.hGet(BLOG_LIKED_FLUSHING_KEY, blogId);
+                conn.hGet(BLOG_LIKED_DELTA_KEY, blogId);
+            }
+            return null;
+        });
+        // 3. 设置blog的isLiked属性值、点赞数
+        boolean flushApplied = results.get(0) != null;
+        int i = 1;
+        for (Blog blog : blogs) {
+            if (userId != null) {
+                blog.setIsLike(results.get(i++) != null);
+            }
+            long pending = 0;
+            for (int j = 0; j < 2; j++, i++) {
+                // 正在写回的增量已经写回数据库时跳过
+                if (results.get(i) != null && !(j == 0 && flushApplied)) {
+                    pending += Long.parseLong(results.get(i).toString());
+                }
+            }
+            if (pending != 0) {
+                long liked = blog.getLiked() == null ? 0 : blog.getLiked();
+                blog.setLiked((int) Math.max(0, liked + pending));
+            }
+        }
     }
 
     /**
      * 使用zset来存储点赞用户id
-     * 给帖子点赞
+     * 给帖子点赞（点赞数写回见flushLikes）
      * 1. 查询当前用户信息
-     * 2. 查询该用户是否已经点过赞
-     * 3. 已经点过赞
-     *      3.1 点赞数量-1
-     *      3.2 将用户id从zset中移除
-     * 4. 未点过赞
-     *      4.1 点赞数量+1
-     *      4.2 将用户id加入zset
+     * 2. 执行lua脚本（判断是否已经点过赞、修改zset、累计点赞数增量在一个脚本中原子完成）
+     *      2.1 已经点过赞：将用户id从zset中移除，点赞数增量-1
+     *      2.2 未点过赞：将用户id加入zset，点赞数增量+1
+     * 不再对每次点赞执行UPDATE tb_blog SET liked = liked ± 1（热门帖子的同一行被大量并发更新，行锁竞争严重），
+     * 增量由后台任务定时汇总后批量写回数据库
      * @param id blog的id
      * @return
      */
     @Override
     public Result likeBlog(Long id) {
+        // 布隆过滤器判断一定不存在 不再点赞
+        if (!bloomFilter.mightContain(BLOOM_BLOG, id)) {
+            return Result.fail("笔记不存在！");
+        }
         // 1. 查询当前用户信息
         UserDTO user = UserHolder.getUser();
         Long userId = user.getId();
-        // 2. 查询该用户是否已经点过赞
+        // 2. 执行lua脚本
         String key = BLOG_LIKED_KEY + id;
-        Double score = redisTemplate.opsForZSet().score(key, userId.toString());
-        if (score != null) {
-            // 3. 已经点过赞
-            // 3.1 点赞数量-1
-            boolean isSuccess = update().setSql("liked = liked - 1").eq("id", id).update();
-            // 3.2 将用户id从set中移除
-            if (isSuccess) {
-                redisTemplate.opsForZSet().remove(key, userId.toString());
+        hotKeyDetector.record(key);
+        redisTemplate.execute(LIKE_SCRIPT, Arrays.asList(key, BLOG_LIKED_DELTA_KEY),
+                userId.toString(), String.valueOf(System.currentTimeMillis()), id.toString());
+        return Result.ok();
+    }
+
+    /**
+     * 将Redis中累计的点赞数增量写回数据库（多个节点中同一时刻只有一个节点执行）
+     * 1. 执行lua脚本：将增量hash改名为正在写回的hash，并生成批次id（上一次没有写回成功时继续写回上一批次）
+     * 2. 读取正在写回的增量
+     * 3. 在一个事务中记录批次id、批量更新点赞数（批次已经写回过时跳过，保证宕机重试时不会重复累加），
+     *    提交之前在正在写回的hash中标记_applied，查询点赞数时不再加上这部分增量
+     * 4. 删除正在写回的增量hash
+     */
+    private void flushLikes() {
+        RLock lock = redissonClient.getLock("lock:" + BLOG_LIKED_FLUSHING_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            // 1. 开始写回
+            String batch = redisTemplate.execute(LIKE_FLUSH_SCRIPT, Arrays.asList(BLOG_LIKED_DELTA_KEY, BLOG_LIKED_FLUSHING_KEY),
+                    redisIdWorker.nextId("blog:like:flush").toString());
+            if (batch == null) {
+                return;
             }
-        } else {
-            // 4. 未点过赞
-            // 4.1 点赞数量+1
-            boolean isSuccess = update().setSql("liked = liked + 1").eq("id", id).update();
-            // 4.2 将用户id加入set
-            if (isSuccess) {
-                redisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+            // 2. 读取增量（跳过_batch、_applied）
+            Map<Long, Long> deltas = new HashMap<>();
+            redisTemplate.opsForHash().entries(BLOG_LIKED_FLUSHING_KEY).forEach((field, value) -> {
+                if (field.toString().startsWith("_")) {
+                    return;
+                }
+                long delta = Long.parseLong(value.toString());
+                if (delta != 0) {
+                    deltas.put(Long.valueOf(field.toString()), delta);
+                }
+            });
+            // 3. 写回数据库
+            if (!deltas.isEmpty() && !blogService.flushLikeDeltas(Long.valueOf(batch), deltas)) {
+                log.warn("点赞数写回批次{}已经写回过，跳过", batch);
             }
+            // 4. 删除正在写回的增量
+            redisTemplate.delete(BLOG_LIKED_FLUSHING_KEY);
+            log.debug("点赞数写回批次{}：{}篇帖子", batch, deltas.size());
+        } catch (Exception e) {
+            // 正在写回的增量保留在Redis中，下一次继续写回
+            log.error("点赞数写回数据库失败", e);
+        } finally {
+            lock.unlock();
         }
-        return Result.ok();
+    }
+
+    /**
+     * 1. 记录批次id（INSERT IGNORE），批次已经存在说明上一次已经写回，只是没来得及删除Redis中的增量
+     * 2. 每batch-size篇帖子一条UPDATE语句
+     * 3. 删除过期的批次记录
+     * 4. 在正在写回的增量hash中标记_applied（在事务提交之前，查询点赞数时不会同时加上数据库中已经累加的增量和Redis中的增量；
+     *    标记失败则事务回滚，提交失败则下一次重试时重新写回该批次）
+     */
+    @Override
+    @Transactional
+    public boolean flushLikeDeltas(Long batchId, Map<Long, Long> deltas) {
+        // 1. 记录批次id
+        if (getBaseMapper().insertLikeFlush(batchId) == 0) {
+            return false;
+        }
+        // 2. 批量更新点赞数
+        Map<Long, Long> chunk = new HashMap<>();
+        for (Map.Entry<Long, Long> entry : deltas.entrySet()) {
+            chunk.put(entry.getKey(), entry.getValue());
+            if (chunk.size() >= likeFlushBatchSize) {
+                getBaseMapper().incrLikedBatch(chunk);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            getBaseMapper().incrLikedBatch(chunk);
+        }
+        // 3. 删除过期的批次记录
+        getBaseMapper().deleteLikeFlushBefore(LocalDateTime.now().minusHours(likeFlushRetentionHours));
+        // 4. 标记本批次已经写回
+        redisTemplate.opsForHash().put(BLOG_LIKED_FLUSHING_KEY, LIKE_FLUSH_APPLIED, batchId.toString());
+        return true;
     }
 
     // /**
@@ -177,6 +349,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result queryBlogLikes(Long id) {
         // 1. 拼接key（存储帖子点赞的用户）
         String key = BLOG_LIKED_KEY + id;
+        hotKeyDetector.record(key);
         //2. 查询前五个点赞的用户的id ZRANGE key 0 4
         Set<String> idStrs = redisTemplate.opsForZSet().range(key, 0, 4);
         List<Long> ids = idStrs.stream().map(Long::valueOf).collect(Collectors.toList());
@@ -200,9 +373,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      * 发布帖子
      * 1. 获取当前用户信息
      * 2. 设置帖子的userId
-     * 3. 将帖子存入数据库
-     * 4. 查询当前用户的所有粉丝
-     * 5. 将帖子id存入到所有粉丝的收件箱，score为当前时间
+     * 3. 将帖子存入数据库，并将帖子id加入布隆过滤器
+     * 4. 提交推送任务，由后台线程分页查询当前用户的粉丝，将帖子id存入到所有粉丝的收件箱（见FeedServiceImpl）
+     * 5. 立即返回帖子id，推送进度可以通过/blog/fanout/{id}查询
      * @param blog
      * @return
      */
@@ -212,24 +385,32 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         UserDTO user = UserHolder.getUser();
         // 2. 设置帖子的userId
         blog.setUserId(user.getId());
+        // 发布时间精确到秒（与数据库中create_time一致），收件箱、发件箱、重建的收件箱都使用它作为score
+        blog.setCreateTime(LocalDateTime.now().withNano(0));
         // 3. 将帖子存入数据库
         boolean isSuccess = save(blog);
         if (!isSuccess) {
             return Result.fail("发布帖子失败！");
         }
-        // 4. 查询当前用户的所有粉丝
-        List<Long> followerUserIds = followService.query()
-                .eq("follow_user_id", user.getId())
-                .list()
-                .stream()
-                .map(follow -> follow.getUserId())
-                .collect(Collectors.toList());
-        for (Long followerUserId : followerUserIds) {
-            String inboxKey = INBOX_KEY + followerUserId;
-            // 5. 将帖子id存入到所有粉丝的收件箱，score为当前时间
-            redisTemplate.opsForZSet().add(inboxKey, blog.getId().toString(), System.currentTimeMillis());
+        bloomFilter.add(BLOOM_BLOG, blog.getId());
+        // 4. 提交推送任务
+        feedService.publish(blog);
+        // 5. 返回帖子id
+        return Result.ok(blog.getId());
+    }
+
+    /**
+     * 查询帖子推送到粉丝收件箱的进度（只有作者本人可以查询）
+     * @param id 帖子id
+     * @return 粉丝总数、已推送的粉丝数、是否完成、推送延迟
+     */
+    @Override
+    public Result queryFanoutProgress(Long id) {
+        Blog blog = getById(id);
+        if (blog == null || !blog.getUserId().equals(UserHolder.getUser().getId())) {
+            return Result.fail("笔记不存在！");
         }
-        return Result.ok();
+        return Result.ok(feedService.fanoutProgress(id));
     }
 
     // 滚动分页，每页查询两条数据：ZREVRANGEBYSCORE key max min [WITHSCORES] [LIMIT offset count]
@@ -240,6 +421,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      * 1. 获取当前用户id
      * 2. 拼接当前用户的收件箱zset key
      * 3. 执行ZREVRANGEBYSCORE key max min [WITHSCORES] [LIMIT offset count]，分页获取2条帖子
+     *    （关注了大V时，与大V的发件箱多路归并后再分页，见FeedServiceImpl.queryFeed）
      * 4. 获取获取到的帖子中的最小时间戳minTime
      * 5. 获取偏移量offset：获取到的帖子中时间戳=minTime的个数
      * 6. 将List<Blog>、offset、minTime封装为一个ScrollResult对象
@@ -253,12 +435,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // 1. 获取当前用户id
         UserDTO user = UserHolder.getUser();
         Long userId = user.getId();
-        // 2. 拼接当前用户的收件箱zset key
-        String key = INBOX_KEY + userId;
-        // 3. 执行ZREVRANGEBYSCORE key max min [WITHSCORES] [LIMIT offset count]，分页获取2条帖子
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = redisTemplate.opsForZSet()
-                .reverseRangeByScoreWithScores(key, 0, max, offset, 2);
-        List<Blog> blogs = new ArrayList<>(typedTuples.size());
+        // 2. 3. 查询收件箱（及关注的大V的发件箱），分页获取2条帖子
+        List<ZSetOperations.TypedTuple<String>> typedTuples = feedService.queryFeed(userId, max, offset, 2);
+        List<Long> blogIds = new ArrayList<>(typedTuples.size());
         Long minTime = 0L;
         offset = 1;
         // 遍历元组 元组包含value和score：value-帖子id, score-帖子时间戳
@@ -267,14 +446,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             String blogId = tuple.getValue();
             // 获取帖子时间戳
             Long timestamp = Long.valueOf(tuple.getScore().longValue());
-            // 根据id获取帖子
-            Blog blog = getById(blogId);
-            // 完善帖子的用户
-            queryBlogUser(blog);
-            // 完善当前用户对帖子点赞状态
-            queryBlogLiked(blog);
-            // 将贴子加入blogs列表中
-            blogs.add(blog);
+            // 将贴子id加入blogIds列表中
+            blogIds.add(Long.valueOf(blogId));
             // 更新minTime和offset
             // 5. 获取偏移量offset：获取到的帖子中时间戳=minTime的个数
             if (!minTime.equals(timestamp)) {
@@ -285,6 +458,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // 4. 获取获取到的帖子中的最小时间戳minTime
             minTime = timestamp;
         }
+        // 根据id批量获取帖子（保持收件箱中的顺序，已删除的帖子跳过），批量完善帖子的用户和当前用户对帖子点赞状态
+        List<Blog> blogs = listByIdsOrdered(blogIds);
+        queryBlogUsers(blogs);
+        queryBlogsLiked(blogs);
         // 6. 将List<Blog>、offset、minTime封装为一个ScrollResult对象
         ScrollResult scrollResult = new ScrollResult();
         scrollResult.setList(blogs);
@@ -296,15 +473,63 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     @Override
     public Result queryBlogById(Long id) {
+        // 0. 布隆过滤器判断一定不存在 不再查询数据库
+        if (!bloomFilter.mightContain(BLOOM_BLOG, id)) {
+            return Result.fail("笔记不存在！");
+        }
         // 1. 查询blog信息
         Blog blog = getById(id);
+        if (blog == null) {
+            return Result.fail("笔记不存在！");
+        }
         // 2. 查询blog对应的用户信息
         queryBlogUser(blog);
-        // 3. 查询当前用户对blog的点赞状态 并设置blog的isLike属性
-        queryBlogLiked(blog);
+        // 3. 查询当前用户对blog的点赞状态 并设置blog的isLike属性、还没有写回数据库的点赞数
+        queryBlogsLiked(Collections.singletonList(blog));
         return Result.ok(blog);
     }
 
+    /**
+     * 根据id批量查询帖子：select * from tb_blog where id in (...)，再按ids的顺序排列（不存在的帖子跳过）
+     * @param ids 帖子id
+     * @return 帖子
+     */
+    private List<Blog> listByIdsOrdered(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Map<Long, Blog> blogMap = listByIds(ids).stream().collect(Collectors.toMap(Blog::getId, Function.identity()));
+        List<Blog> blogs = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Blog blog = blogMap.get(id);
+            if (blog != null) {
+                blogs.add(blog);
+            }
+        }
+        return blogs;
+    }
+
+    /**
+     * 批量查询博客的作者信息（代替逐个调用queryBlogUser）
+     * 所有作者一次查询：select * from tb_user where id in (...)
+     * @param blogs
+     */
+    private void queryBlogUsers(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, User> userMap = userService.listByIds(userIds).stream()
+                .collect(Collectors.toMap(User::getId, Function.identity()));
+        for (Blog blog : blogs) {
+            User user = userMap.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+    }
+
     /**
      * 查询博客的作者信息
      * @param blog
@@ -0,0 +1,726 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.entity.Blog;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Follow;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.service.IFeedService;
+import com.hmdp.service.IFollowService;
+import com.hmdp.utils.FeedMerger;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.connection.DefaultStringTuple;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 发布帖子后异步推送到粉丝的收件箱（写扩散）
+ * 代替在发布帖子的请求中查询所有粉丝、逐个ZADD：
+ * 1. 发布帖子时只将推送任务（帖子id、作者id、发布时间）加入stream.feed消息队列，立即返回
+ * 2. 后台消费者按tb_follow的id分页（WHERE follow_user_id = ? AND id > 上一页最后的id LIMIT n）读取粉丝，
+ *    每页使用一个pipeline批量ZADD收件箱，并在同一个pipeline的最后记录推送进度
+ * 3. 推送完成后确认任务；消费者宕机时任务留在pending-list中，由回收任务认领后从记录的进度继续推送
+ *    （重复推送的最后一页ZADD的score相同，不影响结果）
+ * 推送进度见fanoutProgress，任务队列的积压情况见fanoutStats
+ * 粉丝数达到hmdp.feed.hybrid.threshold的作者（大V）不再推送，只写入自己的发件箱outbox:作者id（读扩散），
+ * 粉丝读取关注流时将收件箱与所关注大V的发件箱多路归并（见queryFeed）
+ * 收件箱的大小：
+ * 1. 推送时每个收件箱只保留最新的hmdp.feed.inbox.max-size条
+ * 2. 读取关注流时记录用户的活跃时间（feed:active），推送时跳过不活跃（不在feed:active中）的粉丝
+ * 3. 后台任务定时回收超过idle-days没有读取关注流的用户的收件箱，这些用户下次读取关注流时从tb_follow、tb_blog重建收件箱
+ */
+@Slf4j
+@Service
+public class FeedServiceImpl implements IFeedService {
+    // 线程池 每个消费者一个线程
+    private static final ExecutorService FEED_FANOUT_EXECUTOR = Executors.newCachedThreadPool();
+
+    // 线程池 定时回收长时间未确认的推送任务
+    private static final ScheduledExecutorService FEED_RECOVERY_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    // 重建收件箱时每条语句查询的关注的人个数
+    private static final int REBUILD_BATCH_SIZE = 100;
+
+    // 重建收件箱时每个关注的人每次至少查询的帖子数
+    private static final int REBUILD_MIN_LIMIT = 10;
+
+    // 线程池 定时回收不活跃用户的收件箱
+    private static final ScheduledExecutorService INBOX_COMPACT_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    private static final DefaultRedisScript<Long> TRIM_SCRIPT;
+
+    static {
+        TRIM_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCRIPT.setLocation(new ClassPathResource("feedTrim.lua"));
+        TRIM_SCRIPT.setResultType(Long.class);
+    }
+
+    @Autowired
+    private IFollowService followService;
+
+    @Autowired
+    private BlogMapper blogMapper;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    /**
+     * 每个节点的消费者个数
+     */
+    @Value("${hmdp.feed.fanout.consumers:2}")
+    private int consumerCount;
+
+    /**
+     * 每页读取的粉丝个数（一个pipeline）
+     */
+    @Value("${hmdp.feed.fanout.page-size:1000}")
+    private int pageSize;
+
+    /**
+     * 任务队列为空时每次阻塞等待的时间（毫秒）
+     */
+    @Value("${hmdp.feed.fanout.block-ms:2000}")
+    private long blockMillis;
+
+    /**
+     * 每隔多长时间检查一次pending-list（毫秒）
+     */
+    @Value("${hmdp.feed.fanout.recovery-interval-ms:10000}")
+    private long recoveryIntervalMillis;
+
+    /**
+     * 任务超过多长时间没有推送进度，认为其消费者已经失效，由回收任务认领（毫秒）
+     */
+    @Value("${hmdp.feed.fanout.min-idle-ms:60000}")
+    private long minIdleMillis;
+
+    /**
+     * 任务最多投递的次数，超过后放弃
+     */
+    @Value("${hmdp.feed.fanout.max-deliveries:5}")
+    private int maxDeliveries;
+
+    /**
+     * 是否对大V使用读扩散
+     */
+    @Value("${hmdp.feed.hybrid.enabled:true}")
+    private boolean hybridEnabled;
+
+    /**
+     * 粉丝数达到多少的作者为大V
+     */
+    @Value("${hmdp.feed.hybrid.threshold:10000}")
+    private long bigVThreshold;
+
+    /**
+     * 每个收件箱最多保留的帖子数
+     */
+    @Value("${hmdp.feed.inbox.max-size:1000}")
+    private int inboxMaxSize;
+
+    /**
+     * 超过多少天没有读取关注流的用户为不活跃用户，回收其收件箱
+     */
+    @Value("${hmdp.feed.inbox.idle-days:7}")
+    private long idleDays;
+
+    /**
+     * 每隔多长时间回收一次不活跃用户的收件箱（毫秒）
+     */
+    @Value("${hmdp.feed.inbox.compact-interval-ms:600000}")
+    private long compactIntervalMillis;
+
+    /**
+     * 每次回收的用户个数（一个pipeline）
+     */
+    @Value("${hmdp.feed.inbox.compact-batch-size:500}")
+    private int compactBatchSize;
+
+    /**
+     * 本节点消费者名称的前缀（主机名-进程id-）
+     */
+    private String consumerPrefix;
+
+    /**
+     * 推送统计
+     */
+    private final LongAdder published = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder pages = new LongAdder();
+    private final LongAdder pageMillis = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder claimed = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+    private final LongAdder outboxed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder rebuilt = new LongAdder();
+    private final LongAdder trimmed = new LongAdder();
+
+    /**
+     * 1. 创建消费组（任务队列不存在时一并创建）
+     * 2. 启动consumerCount个消费者
+     * 3. 启动pending-list回收任务（同时裁剪任务队列中已经完成的任务）
+     * 4. 启动收件箱回收任务
+     */
+    @PostConstruct
+    private void init() {
+        // 1. XGROUP CREATE stream.feed g1 0 MKSTREAM
+        try {
+            redisTemplate.execute((RedisCallback<String>) connection -> ((StringRedisConnection) connection)
+                    .xGroupCreate(FEED_FANOUT_STREAM_KEY, ReadOffset.from("0"), FEED_FANOUT_GROUP, true));
+        } catch (Exception e) {
+            // 消费组已经存在（BUSYGROUP）
+            log.debug("创建消费组失败：{}", e.getMessage());
+        }
+        // 2. 启动消费者
+        String[] jvmName = ManagementFactory.getRuntimeMXBean().getName().split("@");
+        consumerPrefix = (jvmName.length > 1 ? jvmName[1] : "localhost") + "-" + jvmName[0] + "-";
+        for (int i = 0; i < consumerCount; i++) {
+            FEED_FANOUT_EXECUTOR.submit(new FanoutHandler(consumerPrefix + i));
+        }
+        // 3. 启动pending-list回收任务
+        FEED_RECOVERY_EXECUTOR.scheduleWithFixedDelay(this::recoverPendingTasks,
+                recoveryIntervalMillis, recoveryIntervalMillis, TimeUnit.MILLISECONDS);
+        // 4. 启动收件箱回收任务
+        INBOX_COMPACT_EXECUTOR.scheduleWithFixedDelay(this::compactInboxes,
+                compactIntervalMillis, compactIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 发布帖子
+     * 1. 作者是大V：ZADD outbox:作者id 发布时间 帖子id，记录推送进度为已完成
+     * 2. 否则提交推送任务 XADD stream.feed * blogId id authorId id ts 发布时间
+     */
+    @Override
+    public void publish(Blog blog) {
+        String ts = String.valueOf(System.currentTimeMillis());
+        String score = String.valueOf(scoreOf(blog));
+        // 1. 大V只写发件箱
+        if (hybridEnabled) {
+            long followers = countBigVFollowers(blog.getUserId());
+            if (followers >= 0) {
+                String blogId = blog.getId().toString();
+                String progressKey = FEED_FANOUT_KEY + blogId;
+                Map<String, String> progress = new HashMap<>();
+                progress.put("mode", "pull");
+                progress.put("followers", String.valueOf(followers));
+                progress.put("delivered", "0");
+                progress.put("ts", ts);
+                progress.put("done", ts);
+                redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    conn.zAdd(OUTBOX_KEY + blog.getUserId(), Double.parseDouble(score), blogId);
+                    conn.hMSet(progressKey, progress);
+                    conn.expire(progressKey, TimeUnit.DAYS.toSeconds(FEED_FANOUT_TTL));
+                    return null;
+                });
+                outboxed.increment();
+                return;
+            }
+        }
+        // 2. 提交推送任务
+        Map<String, String> task = new HashMap<>();
+        task.put("blogId", blog.getId().toString());
+        task.put("authorId", blog.getUserId().toString());
+        task.put("ts", ts);
+        task.put("score", score);
+        redisTemplate.opsForStream().add(FEED_FANOUT_STREAM_KEY, task);
+        published.increment();
+    }
+
+    /**
+     * 帖子在收件箱、发件箱中的score：帖子的create_time（毫秒）
+     * 推送、发件箱与从数据库重建的收件箱使用相同的score，同一篇帖子同时出现在重建的收件箱和大V的发件箱中时，
+     * 两者的score和value都相同，在归并结果中相邻，由FeedMerger去重
+     */
+    private static long scoreOf(Blog blog) {
+        if (blog.getCreateTime() == null) {
+            return System.currentTimeMillis();
+        }
+        return blog.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 判断作者是否为大V
+     * 作者一旦有了发件箱就一直按大V处理（粉丝减少到阈值以下也不再推送），
+     * 否则发件箱中已有的帖子会因为读取时不再拉取该作者的发件箱而从粉丝的关注流中消失
+     * @param authorId 作者id
+     * @return 大V返回粉丝数（已经是大V时不再统计，返回0），否则返回-1
+     */
+    private long countBigVFollowers(Long authorId) {
+        if (Boolean.TRUE.equals(redisTemplate.opsForSet().isMember(FEED_BIG_V_KEY, authorId.toString()))) {
+            return 0;
+        }
+        // 走tb_follow的follow_user_id索引
+        long followers = followService.query().eq("follow_user_id", authorId).count();
+        if (followers < bigVThreshold) {
+            return -1;
+        }
+        redisTemplate.opsForSet().add(FEED_BIG_V_KEY, authorId.toString());
+        log.info("作者{}的粉丝数{}达到{}，之后发布的帖子只写入发件箱", authorId, followers, bigVThreshold);
+        return followers;
+    }
+
+    /**
+     * 滚动分页查询关注流：收件箱 + 所关注大V的发件箱
+     * 0. 记录用户的活跃时间，用户原来不活跃时（收件箱已经被回收或者从未推送过）先重建收件箱，
+     *    重建失败时从feed:active中移除用户，下次查询重新重建
+     *    （先ZADD再重建：重建期间推送的帖子会写入收件箱而不是被当作不活跃用户跳过）
+     * 1. SINTER followee:用户id feed:bigv 得到关注的大V
+     * 2. 一个pipeline中对收件箱和每个大V的发件箱执行ZREVRANGEBYSCORE key 0 max WITHSCORES LIMIT 0 offset+count
+     * 3. 多路归并，跳过offset条后取count条
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<ZSetOperations.TypedTuple<String>> queryFeed(Long userId, long max, int offset, int count) {
+        // 0. ZADD feed:active 当前时间 用户id，新加入的用户重建收件箱
+        Boolean inactive = redisTemplate.opsForZSet().add(FEED_ACTIVE_KEY, userId.toString(), System.currentTimeMillis());
+        if (Boolean.TRUE.equals(inactive)) {
+            try {
+                rebuildInbox(userId);
+            } catch (RuntimeException e) {
+                redisTemplate.opsForZSet().remove(FEED_ACTIVE_KEY, userId.toString());
+                throw e;
+            }
+        }
+        // 1. 关注的大V
+        List<String> keys = new ArrayList<>();
+        keys.add(INBOX_KEY + userId);
+        Set<String> bigVs = redisTemplate.opsForSet().intersect(USER_FOLLOWEE + userId, FEED_BIG_V_KEY);
+        if (bigVs != null) {
+            bigVs.forEach(id -> keys.add(OUTBOX_KEY + id));
+        }
+        // 没有关注大V时与原来一样只查询收件箱
+        if (keys.size() == 1) {
+            Set<ZSetOperations.TypedTuple<String>> inbox = redisTemplate.opsForZSet()
+                    .reverseRangeByScoreWithScores(keys.get(0), 0, max, offset, count);
+            return inbox == null ? Collections.emptyList() : new ArrayList<>(inbox);
+        }
+        // 2. 读取每一路的前offset+count条
+        List<Object> sources = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String key : keys) {
+                conn.zRevRangeByScoreWithScores(key, 0, max, 0, offset + count);
+            }
+            return null;
+        });
+        // 3. 多路归并
+        List<Set<ZSetOperations.TypedTuple<String>>> tuples = new ArrayList<>(sources.size());
+        for (Object source : sources) {
+            tuples.add((Set<ZSetOperations.TypedTuple<String>>) source);
+        }
+        return FeedMerger.merge(tuples, offset, count);
+    }
+
+    /**
+     * 从数据库重建收件箱
+     * 1. 查询用户关注的人
+     * 2. 每REBUILD_BATCH_SIZE个关注的人一条语句，每个人各自查询最新的limit篇帖子再UNION ALL
+     *    （每个子查询都是(user_id, create_time)索引上的一段倒序扫描，不需要对所有帖子排序），
+     *    在内存中合并后保留最新的max-size篇：
+     *    2.1 limit按关注人数平均分配（每人约2 * max-size / 关注人数篇，最少REBUILD_MIN_LIMIT篇），总行数约为2 * max-size
+     *    2.2 已经凑满max-size篇后，最旧一篇的create_time作为之后查询的下界，更旧的帖子不再返回
+     *    2.3 返回了limit篇的人可能还有更多帖子：最旧一篇仍然新于下界时，从该时间继续向前查询下一页，直到没有需要继续查询的人
+     * 3. ZADD inbox:用户id create_time 帖子id，并裁剪到max-size条
+     *    （重建期间推送的帖子会一并保留；大V的帖子与发件箱重复时由归并去重）
+     * @param userId 用户id
+     */
+    private void rebuildInbox(Long userId) {
+        // 1. 关注的人
+        List<Object> followeeIds = followService.listObjs(new QueryWrapper<Follow>()
+                .select("follow_user_id").eq("user_id", userId));
+        if (followeeIds.isEmpty()) {
+            return;
+        }
+        // 2. 关注的人最新的帖子
+        int limit = Math.min(inboxMaxSize, Math.max(REBUILD_MIN_LIMIT, 2 * inboxMaxSize / followeeIds.size() + 1));
+        // 需要查询的人 --> 该人帖子的create_time上界（null表示从最新的帖子开始）
+        Map<Long, LocalDateTime> pending = new LinkedHashMap<>();
+        followeeIds.forEach(id -> pending.put(Long.valueOf(id.toString()), null));
+        Map<Long, Blog> merged = new HashMap<>();
+        List<Blog> blogs = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            Map<Long, LocalDateTime> next = new LinkedHashMap<>();
+            List<Long> users = new ArrayList<>(pending.keySet());
+            for (int i = 0; i < users.size(); i += REBUILD_BATCH_SIZE) {
+                Map<Long, LocalDateTime> batch = new LinkedHashMap<>();
+                users.subList(i, Math.min(i + REBUILD_BATCH_SIZE, users.size())).forEach(id -> batch.put(id, pending.get(id)));
+                // 2.2 凑满后以最旧一篇的时间作为下界
+                LocalDateTime since = blogs.size() >= inboxMaxSize ? blogs.get(blogs.size() - 1).getCreateTime() : null;
+                Map<Long, List<Blog>> byUser = blogMapper.selectLatestByUsers(batch, since, limit).stream()
+                        .collect(Collectors.groupingBy(Blog::getUserId));
+                byUser.forEach((followeeId, rows) -> {
+                    boolean added = false;
+                    for (Blog blog : rows) {
+                        added |= merged.putIfAbsent(blog.getId(), blog) == null;
+                    }
+                    // 2.3 返回了limit篇且有新的帖子，可能还有更旧的帖子
+                    if (rows.size() >= limit && added) {
+                        next.put(followeeId, rows.stream().map(Blog::getCreateTime).min(Comparator.naturalOrder()).get());
+                    }
+                });
+                blogs = new ArrayList<>(merged.values());
+                blogs.sort(Comparator.comparing(Blog::getCreateTime).reversed());
+                if (blogs.size() > inboxMaxSize) {
+                    blogs.subList(inboxMaxSize, blogs.size()).forEach(blog -> merged.remove(blog.getId()));
+                    blogs.subList(inboxMaxSize, blogs.size()).clear();
+                }
+            }
+            // 只有最旧一篇仍然新于下界的人才需要继续查询
+            LocalDateTime cutoff = blogs.size() >= inboxMaxSize ? blogs.get(blogs.size() - 1).getCreateTime() : null;
+            pending.clear();
+            next.forEach((followeeId, before) -> {
+                if (cutoff == null || before.isAfter(cutoff)) {
+                    pending.put(followeeId, before);
+                }
+            });
+        }
+        if (blogs.isEmpty()) {
+            return;
+        }
+        // 3. 写入收件箱
+        String key = INBOX_KEY + userId;
+        Set<StringRedisConnection.StringTuple> tuples = new HashSet<>(blogs.size());
+        for (Blog blog : blogs) {
+            tuples.add(new DefaultStringTuple(blog.getId().toString(), scoreOf(blog)));
+        }
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.zAdd(key, tuples);
+            conn.zRemRange(key, 0, -inboxMaxSize - 1);
+            return null;
+        });
+        rebuilt.increment();
+    }
+
+    /**
+     * 回收不活跃用户的收件箱
+     * 1. ZRANGEBYSCORE feed:active 0 当前时间-idle-days LIMIT 0 batch
+     * 2. 一个pipeline中删除这些用户的收件箱，并将其移出feed:active（下次读取关注流时重建）
+     * 3. 重复直到没有不活跃用户
+     */
+    private void compactInboxes() {
+        try {
+            long deadline = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(idleDays);
+            while (true) {
+                // 1. 不活跃用户
+                Set<String> userIds = redisTemplate.opsForZSet().rangeByScore(FEED_ACTIVE_KEY, 0, deadline, 0, compactBatchSize);
+                if (userIds == null || userIds.isEmpty()) {
+                    return;
+                }
+                // 2. 删除收件箱
+                redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    for (String userId : userIds) {
+                        conn.del(INBOX_KEY + userId);
+                    }
+                    conn.zRem(FEED_ACTIVE_KEY, userIds.toArray(new String[0]));
+                    return null;
+                });
+                evicted.add(userIds.size());
+                log.debug("回收{}个不活跃用户的收件箱", userIds.size());
+            }
+        } catch (Exception e) {
+            log.error("回收收件箱失败", e);
+        }
+    }
+
+    /**
+     * 推送任务
+     * 1. 从任务队列获取一个任务
+     * 2. 分页推送到所有粉丝的收件箱
+     * 3. 确认任务
+     */
+    private class FanoutHandler implements Runnable {
+        /**
+         * 消费者名称
+         */
+        private final String consumer;
+
+        FanoutHandler(String consumer) {
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    // 1. XREADGROUP GROUP g1 consumer COUNT 1 BLOCK 2000 STREAMS stream.feed >
+                    List<MapRecord<String, Object, Object>> list = redisTemplate.opsForStream().read(Consumer.from(FEED_FANOUT_GROUP, consumer),
+                            StreamReadOptions.empty().count(1).block(Duration.ofMillis(blockMillis)),
+                            StreamOffset.create(FEED_FANOUT_STREAM_KEY, ReadOffset.lastConsumed()));
+                    if (list == null || list.isEmpty()) {
+                        continue;
+                    }
+                    // 2. 推送 3. 确认
+                    fanout(list.get(0), consumer);
+                } catch (Exception e) {
+                    // 未确认的任务留在pending-list中，由回收任务从记录的进度继续推送
+                    log.error("推送帖子出现异常：" + e.getMessage());
+                    ThreadUtil.sleep(blockMillis);
+                }
+            }
+        }
+    }
+
+    /**
+     * 执行一个推送任务
+     * 1. 读取推送进度（任务被回收后从上一次推送到的位置继续），第一次推送时记录粉丝总数
+     * 2. 分页读取粉丝，先查询这一页粉丝的活跃时间，再用一个pipeline：
+     *      2.1 ZADD inbox:粉丝id 发布时间 帖子id（跳过不活跃的粉丝），并裁剪收件箱到max-size条
+     *      2.2 记录推送进度
+     *      2.3 将任务重新认领给自己（XCLAIM JUSTID），重置任务的空闲时间（避免推送粉丝很多的帖子时被回收任务认领）
+     * 3. 标记推送完成，确认任务
+     * @param record 任务
+     * @param consumer 消费者名称
+     */
+    private void fanout(MapRecord<String, ?, ?> record, String consumer) {
+        Map<?, ?> task = record.getValue();
+        Long authorId = Long.valueOf(task.get("authorId").toString());
+        String blogId = task.get("blogId").toString();
+        // 收件箱的score为帖子的create_time（没有score的旧任务使用提交时间）
+        double score = Double.parseDouble((task.containsKey("score") ? task.get("score") : task.get("ts")).toString());
+        String progressKey = FEED_FANOUT_KEY + blogId;
+        // 1. 读取推送进度
+        List<Object> progress = redisTemplate.opsForHash().multiGet(progressKey, Arrays.asList("cursor", "delivered"));
+        long cursor = progress.get(0) == null ? 0 : Long.parseLong(progress.get(0).toString());
+        long count = progress.get(1) == null ? 0 : Long.parseLong(progress.get(1).toString());
+        if (progress.get(0) == null) {
+            Map<String, String> init = new HashMap<>();
+            init.put("followers", String.valueOf(followService.query().eq("follow_user_id", authorId).count()));
+            init.put("ts", task.get("ts").toString());
+            redisTemplate.opsForHash().putAll(progressKey, init);
+        }
+        // 2. 分页推送
+        while (true) {
+            long begin = System.currentTimeMillis();
+            List<Follow> page = followService.query().select("id", "user_id")
+                    .eq("follow_user_id", authorId).gt("id", cursor)
+                    .orderByAsc("id").last("limit " + pageSize).list();
+            if (page.isEmpty()) {
+                break;
+            }
+            cursor = page.get(page.size() - 1).getId();
+            count += page.size();
+            Map<String, String> checkpoint = new HashMap<>();
+            checkpoint.put("cursor", String.valueOf(cursor));
+            checkpoint.put("delivered", String.valueOf(count));
+            // 粉丝的活跃时间，不活跃的粉丝没有收件箱，下次读取关注流时重建
+            List<Object> lastActive = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Follow follow : page) {
+                    conn.zScore(FEED_ACTIVE_KEY, follow.getUserId().toString());
+                }
+                return null;
+            });
+            List<String> inboxes = new ArrayList<>(page.size());
+            for (int i = 0; i < page.size(); i++) {
+                if (lastActive.get(i) != null) {
+                    inboxes.add(INBOX_KEY + page.get(i).getUserId());
+                }
+            }
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                // 2.1 推送到收件箱，并裁剪到max-size条
+                for (String inbox : inboxes) {
+                    conn.zAdd(inbox, score, blogId);
+                    conn.zRemRange(inbox, 0, -inboxMaxSize - 1);
+                }
+                // 2.2 记录推送进度
+                conn.hMSet(progressKey, checkpoint);
+                // 2.3 重置任务的空闲时间（JUSTID不增加投递次数，否则推送页数较多的任务会被回收任务当作多次投递失败而放弃）
+                conn.xClaimJustId(FEED_FANOUT_STREAM_KEY, FEED_FANOUT_GROUP, consumer,
+                        RedisStreamCommands.XClaimOptions.minIdle(Duration.ZERO).ids(record.getId()));
+                return null;
+            });
+            pages.increment();
+            pageMillis.add(System.currentTimeMillis() - begin);
+            delivered.add(inboxes.size());
+            skipped.add(page.size() - inboxes.size());
+            if (page.size() < pageSize) {
+                break;
+            }
+        }
+        // 3. 标记推送完成，确认任务
+        redisTemplate.opsForHash().put(progressKey, "done", String.valueOf(System.currentTimeMillis()));
+        redisTemplate.expire(progressKey, FEED_FANOUT_TTL, TimeUnit.DAYS);
+        redisTemplate.opsForStream().acknowledge(FEED_FANOUT_STREAM_KEY, FEED_FANOUT_GROUP, record.getId());
+        completed.increment();
+    }
+
+    /**
+     * 回收pending-list中的推送任务
+     * 1. XPENDING 检查消费组中已读取未确认的任务
+     * 2. 超过min-idle没有推送进度的任务：
+     *      2.1 投递次数达到上限的，放弃并确认
+     *      2.2 其余的，XCLAIM 认领给本节点的回收消费者，从记录的进度继续推送
+     * 3. 裁剪任务队列中已经完成的任务
+     */
+    private void recoverPendingTasks() {
+        try {
+            PendingMessages pending = redisTemplate.opsForStream().pending(FEED_FANOUT_STREAM_KEY, FEED_FANOUT_GROUP,
+                    Range.unbounded(), 100);
+            String recoveryConsumer = consumerPrefix + "recovery";
+            for (PendingMessage message : pending) {
+                if (message.getElapsedTimeSinceLastDelivery().toMillis() < minIdleMillis) {
+                    continue;
+                }
+                // 2.1 放弃
+                if (message.getTotalDeliveryCount() >= maxDeliveries) {
+                    redisTemplate.opsForStream().acknowledge(FEED_FANOUT_STREAM_KEY, FEED_FANOUT_GROUP, message.getId());
+                    abandoned.increment();
+                    log.error("推送任务{}投递{}次仍未成功，已放弃", message.getIdAsString(), message.getTotalDeliveryCount());
+                    continue;
+                }
+                // 2.2 XCLAIM stream.feed g1 recovery-consumer min-idle id（其它节点可能同时认领，min-idle保证只有一个成功）
+                List<StringRecord> records = redisTemplate.execute((RedisCallback<List<StringRecord>>) connection ->
+                        ((StringRedisConnection) connection).xClaim(FEED_FANOUT_STREAM_KEY, FEED_FANOUT_GROUP,
+                                recoveryConsumer, Duration.ofMillis(minIdleMillis), message.getId()));
+                if (records == null) {
+                    continue;
+                }
+                for (StringRecord record : records) {
+                    // 已经被删除的任务返回null
+                    if (record != null) {
+                        claimed.increment();
+                        log.info("回收未完成的推送任务：{}", record.getValue());
+                        fanout(record, recoveryConsumer);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("回收未完成的推送任务失败", e);
+        }
+        trimCompletedTasks();
+    }
+
+    /**
+     * 裁剪任务队列：XTRIM stream.feed MINID ~ 最早的未完成任务的id
+     * 1. 先读取消费组的last-delivered-id，再读取pending-list中最小的id
+     *    （两次读取之间新投递的任务id都大于last-delivered-id，不会被裁剪）
+     * 2. 比两者都小的任务都已经确认，可以删除；~表示只删除完整的宏节点，可能保留少量已完成的任务
+     */
+    private void trimCompletedTasks() {
+        try {
+            // 1. 最早的未完成任务
+            String lastDeliveredId = redisTemplate.opsForStream().groups(FEED_FANOUT_STREAM_KEY).stream()
+                    .filter(g -> FEED_FANOUT_GROUP.equals(g.groupName()))
+                    .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                    .findFirst().orElse(null);
+            if (lastDeliveredId == null) {
+                return;
+            }
+            RecordId last = RecordId.of(lastDeliveredId);
+            RecordId minId = RecordId.of(last.getTimestamp() + "-" + (last.getSequence() + 1));
+            PendingMessagesSummary summary = redisTemplate.opsForStream().pending(FEED_FANOUT_STREAM_KEY, FEED_FANOUT_GROUP);
+            if (summary != null && summary.getTotalPendingMessages() > 0) {
+                RecordId pendingId = RecordId.of(summary.minMessageId());
+                if (pendingId.getTimestamp() < minId.getTimestamp() || (pendingId.getTimestamp() == minId.getTimestamp()
+                        && pendingId.getSequence() < minId.getSequence())) {
+                    minId = pendingId;
+                }
+            }
+            // 2. XTRIM stream.feed MINID ~ id（Redis 6.2+）
+            Long count = redisTemplate.execute(TRIM_SCRIPT, Collections.singletonList(FEED_FANOUT_STREAM_KEY), minId.getValue());
+            if (count != null) {
+                trimmed.add(count);
+            }
+        } catch (Exception e) {
+            log.error("裁剪推送任务队列失败", e);
+        }
+    }
+
+    /**
+     * @return {mode: push-推送到粉丝收件箱/pull-只写入发件箱, followers: 粉丝总数, delivered: 已推送的粉丝数, done: 是否完成, lagMillis: 发布到完成（或当前）的时间}，
+     * 任务还没有开始时只有done
+     */
+    @Override
+    public Map<String, Object> fanoutProgress(Long blogId) {
+        Map<Object, Object> hash = redisTemplate.opsForHash().entries(FEED_FANOUT_KEY + blogId);
+        Map<String, Object> progress = new LinkedHashMap<>();
+        if (hash.isEmpty()) {
+            progress.put("done", false);
+            return progress;
+        }
+        progress.put("mode", hash.getOrDefault("mode", "push"));
+        progress.put("followers", Long.valueOf(hash.getOrDefault("followers", "0").toString()));
+        progress.put("delivered", Long.valueOf(hash.getOrDefault("delivered", "0").toString()));
+        progress.put("done", hash.containsKey("done"));
+        long end = hash.containsKey("done") ? Long.parseLong(hash.get("done").toString()) : System.currentTimeMillis();
+        progress.put("lagMillis", end - Long.parseLong(hash.get("ts").toString()));
+        return progress;
+    }
+
+    /**
+     * @return {consumers: 本节点的消费者个数, published: 提交的任务数, completed: 完成的任务数, delivered: 推送的收件箱个数,
+     * pages: 推送的页数, avgPageMillis: 平均每页的推送耗时, claimed: 回收的任务数, abandoned: 放弃的任务数,
+     * outboxed: 只写入发件箱的帖子数,
+     * skipped: 跳过的不活跃粉丝数, activeUsers: 有收件箱的活跃用户数, evicted: 回收的收件箱个数, rebuilt: 重建的收件箱个数,
+     * trimmed: 从任务队列中删除的已完成任务数, length: 任务队列的长度,
+     * pending: 已读取未完成的任务数, lagMillis: 最早的未完成任务已经等待的时间}
+     */
+    @Override
+    public Map<String, Object> fanoutStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long pageCount = pages.sum();
+        stats.put("consumers", consumerCount);
+        stats.put("published", published.sum());
+        stats.put("completed", completed.sum());
+        stats.put("delivered", delivered.sum());
+        stats.put("pages", pageCount);
+        stats.put("avgPageMillis", pageCount == 0 ? 0 : pageMillis.sum() / pageCount);
+        stats.put("claimed", claimed.sum());
+        stats.put("abandoned", abandoned.sum());
+        stats.put("outboxed", outboxed.sum());
+        stats.put("skipped", skipped.sum());
+        stats.put("activeUsers", redisTemplate.opsForZSet().zCard(FEED_ACTIVE_KEY));
+        stats.put("evicted", evicted.sum());
+        stats.put("rebuilt", rebuilt.sum());
+        stats.put("trimmed", trimmed.sum());
+        stats.put("length", redisTemplate.opsForStream().size(FEED_FANOUT_STREAM_KEY));
+        // 最早的未完成任务：pending-list中最小的id，没有时为第一个未投递的任务
+        PendingMessagesSummary summary = redisTemplate.opsForStream().pending(FEED_FANOUT_STREAM_KEY, FEED_FANOUT_GROUP);
+        stats.put("pending", summary == null ? 0 : summary.getTotalPendingMessages());
+        String oldest = summary == null || summary.getTotalPendingMessages() == 0 ? null : summary.minMessageId();
+        if (oldest == null) {
+            String lastDeliveredId = redisTemplate.opsForStream().groups(FEED_FANOUT_STREAM_KEY).stream()
+                    .filter(g -> FEED_FANOUT_GROUP.equals(g.groupName()))
+                    .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                    .findFirst().orElse("0-0");
+            RecordId last = RecordId.of(lastDeliveredId);
+            List<MapRecord<String, Object, Object>> undelivered = redisTemplate.opsForStream().range(FEED_FANOUT_STREAM_KEY,
+                    Range.closed(last.getTimestamp() + "-" + (last.getSequence() + 1), "+"),
+                    RedisZSetCommands.Limit.limit().count(1));
+            oldest = undelivered == null || undelivered.isEmpty() ? null : undelivered.get(0).getId().getValue();
+        }
+        stats.put("lagMillis", oldest == null ? 0 : System.currentTimeMillis() - RecordId.of(oldest).getTimestamp());
+        return stats;
+    }
+}
@@ -1,18 +1,19 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.RandomUtil;
-import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BloomFilter;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HashCodec;
 import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.TtlRefresher;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.geo.*;
 import org.springframework.data.redis.connection.RedisGeoCommands;
@@ -27,6 +28,7 @@ import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -42,11 +44,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Autowired
     private CacheClient cacheClient;
 
+    @Autowired
+    private BloomFilter bloomFilter;
+
+    @Autowired
+    private TtlRefresher ttlRefresher;
+
 
     @Override
     public Shop queryById(Long id) {
+        // 使用Redis工具类解决缓存穿透（开启本地缓存后热点商铺直接从JVM堆内存返回）
+        return cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
         // 测试使用存储null值的方式解决缓存穿透问题
-        return queryWithPassThrough(id);
+        // return queryWithPassThrough(id);
 
         // 测试使用互斥锁方式解决缓存击穿问题
         // return queryWithMutex(id);
@@ -54,9 +65,6 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 测试使用逻辑过期方式解决缓存击穿问题
         // return queryWithLogicalExpire(id);
 
-        // 测试Redis工具类解决缓存穿透
-        // return cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
-
         // 测试Redis工具类解决缓存击穿
         // return cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, LOCK_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
         // return cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, LOCK_SHOP_KEY, id, Shop.class, this::getById, 10L, TimeUnit.SECONDS);
@@ -65,6 +73,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
     /**
      * 根据id查询商户信息（已解决缓存穿透问题）
+     * 0. 使用布隆过滤器判断商铺是否存在，一定不存在则直接返回空值
      * 1. 从Redis查询商铺缓存
      *    命中 --> 检查是否为空值
      *                  是 --> 返回空值
@@ -79,6 +88,10 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * @return
      */
     public Shop queryWithPassThrough(Long id) {
+        // 0. 布隆过滤器判断一定不存在 不再查询Redis和数据库
+        if (!bloomFilter.mightContain(BLOOM_SHOP, id)) {
+            return null;
+        }
         String key = CACHE_SHOP_KEY + id;
         // 1. 从Redis查询商铺缓存
         HashOperations<String, Object, Object> ops = redisTemplate.opsForHash();
@@ -89,15 +102,15 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             // 检查是否为空值
             // 是空值 则返回null
             if (shopMap.size() == 1 && shopMap.containsKey("")) {
-                // 更新过期时间
-                redisTemplate.expire(key, CACHE_NULL_TTL, TimeUnit.MINUTES);
+                // 更新过期时间（异步批量执行）
+                ttlRefresher.touch(key, CACHE_NULL_TTL, TimeUnit.MINUTES);
                 return null;
             } else {
                 // 到这说明不是空值 命中 直接返回
                 // 将map转化为bean
-                Shop shop = BeanUtil.fillBeanWithMap(shopMap, new Shop(), false);
-                // 刷新在redis的过期时间
-                redisTemplate.expire(key, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                Shop shop = HashCodec.of(Shop.class).decode(shopMap);
+                // 刷新在redis的过期时间（异步批量执行）
+                ttlRefresher.touch(key, CACHE_SHOP_TTL, TimeUnit.MINUTES);
                 return shop;
             }
         }
@@ -116,16 +129,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //  如果命中 继续往下
 
         // 3. 将商铺数据写入Redis
-        Map<String, Object> map = BeanUtil.beanToMap(shop, new HashMap<>(),
-                CopyOptions.create()
-                        .setIgnoreNullValue(true)
-                        .setFieldValueEditor((fieldName, fieldValue) -> {
-                            if (fieldValue != null) {
-                                return fieldValue.toString();
-                            } else {
-                                return "";
-                            }
-                        }));
+        Map<String, String> map = HashCodec.of(Shop.class).encode(shop);
         ops.putAll(key, map);
         // 设置过期时间 避免一些不常被访问的商户长期占用内存空间
         redisTemplate.expire(key, CACHE_SHOP_TTL, TimeUnit.MINUTES);
@@ -138,95 +142,15 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * 缓存穿透：使用在缓存中存null值的方式解决
      * 缓存雪崩：在将数据存入redis时，TTL添加随机数的方式解决
      * 缓存击穿：互斥锁的方式解决
-     * 1. 从Redis查询商铺缓存
-     *    命中 --> 检查是否为空值
-     *                  是 --> 返回空值
-     *                不是 --> 返回商铺信息
-     *    未命中 --> 2. 尝试获取互斥锁 是否获取成功
-     *                 不是 --> 休眠 重新回到1
-     *                  是  --> 继续往下
-     * 3. 根据id从数据库查询商户信息
-     *    未命中 --> 将空值写入Redis
-     *    命中 --> 将商铺数据写入Redis（写入Redis时，TTL添加随机数，避免缓存雪崩）
-     * 4. 释放互斥锁
-     * 5. 返回空值/商铺信息
+     * 同一个JVM内对同一个商铺的并发未命中只查询一次数据库（SingleFlight），多个节点之间使用Redis互斥锁，
+     * 获取锁失败的节点直接查询数据库而不是休眠重试，详见CacheClient.queryWithMutex
      * @param id
      * @return
      */
     public Shop queryWithMutex(Long id) {
-
-        String key = CACHE_SHOP_KEY + id;
-        // 1. 从Redis查询商铺缓存
-        HashOperations<String, Object, Object> ops = redisTemplate.opsForHash();
-        Map<Object, Object> shopMap = ops.entries(key);  // 如果查询不到key对应的val，ops.entries会返回一个空的Map，而不是null
-
-        // 命中
-        if (!shopMap.isEmpty()) {
-            // 检查是否为空值
-            // 是空值 则返回null
-            if (shopMap.size() == 1 && shopMap.containsKey("")) {
-                // 更新过期时间
-                redisTemplate.expire(key, CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            } else {
-                // 到这说明不是空值 命中 直接返回
-                // 将map转化为bean
-                Shop shop = BeanUtil.fillBeanWithMap(shopMap, new Shop(), false);
-                // 刷新在redis的过期时间
-                redisTemplate.expire(key, CACHE_SHOP_TTL, TimeUnit.MINUTES);
-                return shop;
-            }
-        }
-        // 如果未命中 继续往下
-
-        String lockKey = LOCK_SHOP_KEY + id;
-        Shop shop = null;
-        try {
-            // 2. 尝试获取互斥锁
-            if (!tryLock(lockKey)) {
-                // 2.1 获取失败 休眠 回到步骤1
-                Thread.sleep(50);
-                return queryById(id);
-            }
-
-            // 2.2 获取成功 继续往下
-
-            // 3. 根据id从数据库查询商户信息
-            shop = getById(id);
-            // 模拟重建缓存的延时
-            Thread.sleep(200);
-
-            //  如果未命中 将空值写入Redis 返回404
-            if (shop == null) {
-                // 存入一个空值
-                ops.put(key,"", "");
-                // 设置空值的过期时间为2分钟
-                redisTemplate.expire(key, CACHE_NULL_TTL, TimeUnit.MINUTES);
-            } else {
-                //  如果命中 继续往下
-                // 3. 将商铺数据写入Redis
-                Map<String, Object> map = BeanUtil.beanToMap(shop, new HashMap<>(),
-                        CopyOptions.create()
-                                .setIgnoreNullValue(true)
-                                .setFieldValueEditor((fieldName, fieldValue) -> {
-                                    if (fieldValue != null) {
-                                        return fieldValue.toString();
-                                    } else {
-                                        return "";
-                                    }
-                                }));
-                ops.putAll(key, map);
-                // 设置过期时间 避免一些不常被访问的商户长期占用内存空间
-                redisTemplate.expire(key, CACHE_SHOP_TTL + RandomUtil.randomInt(0, 5), TimeUnit.MINUTES);
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 4. 释放互斥锁
-            unlock(lockKey);
-        }
-        // 5. 返回商铺信息
-        return shop;
+        // 写入Redis时TTL添加随机数，避免缓存雪崩
+        long ttl = CACHE_SHOP_TTL + RandomUtil.randomInt(0, 5);
+        return cacheClient.queryWithMutex(CACHE_SHOP_KEY, LOCK_SHOP_KEY, id, Shop.class, this::getById, ttl, TimeUnit.MINUTES);
     }
 
     /**
@@ -326,13 +250,29 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         redisTemplate.delete(key);
     }
 
+    /**
+     * 新增店铺信息
+     * 1. 写入数据库
+     * 2. 将店铺id加入布隆过滤器（否则新店铺会被布隆过滤器拦截）
+     * @param shop 店铺对象
+     * @return 是否新增成功
+     */
+    @Override
+    public boolean save(Shop shop) {
+        boolean isSuccess = super.save(shop);
+        if (isSuccess) {
+            bloomFilter.add(BLOOM_SHOP, shop.getId());
+        }
+        return isSuccess;
+    }
+
     /**
      * 更新店铺信息
      * 1. 校验id是否为空
      *      是 --> 报错
      *      否 --> 继续往下
      * 2. 更新数据库
-     * 3. 删除缓存中店铺的信息
+     * 3. 删除缓存中店铺的信息（同时清除所有节点的本地缓存）
      * 4. 返回结果
      * （由于更新数据库和删除缓存两件事需要保证原子性，因此使用事务）
      * @param shop 店铺对象
@@ -349,7 +289,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         updateById(shop);
         // 3. 删除缓存中店铺的信息
         String key = CACHE_SHOP_KEY + id;
-        redisTemplate.delete(key);
+        cacheClient.delete(key);
         // 4. 返回结果
         return Result.ok();
     }
@@ -365,6 +305,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * 5. 截取[from, end]部分的店铺信息
      * 6. 填充id列表 填充shopId与[x, y]之间距离的Map关系
      * 7. 根据id列表批量查询店铺信息（注意id的顺序要和GEOSEARCH得到的结果顺序一致）
+     *    优先从缓存批量读取（一次pipeline），只有未命中的店铺才通过一次IN查询从数据库读取
      * 8. 根据补充店铺的distance信息
      * 9. 返回店铺信息
      * @param typeId 店铺类型id
@@ -419,11 +360,16 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return Result.ok(Collections.emptyList());
         }
         // 7. 根据id列表批量查询店铺信息（注意id的顺序要和GEOSEARCH得到的结果顺序一致）
-        String idStrs = StrUtil.join(", ", shopIds);
-        List<Shop> shops = query().in("id", shopIds).last("ORDER BY FIELD(id, " + idStrs + ")").list();
+        Map<Long, Shop> shopMap = cacheClient.queryBatchWithPassThrough(CACHE_SHOP_KEY, shopIds, Shop.class,
+                ids -> listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, shop -> shop)),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
         // 8. 根据补充店铺的distance信息
-        for (Shop shop : shops) {
+        List<Shop> shops = new ArrayList<>(shopMap.size());
+        for (Shop cached : shopMap.values()) {
+            // 缓存中的对象可能被多个请求共享（本地缓存），复制一份再设置distance
+            Shop shop = BeanUtil.copyProperties(cached, Shop.class);
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            shops.add(shop);
         }
         return Result.ok(shops);
     }
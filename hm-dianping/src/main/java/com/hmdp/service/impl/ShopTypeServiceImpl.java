@@ -5,6 +5,8 @@ import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheFormat;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
@@ -29,21 +31,36 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
     @Autowired
     private StringRedisTemplate redisTemplate;
 
+    @Autowired
+    private CacheClient cacheClient;
+
     /**
      * 获取商铺类型列表
      * 默认根据sort值进行升序排序
      * 步骤：
+     * 0. 如果商铺类型使用二进制格式缓存，则先读取二进制格式的列表
+     *    命中 --> 直接返回
+     *    不命中 --> 继续往下（兼容迁移前写入的ZSet，读到后重新以二进制格式写入）
      * 1. 从Redis中查找商铺类型列表
      *    命中 --> 直接返回
      *    不命中 --> 继续往下
      * 2. 从数据库中按序查询所有商铺类型
      * 3. 将数据库查到的数据用ZSet数据类型存入Redis中（根据sort字段进行升序排序）
+     *    二进制格式则将整个列表编码后存入Redis
      * 4. 返回排序后的商铺类型
      *
      * @return
      */
     @Override
     public List<ShopType> queryTypeList() {
+        boolean binary = cacheClient.formatOf(SHOP_TYPE_KEY) == CacheFormat.BINARY;
+        // 0. 读取二进制格式的列表
+        if (binary) {
+            List<ShopType> shopTypeList = cacheClient.getList(SHOP_TYPE_KEY, ShopType.class);
+            if (shopTypeList != null) {
+                return shopTypeList;
+            }
+        }
         ZSetOperations<String, String> opsForZSet = redisTemplate.opsForZSet();
         // 1. 从Redis中查找商铺类型列表
         Set<String> shopTypeSet = opsForZSet.range(SHOP_TYPE_KEY, 0, -1);
@@ -55,6 +72,11 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
                 ShopType shopType = JSONUtil.toBean(shopTypeJson, ShopType.class);
                 shopTypeList.add(shopType);
             }
+            if (binary) {
+                // 迁移：删除ZSet 重新以二进制格式写入
+                redisTemplate.delete(SHOP_TYPE_KEY);
+                cacheClient.setList(SHOP_TYPE_KEY, shopTypeList, ShopType.class, null, null);
+            }
             return shopTypeList;
         }
         // 不命中 继续往下
@@ -63,6 +85,10 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
         List<ShopType> shopTypeList = query().orderByAsc("sort").list();
 
         // 3. 将数据库查到的数据用ZSet数据类型存入Redis中（根据sort字段进行升序排序）
+        if (binary) {
+            cacheClient.setList(SHOP_TYPE_KEY, shopTypeList, ShopType.class, null, null);
+            return shopTypeList;
+        }
         for (ShopType shopType : shopTypeList) {
             // 将shopType转化为json字符串
             String shopTypeJson = JSONUtil.toJsonStr(shopType);
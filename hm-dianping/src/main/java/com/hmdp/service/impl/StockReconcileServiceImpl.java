@@ -0,0 +1,532 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.util.IdUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IStockReconcileService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillGate;
+import com.hmdp.utils.StockShards;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀券库存对账
+ * Redis中每个优惠券满足 库存 + 购买用户数 = 总库存，数据库中满足 库存 + 未取消的订单数 = 总库存，
+ * 秒杀、写入订单、取消订单都不会改变这两个和，因此对账只读取数据，不需要暂停秒杀：
+ * 1. 按优惠券id分页遍历未结束（或结束不久）的秒杀券
+ * 2. 使用pipeline读取每个优惠券所有分片的Redis库存、购买用户数，一条GROUP BY查询读取整页优惠券未取消的订单数
+ * 3. 计算两种偏差：
+ *      3.1 未写入数据库的订单数 = 购买用户数 - 订单数（正在消费的消息，或者丢失的消息、写入失败的订单）
+ *      3.2 总库存偏差 = (Redis库存 + 购买用户数) - (数据库库存 + 订单数)（例如只在一边修改了库存）
+ * 4. 连续confirm-runs次对账偏差都相同的优惠券才认为确实不一致（排除正在消费的消息、两次读取之间的秒杀）
+ * 5. 按hmdp.seckill.reconcile.repair修复确认的偏差：
+ *      none：只报告
+ *      mysql：以数据库为准修复Redis（移除没有订单的购买用户并归还库存，补充有订单的购买用户，INCRBY修正库存）
+ *      redis：以Redis为准修复数据库（修正库存，为没有订单的购买用户重新发送下单消息）
+ * 修复只使用INCRBY、SREM、SADD、stock = stock + n等增量修改，不会覆盖对账期间秒杀的扣减；
+ * 用户级的修复只在订单消息队列中没有未处理的消息时进行，扫描期间有新的下单消息则放弃本次修复
+ * 每次对账持有分布式锁，多个节点中同一时刻只有一个节点对账（否则每个节点都会修复同一个偏差，修正量成倍叠加）；
+ * 上一次对账之后由其它节点对账过时，本节点不再使用自己上一次的偏差确认（可能已经被其它节点修复）
+ */
+@Slf4j
+@Service
+public class StockReconcileServiceImpl implements IStockReconcileService {
+    private static final ScheduledExecutorService STOCK_RECONCILE_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * 订单状态 4：已取消
+     */
+    private static final int STATUS_CANCELLED = 4;
+
+    /**
+     * 报告中最多列出的偏差个数
+     */
+    private static final int MAX_REPORTED = 100;
+
+    @Autowired
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Autowired
+    private IVoucherOrderService voucherOrderService;
+
+    @Autowired
+    private StockShards stockShards;
+
+    @Autowired
+    private SeckillGate seckillGate;
+
+    @Autowired
+    private RedisIdWorker redisIdWorker;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private RedissonClient redissonClient;
+
+    /**
+     * 是否定时对账
+     */
+    @Value("${hmdp.seckill.reconcile.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 对账的间隔（毫秒）
+     */
+    @Value("${hmdp.seckill.reconcile.interval-ms:60000}")
+    private long intervalMillis;
+
+    /**
+     * 每次从数据库读取的优惠券个数
+     */
+    @Value("${hmdp.seckill.reconcile.batch-size:500}")
+    private int batchSize;
+
+    /**
+     * 已经结束多长时间以内的优惠券仍然需要对账（小时），结束后仍然可能取消超时未支付的订单
+     */
+    @Value("${hmdp.seckill.reconcile.lookback-hours:24}")
+    private long lookbackHours;
+
+    /**
+     * 连续多少次对账偏差都相同才认为确实不一致
+     */
+    @Value("${hmdp.seckill.reconcile.confirm-runs:2}")
+    private int confirmRuns;
+
+    /**
+     * 修复时以哪一边为准：none（不修复）、mysql、redis
+     */
+    @Value("${hmdp.seckill.reconcile.repair:none}")
+    private String repair;
+
+    /**
+     * 是否正在对账
+     */
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * 优惠券id --> 上一次对账发现的偏差（只在对账线程中访问）
+     */
+    private Map<Long, Drift> drifts = new HashMap<>();
+
+    /**
+     * 本节点上一次对账的id（只在对账线程中访问）
+     */
+    private String lastRunId;
+
+    /**
+     * 对账结果
+     */
+    private final AtomicLong vouchers = new AtomicLong();
+    private final AtomicLong missing = new AtomicLong();
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder repaired = new LongAdder();
+    private volatile List<Drift> reported = Collections.emptyList();
+    private volatile LocalDateTime beginTime;
+    private volatile LocalDateTime endTime;
+    private volatile String error;
+
+    @PostConstruct
+    private void init() {
+        if (enabled) {
+            STOCK_RECONCILE_EXECUTOR.scheduleWithFixedDelay(this::reconcile, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public Result start() {
+        if (running.get() || redissonClient.getLock(SECKILL_RECONCILE_LOCK_KEY).isLocked()) {
+            return Result.fail("库存对账正在进行中！");
+        }
+        // 与定时对账在同一个线程中执行，不会同时进行
+        STOCK_RECONCILE_EXECUTOR.submit(this::reconcile);
+        return Result.ok();
+    }
+
+    @Override
+    public Result report() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        List<Drift> current = reported;
+        report.put("running", running.get());
+        report.put("repair", repair);
+        report.put("runs", runs.sum());
+        report.put("beginTime", beginTime);
+        report.put("endTime", endTime);
+        if (beginTime != null && endTime != null) {
+            report.put("elapsedMillis", Duration.between(beginTime, endTime).toMillis());
+        }
+        report.put("vouchers", vouchers.get());
+        report.put("missing", missing.get());
+        report.put("drifted", current.size());
+        report.put("confirmed", current.stream().filter(d -> d.observations >= confirmRuns).count());
+        report.put("unpersisted", current.stream().mapToLong(Drift::unpersisted).sum());
+        report.put("totalDrift", current.stream().mapToLong(d -> Math.abs(d.totalDrift())).sum());
+        report.put("repaired", repaired.sum());
+        report.put("drifts", current.stream().limit(MAX_REPORTED).map(Drift::toMap).collect(Collectors.toList()));
+        report.put("error", error);
+        return Result.ok(report);
+    }
+
+    /**
+     * 对账一次：获取分布式锁（其它节点正在对账时跳过），分页遍历秒杀券，记录并修复偏差
+     */
+    private void reconcile() {
+        RLock lock = redissonClient.getLock(SECKILL_RECONCILE_LOCK_KEY);
+        if (!lock.tryLock()) {
+            log.debug("其它节点正在对账，跳过本次对账");
+            return;
+        }
+        try {
+            // 上一次对账之后由其它节点对账过，上一次的偏差已经不是连续的观察结果
+            if (lastRunId == null || !lastRunId.equals(redisTemplate.opsForValue().get(SECKILL_RECONCILE_LAST_KEY))) {
+                drifts = new HashMap<>();
+            }
+            lastRunId = IdUtil.fastSimpleUUID();
+            redisTemplate.opsForValue().set(SECKILL_RECONCILE_LAST_KEY, lastRunId);
+            reconcileAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reconcileAll() {
+        running.set(true);
+        beginTime = LocalDateTime.now();
+        endTime = null;
+        error = null;
+        vouchers.set(0);
+        missing.set(0);
+        try {
+            Map<Long, Drift> current = new HashMap<>();
+            LocalDateTime endAfter = LocalDateTime.now().minusHours(lookbackHours);
+            long lastId = 0;
+            while (true) {
+                List<SeckillVoucher> page = seckillVoucherService.query()
+                        .gt("voucher_id", lastId).gt("end_time", endAfter)
+                        .orderByAsc("voucher_id").last("limit " + batchSize).list();
+                if (page.isEmpty()) {
+                    break;
+                }
+                lastId = page.get(page.size() - 1).getVoucherId();
+                reconcilePage(page, current);
+                vouchers.addAndGet(page.size());
+            }
+            drifts = current;
+            // 偏差大的排在前面
+            reported = current.values().stream()
+                    .sorted(Comparator.comparingLong((Drift d) -> Math.abs(d.unpersisted()) + Math.abs(d.totalDrift())).reversed())
+                    .collect(Collectors.toList());
+            if (!current.isEmpty()) {
+                log.warn("{}个秒杀券的Redis库存与数据库不一致：{}", current.size(),
+                        reported.stream().limit(10).map(Drift::toMap).collect(Collectors.toList()));
+            }
+        } catch (Exception e) {
+            log.error("库存对账失败", e);
+            error = e.getMessage();
+        } finally {
+            endTime = LocalDateTime.now();
+            runs.increment();
+            running.set(false);
+        }
+    }
+
+    /**
+     * 对账一页秒杀券
+     * 1. 使用pipeline读取各个分片的库存（GET）、购买用户数（SCARD）
+     * 2. GROUP BY查询未取消的订单数
+     * 3. 计算偏差，与上一次对账的偏差比较，确认的偏差按配置修复
+     */
+    private void reconcilePage(List<SeckillVoucher> page, Map<Long, Drift> current) {
+        // 1. Redis库存、购买用户数
+        int[] shards = new int[page.size()];
+        for (int i = 0; i < page.size(); i++) {
+            shards[i] = stockShards.shardsOf(page.get(i).getVoucherId());
+        }
+        List<Object> values = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < page.size(); i++) {
+                Long voucherId = page.get(i).getVoucherId();
+                for (int shard = 0; shard < shards[i]; shard++) {
+                    conn.get(StockShards.stockKey(voucherId, shard, shards[i]));
+                    conn.sCard(StockShards.buyerKey(voucherId, shard, shards[i]));
+                }
+            }
+            return null;
+        });
+        // 2. 未取消的订单数
+        List<Long> voucherIds = page.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList());
+        Map<Long, Long> orders = voucherOrderService.listMaps(new QueryWrapper<VoucherOrder>()
+                        .select("voucher_id", "count(*) AS orders")
+                        .in("voucher_id", voucherIds).ne("status", STATUS_CANCELLED)
+                        .groupBy("voucher_id"))
+                .stream().collect(Collectors.toMap(m -> ((Number) m.get("voucher_id")).longValue(),
+                        m -> ((Number) m.get("orders")).longValue()));
+        // 3. 计算偏差
+        int offset = 0;
+        for (int i = 0; i < page.size(); i++) {
+            SeckillVoucher voucher = page.get(i);
+            long[] shardStock = new long[shards[i]];
+            long buyers = 0;
+            boolean exists = false;
+            for (int shard = 0; shard < shards[i]; shard++) {
+                Object stock = values.get(offset++);
+                Object count = values.get(offset++);
+                exists |= stock != null;
+                shardStock[shard] = stock == null ? 0 : Long.parseLong(stock.toString());
+                buyers += count == null ? 0 : ((Number) count).longValue();
+            }
+            // Redis中没有库存（还没有预热）
+            if (!exists) {
+                missing.incrementAndGet();
+                continue;
+            }
+            Drift drift = new Drift(voucher.getVoucherId(), shardStock, buyers,
+                    voucher.getStock(), orders.getOrDefault(voucher.getVoucherId(), 0L));
+            if (drift.unpersisted() == 0 && drift.totalDrift() == 0) {
+                continue;
+            }
+            Drift previous = drifts.get(drift.voucherId);
+            drift.observations = previous != null && previous.sameAs(drift) ? previous.observations + 1 : 1;
+            current.put(drift.voucherId, drift);
+            if (drift.observations >= confirmRuns && !"none".equals(repair)) {
+                try {
+                    if (repair(drift)) {
+                        repaired.increment();
+                        current.remove(drift.voucherId);
+                    }
+                } catch (Exception e) {
+                    log.error("修复库存失败：" + drift.voucherId, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 修复确认的偏差
+     * 1. 有未写入数据库的订单时，比较购买用户与有订单的用户（订单消息队列中有未处理的消息时不修复）
+     *      mysql：移除没有订单的购买用户并归还库存，补充有订单但不在购买用户中的用户并扣减库存
+     *      redis：为没有订单的购买用户重新发送下单消息（先修正数据库库存，保证有足够的库存写入订单）
+     * 2. 修正总库存偏差
+     *      mysql：在一个分片上INCRBY
+     *      redis：stock = stock + n
+     * @return 是否修复
+     */
+    private boolean repair(Drift drift) {
+        Long voucherId = drift.voucherId;
+        int n = drift.shardStock.length;
+        boolean mysql = "mysql".equals(repair);
+        // 1. 比较购买用户与有订单的用户
+        List<String> lost = Collections.emptyList();
+        Map<String, Integer> buyers = Collections.emptyMap();
+        if (drift.unpersisted() != 0) {
+            String quiet = quietStreamId();
+            if (quiet == null) {
+                log.info("订单消息队列中还有未处理的消息，暂不修复：{}", voucherId);
+                return false;
+            }
+            buyers = scanBuyers(voucherId, n);
+            Set<String> orderUsers = voucherOrderService.query().select("user_id")
+                    .eq("voucher_id", voucherId).ne("status", STATUS_CANCELLED).list()
+                    .stream().map(o -> o.getUserId().toString()).collect(Collectors.toSet());
+            if (!quiet.equals(quietStreamId())) {
+                log.info("对账期间有新的下单消息，暂不修复：{}", voucherId);
+                return false;
+            }
+            lost = buyers.keySet().stream().filter(u -> !orderUsers.contains(u)).collect(Collectors.toList());
+            Set<String> buyerSet = buyers.keySet();
+            List<String> extra = orderUsers.stream().filter(u -> !buyerSet.contains(u)).collect(Collectors.toList());
+            if (mysql) {
+                releaseBuyers(voucherId, n, buyers, lost, extra);
+            } else if (!extra.isEmpty()) {
+                log.warn("{}个用户在数据库中有订单但不在Redis的购买用户中，需要人工处理：voucherId：{}，{}",
+                        extra.size(), voucherId, extra.stream().limit(MAX_REPORTED).collect(Collectors.toList()));
+            }
+        }
+        // 2. 修正总库存偏差
+        long total = drift.totalDrift();
+        if (total != 0) {
+            if (mysql) {
+                // 增加库存时加在第一个分片上，减少库存时从库存最多的分片上扣减
+                int shard = 0;
+                for (int i = 1; i < n && total > 0; i++) {
+                    if (drift.shardStock[i] > drift.shardStock[shard]) {
+                        shard = i;
+                    }
+                }
+                redisTemplate.opsForValue().increment(StockShards.stockKey(voucherId, shard, n), -total);
+            } else {
+                seckillVoucherService.update().setSql("stock = stock + " + total).eq("voucher_id", voucherId).update();
+            }
+        }
+        if (!mysql && !lost.isEmpty()) {
+            requeue(voucherId, lost);
+        }
+        // Redis库存增加后清除售罄标记
+        if (mysql && (total < 0 || !lost.isEmpty())) {
+            seckillGate.reopen(voucherId);
+        }
+        log.warn("以{}为准修复库存：{}，没有订单的购买用户：{}", repair, drift.toMap(), lost.size());
+        return true;
+    }
+
+    /**
+     * 以数据库为准修复购买用户（使用pipeline）
+     * 1. 没有订单的购买用户：SREM并在其所在的分片上归还库存
+     * 2. 有订单但不在购买用户中的用户：SADD到其home分片并扣减库存
+     */
+    private void releaseBuyers(Long voucherId, int n, Map<String, Integer> buyers, List<String> lost, List<String> extra) {
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String userId : lost) {
+                int shard = buyers.get(userId);
+                conn.sRem(StockShards.buyerKey(voucherId, shard, n), userId);
+                conn.incr(StockShards.stockKey(voucherId, shard, n));
+            }
+            for (String userId : extra) {
+                int home = StockShards.homeShard(Long.valueOf(userId), n);
+                conn.sAdd(StockShards.buyerKey(voucherId, home, n), userId);
+                conn.decr(StockShards.stockKey(voucherId, home, n));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 以Redis为准，为没有订单的购买用户重新发送下单消息（使用新的订单id）
+     */
+    private void requeue(Long voucherId, List<String> userIds) {
+        for (String userId : userIds) {
+            Map<String, String> body = new LinkedHashMap<>();
+            body.put("userId", userId);
+            body.put("voucherId", voucherId.toString());
+            body.put("id", redisIdWorker.nextId("seckillOrder").toString());
+            redisTemplate.opsForStream().add(ORDER_STREAM_KEY, body);
+        }
+    }
+
+    /**
+     * 使用SSCAN读取所有分片的购买用户（避免SMEMBERS长时间阻塞Redis）
+     * @return 用户id --> 所在的分片
+     */
+    private Map<String, Integer> scanBuyers(Long voucherId, int n) {
+        Map<String, Integer> buyers = new HashMap<>();
+        for (int shard = 0; shard < n; shard++) {
+            final int s = shard;
+            try (Cursor<String> cursor = redisTemplate.opsForSet().scan(StockShards.buyerKey(voucherId, shard, n),
+                    ScanOptions.scanOptions().count(1000).build())) {
+                cursor.forEachRemaining(userId -> buyers.put(userId, s));
+            }
+        }
+        return buyers;
+    }
+
+    /**
+     * 订单消息队列（stream.orders和各个分片的消息队列）中是否没有未处理的消息（所有消息都已经投递给消费者并确认）
+     * @return 没有未处理的消息时返回各个队列最后一条消息的id（拼接），否则返回null
+     */
+    private String quietStreamId() {
+        List<String> streams = new ArrayList<>();
+        streams.add(ORDER_STREAM_KEY);
+        streams.addAll(stockShards.orderStreams());
+        StringBuilder ids = new StringBuilder();
+        for (String stream : streams) {
+            // 还没有写入过消息的分片消息队列
+            if (!Boolean.TRUE.equals(redisTemplate.hasKey(stream))) {
+                continue;
+            }
+            PendingMessagesSummary pending = redisTemplate.opsForStream().pending(stream, ORDER_STREAM_GROUP);
+            if (pending != null && pending.getTotalPendingMessages() > 0) {
+                return null;
+            }
+            String lastEntryId = redisTemplate.opsForStream().info(stream).lastGeneratedId();
+            String lastDeliveredId = redisTemplate.opsForStream().groups(stream).stream()
+                    .filter(g -> ORDER_STREAM_GROUP.equals(g.groupName()))
+                    .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                    .findFirst().orElse(null);
+            if (!lastEntryId.equals(lastDeliveredId)) {
+                return null;
+            }
+            ids.append(stream).append('=').append(lastEntryId).append(';');
+        }
+        return ids.toString();
+    }
+
+    /**
+     * 一个优惠券的偏差
+     */
+    private static final class Drift {
+        final Long voucherId;
+        final long[] shardStock;
+        final long redisStock;
+        final long buyers;
+        final long dbStock;
+        final long orders;
+        // 连续多少次对账发现了相同的偏差
+        int observations;
+
+        Drift(Long voucherId, long[] shardStock, long buyers, long dbStock, long orders) {
+            this.voucherId = voucherId;
+            this.shardStock = shardStock;
+            this.redisStock = Arrays.stream(shardStock).sum();
+            this.buyers = buyers;
+            this.dbStock = dbStock;
+            this.orders = orders;
+        }
+
+        long unpersisted() {
+            return buyers - orders;
+        }
+
+        long totalDrift() {
+            return redisStock + buyers - dbStock - orders;
+        }
+
+        boolean sameAs(Drift other) {
+            return unpersisted() == other.unpersisted() && totalDrift() == other.totalDrift();
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("voucherId", voucherId);
+            map.put("redisStock", redisStock);
+            map.put("buyers", buyers);
+            map.put("dbStock", dbStock);
+            map.put("orders", orders);
+            map.put("unpersisted", unpersisted());
+            map.put("totalDrift", totalDrift());
+            map.put("observations", observations);
+            return map;
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.VoucherOrder;
@@ -8,28 +7,46 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.HashCodec;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillGate;
 import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.StockShards;
 import com.hmdp.utils.UserHolder;
+import cn.hutool.core.thread.ThreadUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
+import java.lang.management.ManagementFactory;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 
 @Slf4j
@@ -53,105 +70,570 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Autowired
     private StringRedisTemplate redisTemplate;
 
+    @Autowired
+    private StockShards stockShards;
+
+    @Autowired
+    private SeckillGate seckillGate;
 
-    private IVoucherOrderService proxy;
 
     /**
      * Redis执行的seckillVoucher方法的lua脚本
      */
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<List<Long>> SECKILL_SCRIPT;
 
     // 加载seckillVoucher方法对应的lua脚本
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckillVoucher.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setResultType(StockShards.RESULT_TYPE);
     }
 
     // 阻塞队列 用来存放下单任务（改为使用Redis的Stream消息队列实现）
     // private static BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
 
-    // 线程池 该线程池中的线程专门用来处理下单任务
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    // 线程池 该线程池中的线程专门用来处理下单任务（每个消费者一个线程）
+    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newCachedThreadPool();
+
+    // 线程池 定时回收长时间未确认的消息
+    private static final ScheduledExecutorService ORDER_RECOVERY_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    // 线程池 定时取消超时未支付的订单
+    private static final ScheduledExecutorService ORDER_TIMEOUT_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * 订单状态 1：未支付，4：已取消
+     */
+    private static final int STATUS_UNPAID = 1;
+    private static final int STATUS_CANCELLED = 4;
+
+    /**
+     * 每个节点的消费者个数
+     */
+    @Value("${hmdp.order.consumer.count:4}")
+    private int consumerCount;
+
+    /**
+     * 每次从消息队列读取的最大消息条数（一个批次）
+     */
+    @Value("${hmdp.order.consumer.batch-size:50}")
+    private int batchSize;
+
+    /**
+     * 消息队列为空时每次阻塞等待的时间（毫秒）
+     */
+    @Value("${hmdp.order.consumer.block-ms:2000}")
+    private long blockMillis;
+
+    /**
+     * 每隔多长时间检查一次pending-list（毫秒）
+     */
+    @Value("${hmdp.order.recovery.interval-ms:5000}")
+    private long recoveryIntervalMillis;
+
+    /**
+     * 消息投递后超过多长时间未确认，认为其消费者已经失效，由回收任务认领（毫秒）
+     */
+    @Value("${hmdp.order.recovery.min-idle-ms:30000}")
+    private long minIdleMillis;
+
+    /**
+     * 消息最多投递的次数，超过后转入死信队列
+     */
+    @Value("${hmdp.order.recovery.max-deliveries:5}")
+    private int maxDeliveries;
+
+    /**
+     * 没有未确认消息、且超过多长时间没有活动的消费者会被删除（毫秒），例如其它节点重启前的消费者
+     */
+    @Value("${hmdp.order.recovery.consumer-idle-ms:3600000}")
+    private long consumerIdleMillis;
+
+    /**
+     * 是否使用幂等写入模式：依赖唯一索引uk_user_voucher保证一人一单，
+     * 不再获取用户锁、不再查询用户是否已经下单（需要先在tb_voucher_order上创建该索引，见hmdp.sql）
+     */
+    @Value("${hmdp.order.persist.idempotent:false}")
+    private boolean idempotent;
+
+    /**
+     * 是否取消超时未支付的订单
+     */
+    @Value("${hmdp.order.timeout.enabled:false}")
+    private boolean timeoutEnabled;
+
+    /**
+     * 下单后多长时间内未支付，订单会被取消（秒）
+     */
+    @Value("${hmdp.order.timeout.pay-seconds:900}")
+    private long paySeconds;
+
+    /**
+     * 每隔多长时间检查一次到期的订单（毫秒）
+     */
+    @Value("${hmdp.order.timeout.interval-ms:1000}")
+    private long timeoutIntervalMillis;
+
+    /**
+     * 每批取消的最大订单个数
+     */
+    @Value("${hmdp.order.timeout.batch-size:200}")
+    private int timeoutBatchSize;
+
+    /**
+     * 本节点消费者名称的前缀（主机名-进程id-）
+     */
+    private String consumerPrefix;
+
+    /**
+     * 消息队列 --> 下一次检查pending-list的起始消息id（上一次检查到的最后一条消息之后）
+     */
+    private final Map<String, String> recoveryCursors = new HashMap<>();
+
+    /**
+     * 本节点已经启动消费者的分片消息队列
+     */
+    private final Set<String> shardStreams = new CopyOnWriteArraySet<>();
+
+    /**
+     * 消费统计
+     */
+    private final LongAdder received = new LongAdder();
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchMillis = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder claimed = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final long startTime = System.currentTimeMillis();
 
     /**
      * 当应用一启动，线程池中的线程就开始不断从消息队列中获取任务，并执行下单任务
+     * 1. 创建消费组（消息队列不存在时一并创建）
+     * 2. 启动consumerCount个消费者，消费者名称为 主机名-进程id-序号，保证集群中唯一；
+     *    每个分片库存的消息队列再各启动一个消费者（见startShardConsumers）
+     * 3. 启动pending-list回收任务
+     * 4. 启动超时订单取消任务
      */
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        // 1. 创建消费组 XGROUP CREATE stream.orders g1 0 MKSTREAM
+        createGroup(ORDER_STREAM_KEY);
+        // 2. 启动消费者
+        // RuntimeMXBean的名称格式为 进程id@主机名
+        String[] jvmName = ManagementFactory.getRuntimeMXBean().getName().split("@");
+        consumerPrefix = (jvmName.length > 1 ? jvmName[1] : "localhost") + "-" + jvmName[0] + "-";
+        for (int i = 0; i < consumerCount; i++) {
+            SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler(ORDER_STREAM_KEY, consumerPrefix + i));
+        }
+        startShardConsumers();
+        // 3. 启动pending-list回收任务
+        ORDER_RECOVERY_EXECUTOR.scheduleWithFixedDelay(this::recoverPendingOrders,
+                recoveryIntervalMillis, recoveryIntervalMillis, TimeUnit.MILLISECONDS);
+        // 4. 启动超时订单取消任务
+        if (timeoutEnabled) {
+            ORDER_TIMEOUT_EXECUTOR.scheduleWithFixedDelay(this::cancelTimeoutOrders,
+                    timeoutIntervalMillis, timeoutIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * XGROUP CREATE stream g1 0 MKSTREAM
+     */
+    private void createGroup(String stream) {
+        try {
+            redisTemplate.execute((RedisCallback<String>) connection -> ((StringRedisConnection) connection)
+                    .xGroupCreate(stream, ReadOffset.from("0"), ORDER_STREAM_GROUP, true));
+        } catch (Exception e) {
+            // 消费组已经存在（BUSYGROUP）
+            log.debug("创建消费组失败：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 为还没有启动消费者的分片消息队列创建消费组并启动一个消费者（消费者名称为 主机名-进程id-s分片序号）
+     * 启动时执行一次，之后回收任务每次执行（其它节点新增了分片个数更多的优惠券时）
+     */
+    private void startShardConsumers() {
+        List<String> streams = stockShards.orderStreams();
+        for (int shard = 0; shard < streams.size(); shard++) {
+            String stream = streams.get(shard);
+            if (shardStreams.add(stream)) {
+                createGroup(stream);
+                SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler(stream, consumerPrefix + "s" + shard));
+            }
+        }
+    }
+
+    /**
+     * @return 本节点消费的所有消息队列
+     */
+    private List<String> orderStreams() {
+        List<String> streams = new ArrayList<>(shardStreams.size() + 1);
+        streams.add(ORDER_STREAM_KEY);
+        streams.addAll(shardStreams);
+        return streams;
     }
 
-    // 存储下单任务的消息队列的名称
-    private static final String STREAM = "stream.orders";
     /**
      * 下单任务
-     * 1. 从阻塞队列获取订单信息
-     * 2. 创建订单
+     * 1. 从消息队列批量获取订单信息
+     * 2. 批量创建订单
+     * 3. 批量确认消息
      */
     private class VoucherOrderHandler implements Runnable {
+        /**
+         * 消息队列
+         */
+        private final String stream;
+
+        /**
+         * 消费者名称
+         */
+        private final String consumer;
+
+        VoucherOrderHandler(String stream, String consumer) {
+            this.stream = stream;
+            this.consumer = consumer;
+        }
+
         @Override
         public void run() {
             while (true) {
                 try {
                     // 1. 从消息队列获取订单
-                    // XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders >
-                    // g1为消费组组名 c1为消费组中的消费者
-                    List<MapRecord<String, Object, Object>> list = redisTemplate.opsForStream().read(Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(STREAM, ReadOffset.lastConsumed()));
+                    // XREADGROUP GROUP g1 consumer COUNT batchSize BLOCK 2000 STREAMS stream.orders >
+                    // g1为消费组组名 consumer为消费组中的消费者
+                    List<MapRecord<String, Object, Object>> list = redisTemplate.opsForStream().read(Consumer.from(ORDER_STREAM_GROUP, consumer),
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofMillis(blockMillis)),
+                            StreamOffset.create(stream, ReadOffset.lastConsumed()));
                     // 1.1 获取失败 重试
                     if (list == null || list.size() == 0) {
                         continue;
                     }
-                    // 1.2 获取成功 继续往下
-                    // 2. 根据消息中的内容创建VoucherOrder对象
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    RecordId msgId = record.getId();  // 消息的id
-                    Map<Object, Object> recordValue = record.getValue();  // 消息的内容
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(recordValue, new VoucherOrder(), false);
-                    // 3. 执行下单业务
-                    handlerVoucherOrder(voucherOrder);
-                    // 4. XACK进行消息确认
-                    redisTemplate.opsForStream().acknowledge(STREAM, "g1", msgId);
+                    // 1.2 获取成功 批量下单并确认消息
+                    handlerRecords(stream, list);
                 } catch (Exception e) {
-                    // 1. 记录异常
+                    // 记录异常（未确认的消息留在pending-list中，由回收任务重新处理）
                     log.error("下单出现异常：" + e.getMessage());
-                    // 2. 从pending-List获取消息重新处理
-                    handlerPendingList();
+                    // 避免Redis不可用时空转
+                    ThreadUtil.sleep(blockMillis);
                 }
             }
         }
+    }
 
-        private void handlerPendingList() {
-            while (true) {
+    /**
+     * 处理一批消息
+     * 1. 根据消息中的内容创建VoucherOrder对象（无法解析的消息不确认，多次投递后转入死信队列）
+     * 2. 在一个事务中批量创建订单
+     *      2.1 失败（例如某个优惠券的库存不足以扣减整批订单）则逐条创建订单，只确认成功的订单
+     * 3. 将成功的订单加入待支付zset（在确认之前加入，确认前宕机时消息会被重新投递，ZADD NX不会推迟截止时间）
+     * 4. XACK批量确认消息
+     * @param stream 消息队列
+     * @param records 消息
+     */
+    private void handlerRecords(String stream, List<? extends MapRecord<String, ?, ?>> records) {
+        long begin = System.currentTimeMillis();
+        received.add(records.size());
+        // 1. 根据消息中的内容创建VoucherOrder对象
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        List<RecordId> msgIds = new ArrayList<>(records.size());
+        for (MapRecord<String, ?, ?> record : records) {
+            try {
+                VoucherOrder voucherOrder = HashCodec.of(VoucherOrder.class).decode(record.getValue());
+                // 订单id由消息中的时间戳、序列号拼接（之前版本的消息直接携带订单id）
+                if (voucherOrder.getId() == null) {
+                    voucherOrder.setId(RedisIdWorker.compose(Long.parseLong(record.getValue().get("ts").toString()),
+                            Long.parseLong(record.getValue().get("seq").toString())));
+                }
+                voucherOrders.add(voucherOrder);
+                msgIds.add(record.getId());
+            } catch (Exception e) {
+                failed.increment();
+                log.error("订单消息格式错误：" + record.getId(), e);
+            }
+        }
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        // 2. 批量创建订单
+        List<RecordId> ackIds = msgIds;
+        List<VoucherOrder> created = voucherOrders;
+        try {
+            voucherOrderService.createVoucherOrders(voucherOrders);
+        } catch (Exception e) {
+            // 2.1 逐条创建订单（失败的消息不确认，留在pending-list中由回收任务重新处理）
+            log.warn("批量下单失败，逐条下单：{}", e.getMessage());
+            fallbacks.increment();
+            ackIds = new ArrayList<>(msgIds.size());
+            created = new ArrayList<>(msgIds.size());
+            for (int i = 0; i < voucherOrders.size(); i++) {
                 try {
-                    // 1. 从pending-list队列获取订单
-                    // XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders 0
-                    // g1为消费组组名 c1为消费组中的消费者
-                    List<MapRecord<String, Object, Object>> list = redisTemplate.opsForStream().read(Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(STREAM, ReadOffset.from("0")));
-                    // 1.1 获取失败 结束循环
-                    if (list == null || list.size() == 0) {
-                        break;
+                    handlerVoucherOrder(voucherOrders.get(i));
+                    ackIds.add(msgIds.get(i));
+                    created.add(voucherOrders.get(i));
+                } catch (Exception ex) {
+                    failed.increment();
+                    log.error("下单出现异常：" + msgIds.get(i), ex);
+                }
+            }
+        }
+        // 3. 加入待支付zset
+        if (timeoutEnabled && !created.isEmpty()) {
+            scheduleTimeout(created);
+        }
+        // 4. XACK批量确认消息
+        if (!ackIds.isEmpty()) {
+            redisTemplate.opsForStream().acknowledge(stream, ORDER_STREAM_GROUP, ackIds.toArray(new RecordId[0]));
+            acked.add(ackIds.size());
+        }
+        batches.increment();
+        batchMillis.add(System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 回收pending-list中的消息（替代每个消费者从0开始重读自己的pending-list）
+     * 1. XPENDING 分页检查消费组中所有消费者已读取未确认的消息
+     * 2. 超过min-idle未确认的消息：
+     *      2.1 投递次数达到上限的，写入死信队列并确认
+     *      2.2 其余的，XCLAIM 认领给本节点的回收消费者，重新下单
+     * 3. 删除没有未确认消息、长时间没有活动的消费者
+     * 每个消息队列（stream.orders和各个分片的消息队列）分别回收；回收前先为新增的分片消息队列启动消费者
+     */
+    private void recoverPendingOrders() {
+        try {
+            startShardConsumers();
+        } catch (Exception e) {
+            log.error("启动分片消息队列的消费者失败", e);
+        }
+        for (String stream : orderStreams()) {
+            recoverPendingOrders(stream);
+        }
+    }
+
+    private void recoverPendingOrders(String stream) {
+        try {
+            // 1. XPENDING stream g1 cursor + batchSize
+            String cursor = recoveryCursors.getOrDefault(stream, "-");
+            PendingMessages pending = redisTemplate.opsForStream().pending(stream, ORDER_STREAM_GROUP,
+                    Range.closed(cursor, "+"), batchSize);
+            // 本页检查完后从最后一条消息之后继续，不足一页说明已经检查到末尾，下次从头开始
+            recoveryCursors.put(stream, pending.size() < batchSize ? "-" : nextId(pending.get(pending.size() - 1).getId()));
+            List<RecordId> claimIds = new ArrayList<>();
+            for (PendingMessage message : pending) {
+                if (message.getElapsedTimeSinceLastDelivery().toMillis() < minIdleMillis) {
+                    continue;
+                }
+                // 2.1 投递次数达到上限 转入死信队列
+                if (message.getTotalDeliveryCount() >= maxDeliveries) {
+                    deadLetter(stream, message);
+                } else {
+                    claimIds.add(message.getId());
+                }
+            }
+            // 2.2 XCLAIM stream g1 recovery-consumer min-idle ids...（其它节点可能同时认领，min-idle保证只有一个成功）
+            if (!claimIds.isEmpty()) {
+                List<StringRecord> records = redisTemplate.execute((RedisCallback<List<StringRecord>>) connection ->
+                        ((StringRedisConnection) connection).xClaim(stream, ORDER_STREAM_GROUP,
+                                consumerPrefix + "recovery", Duration.ofMillis(minIdleMillis), claimIds.toArray(new RecordId[0])));
+                // 已经被删除的消息返回null
+                List<StringRecord> claimedRecords = records == null ? Collections.emptyList()
+                        : records.stream().filter(Objects::nonNull).collect(Collectors.toList());
+                if (!claimedRecords.isEmpty()) {
+                    claimed.add(claimedRecords.size());
+                    log.info("回收{}条未确认的订单消息", claimedRecords.size());
+                    handlerRecords(stream, claimedRecords);
+                }
+            }
+            // 3. 删除失效的消费者
+            redisTemplate.opsForStream().consumers(stream, ORDER_STREAM_GROUP).stream()
+                    .filter(consumer -> consumer.pendingCount() == 0 && consumer.idleTimeMs() > consumerIdleMillis
+                            && !consumer.consumerName().startsWith(consumerPrefix))
+                    .forEach(consumer -> redisTemplate.opsForStream()
+                            .deleteConsumer(stream, Consumer.from(ORDER_STREAM_GROUP, consumer.consumerName())));
+        } catch (Exception e) {
+            log.error("回收未确认的订单消息失败：" + stream, e);
+        }
+    }
+
+    /**
+     * 将消息写入死信队列并确认，死信中额外记录原消息所在的队列、原消息id、投递次数、最后的消费者，需要人工处理
+     */
+    private void deadLetter(String stream, PendingMessage message) {
+        List<MapRecord<String, Object, Object>> records = redisTemplate.opsForStream()
+                .range(stream, Range.closed(message.getIdAsString(), message.getIdAsString()));
+        // 消息可能已经被删除（XDEL、XTRIM），只需要确认
+        if (records != null && !records.isEmpty()) {
+            Map<Object, Object> body = new LinkedHashMap<>(records.get(0).getValue());
+            body.put("source", stream);
+            body.put("sourceId", message.getIdAsString());
+            body.put("deliveries", String.valueOf(message.getTotalDeliveryCount()));
+            body.put("consumer", message.getConsumerName());
+            redisTemplate.opsForStream().add(ORDER_STREAM_DLQ_KEY, body);
+        }
+        redisTemplate.opsForStream().acknowledge(stream, ORDER_STREAM_GROUP, message.getId());
+        deadLettered.increment();
+        log.error("订单消息{}投递{}次仍未成功，已转入死信队列", message.getIdAsString(), message.getTotalDeliveryCount());
+    }
+
+    /**
+     * 使用pipeline将订单加入待支付zset，截止时间为下单时间（订单id的时间戳部分）+ pay-seconds
+     * ZADD order:timeout NX deadline orderId
+     */
+    private void scheduleTimeout(List<VoucherOrder> voucherOrders) {
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                long deadline = RedisIdWorker.createTime(voucherOrder.getId()).plusSeconds(paySeconds)
+                        .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                conn.zAdd(ORDER_TIMEOUT_KEY, deadline, voucherOrder.getId().toString(), RedisZSetCommands.ZAddArgs.ifNotExists());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 取消超时未支付的订单（多个节点可以同时执行）
+     * 1. ZRANGEBYSCORE order:timeout 0 now LIMIT 0 batchSize 获取一批已经到期的订单
+     * 2. 在一个事务中批量取消其中未支付的订单，并归还数据库库存
+     * 3. 已取消的订单：原子地从zset移除、移除一人一单名额、归还Redis库存（移除失败说明已经被其它节点处理）
+     * 4. 已支付、不存在的订单：从zset移除
+     * 5. 归还了库存的优惠券清除售罄标记
+     * 一批全部到期时继续处理下一批，直到没有到期的订单
+     */
+    private void cancelTimeoutOrders() {
+        try {
+            while (true) {
+                // 1. 获取到期的订单
+                Set<String> due = redisTemplate.opsForZSet().rangeByScore(ORDER_TIMEOUT_KEY,
+                        0, System.currentTimeMillis(), 0, timeoutBatchSize);
+                if (due == null || due.isEmpty()) {
+                    return;
+                }
+                Set<String> members = new HashSet<>(due);
+                List<Long> orderIds = members.stream().map(Long::valueOf).collect(Collectors.toList());
+                // 2. 批量取消未支付的订单
+                List<VoucherOrder> cancelledOrders = voucherOrderService.cancelVoucherOrders(orderIds);
+                // 3. 归还Redis库存
+                Set<Long> reopened = new HashSet<>();
+                for (VoucherOrder voucherOrder : cancelledOrders) {
+                    members.remove(voucherOrder.getId().toString());
+                    if (stockShards.release(voucherOrder.getId(), voucherOrder.getUserId(), voucherOrder.getVoucherId())) {
+                        released.increment();
+                        reopened.add(voucherOrder.getVoucherId());
                     }
-                    // 1.2 获取成功 继续往下
-                    // 2. 根据消息中的内容创建VoucherOrder对象
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    RecordId msgId = record.getId();  // 消息的id
-                    Map<Object, Object> recordValue = record.getValue();  // 消息的内容
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(recordValue, new VoucherOrder(), false);
-                    // 3. 执行下单业务
-                    handlerVoucherOrder(voucherOrder);
-                    // 4. XACK进行消息确认
-                    redisTemplate.opsForStream().acknowledge(STREAM, "g1", msgId);
-                } catch (Exception e) {
-                    // 1. 记录异常
-                    log.error("下单出现异常：" + e.getMessage());
+                }
+                // 4. 移除不需要取消的订单
+                if (!members.isEmpty()) {
+                    redisTemplate.opsForZSet().remove(ORDER_TIMEOUT_KEY, members.toArray());
+                }
+                // 5. 清除售罄标记
+                reopened.forEach(seckillGate::reopen);
+                if (orderIds.size() < timeoutBatchSize) {
+                    return;
                 }
             }
+        } catch (Exception e) {
+            log.error("取消超时订单失败", e);
+        }
+    }
+
+    /**
+     * 批量取消未支付的订单（一个事务）
+     * 1. SELECT ... FOR UPDATE 锁定订单，避免与支付并发
+     * 2. 将未支付的订单改为已取消
+     * 3. 按优惠券分组归还库存 stock = stock + n
+     * @param orderIds 订单id
+     * @return 已取消的订单（包括之前已经取消、但还没有归还Redis库存的订单）
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelVoucherOrders(List<Long> orderIds) {
+        // 1. 锁定订单
+        List<VoucherOrder> orders = query().select("id", "user_id", "voucher_id", "status")
+                .in("id", orderIds).last("for update").list();
+        List<VoucherOrder> unpaid = orders.stream()
+                .filter(o -> o.getStatus() == STATUS_UNPAID).collect(Collectors.toList());
+        // 2. 取消未支付的订单
+        if (!unpaid.isEmpty()) {
+            update().set("status", STATUS_CANCELLED)
+                    .in("id", unpaid.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                    .eq("status", STATUS_UNPAID).update();
+            // 3. 归还库存
+            unpaid.stream().collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()))
+                    .forEach((voucherId, count) -> seckillVoucherService.update()
+                            .setSql("stock = stock + " + count).eq("voucher_id", voucherId).update());
+            unpaid.forEach(o -> o.setStatus(STATUS_CANCELLED));
+            cancelled.add(unpaid.size());
         }
+        return orders.stream().filter(o -> o.getStatus() == STATUS_CANCELLED).collect(Collectors.toList());
+    }
+
+    /**
+     * @return 紧跟在id之后的消息id（XPENDING在Redis 6.2之前不支持开区间）
+     */
+    private static String nextId(RecordId id) {
+        return id.getTimestamp() + "-" + (id.getSequence() + 1);
+    }
+
+    /**
+     * 订单消息队列的消费情况
+     * @return {consumers: 本节点stream.orders的消费者个数, shardStreams: 本节点消费的分片消息队列个数（每个一个消费者）, received: 收到的消息条数, acked: 确认的消息条数, batches: 批次数,
+     * avgBatchSize: 平均每批的消息条数, avgBatchMillis: 平均每批的处理耗时, fallbacks: 批量下单失败改为逐条下单的批次数,
+     * throughput: 本节点启动以来平均每秒确认的消息条数, pending: 已读取未确认的消息条数,
+     * lag: 尚未被消费组读取的消息条数（Redis 7.0以上才有）, lagMillis: 最新消息与最后读取的消息之间的时间差,
+     * failed: 处理失败未确认的消息条数, claimed: 回收的消息条数, deadLettered: 转入死信队列的消息条数, deadLetterQueue: 死信队列的长度,
+     * awaitingPayment: 等待支付的订单个数, cancelled: 本节点取消的超时订单个数, released: 本节点归还Redis库存的订单个数}
+     */
+    @Override
+    public Map<String, Object> consumerStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long batchCount = batches.sum();
+        stats.put("consumers", consumerCount);
+        stats.put("received", received.sum());
+        stats.put("acked", acked.sum());
+        stats.put("batches", batchCount);
+        stats.put("avgBatchSize", batchCount == 0 ? 0 : acked.sum() / batchCount);
+        stats.put("avgBatchMillis", batchCount == 0 ? 0 : batchMillis.sum() / batchCount);
+        stats.put("fallbacks", fallbacks.sum());
+        stats.put("throughput", acked.sum() * 1000 / Math.max(1, System.currentTimeMillis() - startTime));
+        stats.put("failed", failed.sum());
+        stats.put("claimed", claimed.sum());
+        stats.put("deadLettered", deadLettered.sum());
+        stats.put("deadLetterQueue", redisTemplate.opsForStream().size(ORDER_STREAM_DLQ_KEY));
+        stats.put("awaitingPayment", redisTemplate.opsForZSet().zCard(ORDER_TIMEOUT_KEY));
+        stats.put("cancelled", cancelled.sum());
+        stats.put("released", released.sum());
+        stats.put("shardStreams", shardStreams.size());
+        // XINFO GROUPS stream、XINFO STREAM stream（所有消息队列的合计，lagMillis取最大值）
+        long pending = 0;
+        Long lag = null;
+        Long lagMillis = null;
+        for (String stream : orderStreams()) {
+            StreamInfo.XInfoGroup group = redisTemplate.opsForStream().groups(stream).stream()
+                    .filter(g -> ORDER_STREAM_GROUP.equals(g.groupName()))
+                    .findFirst().orElse(null);
+            if (group == null) {
+                continue;
+            }
+            pending += group.pendingCount();
+            Object streamLag = group.getRaw().get("lag");
+            if (streamLag != null) {
+                lag = (lag == null ? 0 : lag) + Long.parseLong(streamLag.toString());
+            }
+            // 消息id的前半部分是消息加入队列的时间戳
+            String lastEntryId = redisTemplate.opsForStream().info(stream).lastGeneratedId();
+            long millis = RecordId.of(lastEntryId).getTimestamp() - RecordId.of(group.lastDeliveredId()).getTimestamp();
+            lagMillis = lagMillis == null ? millis : Math.max(lagMillis, millis);
+        }
+        stats.put("pending", pending);
+        stats.put("lag", lag);
+        stats.put("lagMillis", lagMillis);
+        return stats;
     }
 
     // /**
@@ -186,9 +668,14 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      * 4. 创建订单
      *
      * 注意：这里的锁其实可以不加（因为lua脚本已经保证了原子性、安全性），加了可以作为兜底保险方案
+     * 幂等写入模式下由唯一索引兜底，不需要加锁
      * @param voucherOrder
      */
     private void handlerVoucherOrder(VoucherOrder voucherOrder) {
+        if (idempotent) {
+            voucherOrderService.createVoucherOrder(voucherOrder);
+            return;
+        }
         // 1. 获取用户id
         Long userId = voucherOrder.getUserId();
         // 2. 创建锁对象
@@ -204,7 +691,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         // 3.2 获取锁成功 继续往下
         try {
             // 4. 创建订单
-            proxy.createVoucherOrder(voucherOrder);
+            voucherOrderService.createVoucherOrder(voucherOrder);
         } finally {
             // 释放锁
             lock.unlock();
@@ -218,13 +705,20 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      *      1.2 不是 继续往下
      * 2. 在数据库扣减库存
      * 3. 插入订单信息到数据库
+     * 幂等写入模式下见createVoucherOrderIdempotent
      * @param voucherOrder
      */
     @Transactional  // 由于涉及多张表的修改，因此使用事务
     public void createVoucherOrder(VoucherOrder voucherOrder) {
+        if (idempotent) {
+            createVoucherOrderIdempotent(voucherOrder);
+            return;
+        }
         // 1. 检查当前用户是否购买过该优惠券 （保证一人一单）
         Long userId = voucherOrder.getUserId();  // 注意 这里不能从UserHolder中获取用户再获取用户id（UserDTO user = UserHolder.getUser();），因为UserHolder.getUser()是从主线程的ThreadLocal中获取，而该方法是子线程调用。子线程无法获取到主线程的ThreadLocal中的对象
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
+        // 已取消的订单不算（与唯一索引uk_user_voucher一致，超时取消后用户可以再次购买）
+        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId())
+                .ne("status", STATUS_CANCELLED).count();
         if (count > 0) {
             // 说明用户已经下过单了
             log.error("该用户已经购买过一次！");
@@ -243,42 +737,160 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         voucherOrderService.save(voucherOrder);
     }
 
+    /**
+     * 幂等地创建订单
+     * 1. INSERT IGNORE插入订单，用户已经购买过该优惠券时忽略（唯一索引uk_user_voucher）
+     * 2. 插入成功才扣减库存，库存不足时回滚插入
+     */
+    private void createVoucherOrderIdempotent(VoucherOrder voucherOrder) {
+        // 1. 插入订单
+        if (getBaseMapper().insertIgnoreBatch(Collections.singletonList(voucherOrder)) == 0) {
+            log.error("该用户已经购买过一次！");
+            return;
+        }
+        // 2. 扣减库存
+        boolean updateResult = seckillVoucherService.update().setSql("stock = stock - 1")
+                .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0)
+                .update();
+        if (!updateResult) {
+            log.error("库存不足！");
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+        }
+    }
+
+    /**
+     * 批量创建订单（一个事务）
+     * 1. 过滤掉已经存在的订单（用户已经购买过该优惠券，例如消息被重复投递）
+     * 2. 按优惠券分组，每个优惠券执行一次库存扣减 stock = stock - n，库存不足以扣减整组时抛出异常（回滚整批）
+     * 3. 一条多行INSERT插入所有订单
+     * 幂等写入模式下见createVoucherOrdersIdempotent
+     * @param voucherOrders 订单
+     */
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        if (idempotent) {
+            createVoucherOrdersIdempotent(voucherOrders);
+            return;
+        }
+        // 1. 过滤掉已经存在的订单
+        Set<Long> userIds = voucherOrders.stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = voucherOrders.stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        Set<String> existing = query().select("user_id", "voucher_id")
+                .in("user_id", userIds).in("voucher_id", voucherIds).ne("status", STATUS_CANCELLED).list()
+                .stream().map(o -> o.getUserId() + ":" + o.getVoucherId())
+                .collect(Collectors.toSet());
+        List<VoucherOrder> orders = new ArrayList<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            // add同时过滤掉同一批次中重复的订单
+            if (existing.add(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId())) {
+                orders.add(voucherOrder);
+            } else {
+                log.error("该用户已经购买过一次！");
+            }
+        }
+        if (orders.isEmpty()) {
+            return;
+        }
+        // 2. 按优惠券分组扣减库存
+        Map<Long, Long> counts = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        counts.forEach((voucherId, count) -> {
+            boolean updateResult = seckillVoucherService.update().setSql("stock = stock - " + count)  // set stock = stock - n
+                    .eq("voucher_id", voucherId).ge("stock", count)  // where voucher_id = ? and stock >= n
+                    .update();
+            if (!updateResult) {
+                throw new IllegalStateException("库存不足！voucherId：" + voucherId);
+            }
+        });
+        // 3. 批量插入订单
+        getBaseMapper().insertBatch(orders);
+    }
+
+    /**
+     * 幂等地批量创建订单（不需要先查询已经存在的订单）
+     * 1. 按优惠券分组，每组一条多行INSERT IGNORE，重复的订单（消息重复投递、同一批次中重复）被唯一索引忽略
+     * 2. 按实际插入的订单个数扣减库存 stock = stock - n，库存不足时抛出异常（回滚整批）
+     */
+    private void createVoucherOrdersIdempotent(List<VoucherOrder> voucherOrders) {
+        Map<Long, List<VoucherOrder>> groups = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        groups.forEach((voucherId, orders) -> {
+            // 1. 插入订单
+            int inserted = getBaseMapper().insertIgnoreBatch(orders);
+            if (inserted < orders.size()) {
+                log.error("{}个用户已经购买过一次！voucherId：{}", orders.size() - inserted, voucherId);
+            }
+            if (inserted == 0) {
+                return;
+            }
+            // 2. 扣减库存
+            boolean updateResult = seckillVoucherService.update().setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", voucherId).ge("stock", inserted)
+                    .update();
+            if (!updateResult) {
+                throw new IllegalStateException("库存不足！voucherId：" + voucherId);
+            }
+        });
+    }
+
 
     /**
      * 秒杀优惠券
      * 1. 执行秒杀lua脚本 lua脚本包含以下步骤：
      *    1.1 判断是否超卖
      *    1.2 判断是否符合一人一单
-     *    1.3 将用户id、优惠券id、订单id放入消息队列
+     *    1.3 生成订单id的序列号（只有下单成功的请求才会生成，不需要在执行脚本之前单独INCR）
+     *    1.4 将用户id、优惠券id、订单id的时间戳和序列号放入消息队列
      * 2. 根据lua脚本执行结果判断是否下单成功
      *    2.1 下单失败 返回失败信息
-     *    2.2 下单成功 返回订单id
+     *    2.2 下单成功 拼接并返回订单id
      */
     @Override
     public Result seckillVoucher(Long voucherId) {
         // 获取用户
         UserDTO user = UserHolder.getUser();
-        // 生成订单id
-        Long orderId = redisIdWorker.nextId("seckillOrder");
+        // 本地判断是否已售罄、是否超过限流
+        String rejected = seckillGate.tryAdmit(voucherId);
+        if (rejected != null) {
+            return Result.fail(rejected);
+        }
+        // 分片库存的优惠券：在本地分配订单id（号段模式），在各个分片上执行秒杀lua脚本
+        int shards = stockShards.shardsOf(voucherId);
+        if (shards > 1) {
+            long orderId = redisIdWorker.nextSegmentId("seckillOrder");
+            return seckillResult(voucherId, stockShards.seckill(user.getId(), voucherId, orderId, shards), orderId);
+        }
+        // 订单id的时间戳部分、序列号的key
+        LocalDateTime now = LocalDateTime.now();
+        long timestamp = redisIdWorker.timestamp(now);
+        String seqKey = redisIdWorker.sequenceKey("seckillOrder", now);
         // 1. 执行秒杀lua脚本
-        long result = redisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(),
+        List<Long> scriptResult = redisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(),
                 user.getId().toString(),
                 voucherId.toString(),
-                orderId.toString()
+                seqKey,
+                String.valueOf(timestamp)
                 );
         // 2. 根据lua脚本执行结果判断是否下单成功
-        // 2.1 下单失败 返回失败信息
+        return seckillResult(voucherId, scriptResult.get(0), RedisIdWorker.compose(timestamp, scriptResult.get(1)));
+    }
+
+    /**
+     * 根据秒杀lua脚本的执行结果返回
+     * 1. 下单失败 返回失败信息（库存不足时标记已售罄，之后的请求不再访问Redis）
+     * 2. 下单成功 返回订单id
+     */
+    private Result seckillResult(Long voucherId, long result, long orderId) {
+        // 1. 下单失败 返回失败信息
         if (result == 1) {
+            seckillGate.markSoldOut(voucherId);
             return Result.fail("优惠券已经卖光啦！");
         }
         if (result == 2) {
             return Result.fail("您只能购买一次该优惠券！");
         }
-
-        // 获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-
-        // 2.2 下单成功 返回订单id
+        // 2. 下单成功 返回订单id
         return Result.ok(orderId);
     }
 
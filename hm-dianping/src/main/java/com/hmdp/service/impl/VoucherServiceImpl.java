@@ -7,16 +7,14 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.StockShards;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
@@ -25,7 +23,7 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
 
     @Autowired
-    private StringRedisTemplate redisTemplate;
+    private StockShards stockShards;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -39,7 +37,7 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
      * 新增秒杀优惠券
      * 1. 保存优惠券到数据库
      * 2. 保存秒杀信息到数据库
-     * 3. 将优惠券的库存信息保存到redis中
+     * 3. 将优惠券的库存信息保存到redis中（开启库存分片时拆分为多个子库存）
      * @param voucher
      */
     @Override
@@ -55,7 +53,6 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         // 3. 将优惠券的库存信息保存到redis中
-        String key = SECKILL_STOCK_KEY + voucher.getId();
-        redisTemplate.opsForValue().set(key, voucher.getStock().toString());
+        stockShards.init(voucher.getId(), voucher.getStock());
     }
 }
@@ -0,0 +1,210 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IWarmUpService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.StockShards;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 缓存预热
+ * 1. 商铺缓存：按id分页（WHERE id > 上一页最后的id LIMIT n）遍历tb_shop，使用pipeline批量写入逻辑过期缓存
+ * 2. 商铺GEO索引：在遍历tb_shop的同时，按商铺类型使用pipeline批量写入GEO
+ * 3. 秒杀券库存：分页遍历未结束的秒杀券，使用SETNX写入库存（已存在的库存是实时扣减后的数据，不能覆盖；分片库存见StockShards.warmUp）
+ * 可以在启动时自动执行（hmdp.warmup.on-startup），也可以通过/admin/warmup手动触发（例如大促之前）
+ */
+@Slf4j
+@Service
+public class WarmUpServiceImpl implements IWarmUpService {
+    private static final ExecutorService WARM_UP_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    @Autowired
+    private IShopService shopService;
+
+    @Autowired
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Autowired
+    private CacheClient cacheClient;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private StockShards stockShards;
+
+    /**
+     * 是否在启动时预热
+     */
+    @Value("${hmdp.warmup.on-startup:false}")
+    private boolean onStartup;
+
+    /**
+     * 每次从数据库读取、写入Redis的数据条数
+     */
+    @Value("${hmdp.warmup.batch-size:500}")
+    private int batchSize;
+
+    /**
+     * 是否正在预热
+     */
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * 预热进度
+     */
+    private final AtomicLong shops = new AtomicLong();
+    private final AtomicLong geoLocations = new AtomicLong();
+    private final AtomicLong stocks = new AtomicLong();
+    private volatile String phase = "idle";
+    private volatile LocalDateTime beginTime;
+    private volatile LocalDateTime endTime;
+    private volatile String error;
+
+    @PostConstruct
+    private void init() {
+        if (onStartup) {
+            start(true, true, true);
+        }
+    }
+
+    @Override
+    public Result start(boolean shop, boolean geo, boolean stock) {
+        if (!running.compareAndSet(false, true)) {
+            return Result.fail("缓存预热正在进行中！");
+        }
+        shops.set(0);
+        geoLocations.set(0);
+        stocks.set(0);
+        beginTime = LocalDateTime.now();
+        endTime = null;
+        error = null;
+        WARM_UP_EXECUTOR.submit(() -> {
+            try {
+                if (shop || geo) {
+                    phase = "shop";
+                    warmUpShops(shop, geo);
+                }
+                if (stock) {
+                    phase = "stock";
+                    warmUpStocks();
+                }
+                phase = "done";
+            } catch (Exception e) {
+                log.error("缓存预热失败", e);
+                error = e.getMessage();
+                phase = "failed";
+            } finally {
+                endTime = LocalDateTime.now();
+                running.set(false);
+                log.info("缓存预热结束：{}", progress().getData());
+            }
+        });
+        return Result.ok();
+    }
+
+    @Override
+    public Result progress() {
+        Map<String, Object> progress = new LinkedHashMap<>();
+        progress.put("phase", phase);
+        progress.put("running", running.get());
+        progress.put("shops", shops.get());
+        progress.put("geoLocations", geoLocations.get());
+        progress.put("stocks", stocks.get());
+        progress.put("beginTime", beginTime);
+        progress.put("endTime", endTime);
+        if (beginTime != null) {
+            LocalDateTime end = endTime == null ? LocalDateTime.now() : endTime;
+            long millis = Math.max(1, Duration.between(beginTime, end).toMillis());
+            progress.put("elapsedMillis", millis);
+            // 每秒写入Redis的数据条数
+            progress.put("throughput", (shops.get() + geoLocations.get() + stocks.get()) * 1000 / millis);
+        }
+        progress.put("error", error);
+        return Result.ok(progress);
+    }
+
+    /**
+     * 分页遍历tb_shop
+     * 1. 查询id大于上一页最后一个id的n个商铺
+     * 2. 使用pipeline批量写入商铺的逻辑过期缓存
+     * 3. 按商铺类型分组，使用pipeline批量写入GEO
+     */
+    private void warmUpShops(boolean shop, boolean geo) {
+        long lastId = 0;
+        while (true) {
+            // 1. 查询下一页商铺
+            List<Shop> page = shopService.query()
+                    .gt("id", lastId).orderByAsc("id").last("limit " + batchSize).list();
+            if (page.isEmpty()) {
+                return;
+            }
+            lastId = page.get(page.size() - 1).getId();
+            // 2. 批量写入商铺缓存
+            if (shop) {
+                Map<Long, Shop> shopMap = page.stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+                cacheClient.setBatchWithLogicalExpire(CACHE_SHOP_KEY, shopMap, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                shops.addAndGet(page.size());
+            }
+            // 3. 批量写入GEO
+            if (geo) {
+                List<Shop> located = page.stream()
+                        .filter(s -> s.getX() != null && s.getY() != null && s.getTypeId() != null)
+                        .collect(Collectors.toList());
+                redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    for (Shop s : located) {
+                        conn.geoAdd(SHOP_GEO_KEY + s.getTypeId(), new Point(s.getX(), s.getY()), s.getId().toString());
+                    }
+                    return null;
+                });
+                geoLocations.addAndGet(located.size());
+            }
+        }
+    }
+
+    /**
+     * 分页遍历未结束的秒杀券，使用pipeline批量SETNX库存
+     */
+    private void warmUpStocks() {
+        long lastId = 0;
+        while (true) {
+            List<SeckillVoucher> page = seckillVoucherService.query()
+                    .gt("voucher_id", lastId).gt("end_time", LocalDateTime.now())
+                    .orderByAsc("voucher_id").last("limit " + batchSize).list();
+            if (page.isEmpty()) {
+                return;
+            }
+            lastId = page.get(page.size() - 1).getVoucherId();
+            stockShards.warmUp(page);
+            stocks.addAndGet(page.size());
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package com.hmdp.utils;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * 对象与紧凑二进制之间的编解码器，用于将整个对象作为一个String类型的value存入Redis
+ * 相比Hash方式，不需要存储字段名，数字、时间也不需要转为字符串，占用的内存更少，解码也更快
+ *
+ * 格式：
+ * 1. 1字节 格式版本号
+ * 2. 1字节 标记位：是否经过LZ4压缩、是否包含逻辑过期时间、是否是列表、是否包含重建耗时
+ * 3. 4字节 对象结构的指纹（字段名+字段类型的CRC32），对象增删字段后指纹不一致，旧数据视为未命中
+ * 4. 8字节 逻辑过期时间的毫秒时间戳（可选）
+ *    变长整数 重建缓存的耗时毫秒数（可选）
+ * 5. 经过压缩时：压缩前的长度 + 压缩后的数据；否则直接是数据
+ *    数据：字段是否为null的位图 + 按字段名顺序排列的非null字段值（列表则在最前面加上元素个数）
+ * @param <T> 对象类型
+ */
+public final class BinaryCodec<T> {
+
+    private static final byte FORMAT_VERSION = 1;
+
+    /**
+     * 字段值的编码方式
+     */
+    private static final int KIND_LONG = 0;
+    private static final int KIND_INT = 1;
+    private static final int KIND_SHORT = 2;
+    private static final int KIND_BYTE = 3;
+    private static final int KIND_DOUBLE = 4;
+    private static final int KIND_FLOAT = 5;
+    private static final int KIND_BOOLEAN = 6;
+    private static final int KIND_DATE_TIME = 7;
+    private static final int KIND_DATE = 8;
+    private static final int KIND_STRING = 9;
+    private static final int KIND_OTHER = 10;
+
+    private static final int FLAG_LZ4 = 1;
+    private static final int FLAG_EXPIRE = 1 << 1;
+    private static final int FLAG_LIST = 1 << 2;
+    private static final int FLAG_COST = 1 << 3;
+
+    private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+
+    /**
+     * 类型 --> 该类型的编解码器
+     */
+    private static final Map<Class<?>, BinaryCodec<?>> CODECS = new ConcurrentHashMap<>();
+
+    private final HashCodec<T> hashCodec;
+    private final List<HashCodec.Property<T>> properties;
+    private final int[] kinds;
+    private final int schema;
+
+    /**
+     * 获取指定类型的编解码器（字段的读写复用HashCodec生成的getter/setter）
+     * @param type 对象类型
+     * @return 编解码器
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> BinaryCodec<T> of(Class<T> type) {
+        return (BinaryCodec<T>) CODECS.computeIfAbsent(type, t -> new BinaryCodec<>(HashCodec.of(t)));
+    }
+
+    private BinaryCodec(HashCodec<T> hashCodec) {
+        this.hashCodec = hashCodec;
+        this.properties = hashCodec.properties();
+        this.kinds = new int[properties.size()];
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < kinds.length; i++) {
+            HashCodec.Property<T> property = properties.get(i);
+            kinds[i] = kindOf(property.type);
+            crc.update((property.name + ":" + property.type.getName() + ";").getBytes(StandardCharsets.UTF_8));
+        }
+        this.schema = (int) crc.getValue();
+    }
+
+    /**
+     * 编码单个对象
+     * @param object 对象
+     * @param expireTime 逻辑过期时间，为null表示不需要
+     * @param compressThreshold 数据超过多少字节时进行LZ4压缩
+     * @return 二进制数据
+     */
+    public byte[] encode(T object, LocalDateTime expireTime, int compressThreshold) {
+        return encode(object, expireTime, null, compressThreshold);
+    }
+
+    /**
+     * 编码单个对象
+     * @param object 对象
+     * @param expireTime 逻辑过期时间，为null表示不需要
+     * @param rebuildCost 重建缓存的耗时（毫秒），为null表示不需要
+     * @param compressThreshold 数据超过多少字节时进行LZ4压缩
+     * @return 二进制数据
+     */
+    public byte[] encode(T object, LocalDateTime expireTime, Long rebuildCost, int compressThreshold) {
+        Output out = new Output();
+        writeObject(out, object);
+        return envelope(out, expireTime, rebuildCost, 0, compressThreshold);
+    }
+
+    /**
+     * 编码对象列表
+     * @param list 对象列表
+     * @param compressThreshold 数据超过多少字节时进行LZ4压缩
+     * @return 二进制数据
+     */
+    public byte[] encodeList(List<T> list, int compressThreshold) {
+        Output out = new Output();
+        out.writeVarLong(list.size());
+        for (T object : list) {
+            writeObject(out, object);
+        }
+        return envelope(out, null, null, FLAG_LIST, compressThreshold);
+    }
+
+    /**
+     * 解码二进制数据
+     * @param bytes 二进制数据
+     * @return data为对象（或对象列表），expireTime为逻辑过期时间、rebuildCost为重建耗时（可能为null）；版本号或对象结构不一致时返回null
+     */
+    public RedisData decode(byte[] bytes) {
+        ByteBuffer header = ByteBuffer.wrap(bytes);
+        if (bytes.length < 6 || header.get() != FORMAT_VERSION) {
+            return null;
+        }
+        int flags = header.get();
+        if (header.getInt() != schema) {
+            return null;
+        }
+        RedisData redisData = new RedisData();
+        if ((flags & FLAG_EXPIRE) != 0) {
+            redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(header.getLong()), ZoneId.systemDefault()));
+        }
+        if ((flags & FLAG_COST) != 0) {
+            redisData.setRebuildCost(readVarLong(header));
+        }
+        ByteBuffer body = header;
+        if ((flags & FLAG_LZ4) != 0) {
+            int length = (int) readVarLong(header);
+            byte[] raw = new byte[length];
+            DECOMPRESSOR.decompress(bytes, header.position(), raw, 0, length);
+            body = ByteBuffer.wrap(raw);
+        }
+        if ((flags & FLAG_LIST) != 0) {
+            int size = (int) readVarLong(body);
+            List<T> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(readObject(body));
+            }
+            redisData.setData(list);
+        } else {
+            redisData.setData(readObject(body));
+        }
+        return redisData;
+    }
+
+    private byte[] envelope(Output body, LocalDateTime expireTime, Long rebuildCost, int flags, int compressThreshold) {
+        boolean compress = body.size() > compressThreshold;
+        if (compress) {
+            flags |= FLAG_LZ4;
+        }
+        if (expireTime != null) {
+            flags |= FLAG_EXPIRE;
+        }
+        if (rebuildCost != null) {
+            flags |= FLAG_COST;
+        }
+        Output out = new Output();
+        out.write(FORMAT_VERSION);
+        out.write(flags);
+        out.writeInt(schema);
+        if (expireTime != null) {
+            out.writeLong(expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        }
+        if (rebuildCost != null) {
+            out.writeVarLong(rebuildCost);
+        }
+        if (compress) {
+            byte[] raw = body.toByteArray();
+            byte[] compressed = new byte[COMPRESSOR.maxCompressedLength(raw.length)];
+            int length = COMPRESSOR.compress(raw, 0, raw.length, compressed, 0, compressed.length);
+            out.writeVarLong(raw.length);
+            out.write(compressed, 0, length);
+        } else {
+            body.writeTo(out);
+        }
+        return out.toByteArray();
+    }
+
+    private void writeObject(Output out, T object) {
+        // 1. 字段是否为null的位图
+        int count = properties.size();
+        byte[] bitmap = new byte[(count + 7) >>> 3];
+        Object[] values = new Object[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = properties.get(i).getter.apply(object);
+            if (values[i] != null) {
+                bitmap[i >>> 3] |= 1 << (i & 7);
+            }
+        }
+        out.write(bitmap, 0, bitmap.length);
+        // 2. 非null的字段值
+        for (int i = 0; i < count; i++) {
+            if (values[i] != null) {
+                writeValue(out, kinds[i], values[i]);
+            }
+        }
+    }
+
+    private T readObject(ByteBuffer in) {
+        int count = properties.size();
+        byte[] bitmap = new byte[(count + 7) >>> 3];
+        in.get(bitmap);
+        T object = hashCodec.newInstance();
+        for (int i = 0; i < count; i++) {
+            if ((bitmap[i >>> 3] & (1 << (i & 7))) != 0) {
+                HashCodec.Property<T> property = properties.get(i);
+                property.setter.accept(object, readValue(in, kinds[i], property));
+            }
+        }
+        return object;
+    }
+
+    private static int kindOf(Class<?> type) {
+        if (type == Long.class || type == long.class) {
+            return KIND_LONG;
+        } else if (type == Integer.class || type == int.class) {
+            return KIND_INT;
+        } else if (type == Short.class || type == short.class) {
+            return KIND_SHORT;
+        } else if (type == Byte.class || type == byte.class) {
+            return KIND_BYTE;
+        } else if (type == Double.class || type == double.class) {
+            return KIND_DOUBLE;
+        } else if (type == Float.class || type == float.class) {
+            return KIND_FLOAT;
+        } else if (type == Boolean.class || type == boolean.class) {
+            return KIND_BOOLEAN;
+        } else if (type == LocalDateTime.class) {
+            return KIND_DATE_TIME;
+        } else if (type == LocalDate.class) {
+            return KIND_DATE;
+        } else if (type == String.class) {
+            return KIND_STRING;
+        }
+        // 其它类型按字符串存储
+        return KIND_OTHER;
+    }
+
+    private static void writeValue(Output out, int kind, Object value) {
+        switch (kind) {
+            case KIND_LONG:
+                out.writeZigZag((Long) value);
+                break;
+            case KIND_INT:
+                out.writeZigZag((Integer) value);
+                break;
+            case KIND_SHORT:
+                out.writeZigZag((Short) value);
+                break;
+            case KIND_BYTE:
+                out.write((Byte) value);
+                break;
+            case KIND_DOUBLE:
+                out.writeLong(Double.doubleToRawLongBits((Double) value));
+                break;
+            case KIND_FLOAT:
+                out.writeInt(Float.floatToRawIntBits((Float) value));
+                break;
+            case KIND_BOOLEAN:
+                out.write((Boolean) value ? 1 : 0);
+                break;
+            case KIND_DATE_TIME:
+                LocalDateTime time = (LocalDateTime) value;
+                out.writeZigZag(time.toEpochSecond(ZoneOffset.UTC));
+                out.writeVarLong(time.getNano());
+                break;
+            case KIND_DATE:
+                out.writeZigZag(((LocalDate) value).toEpochDay());
+                break;
+            default:
+                byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+                out.writeVarLong(bytes.length);
+                out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static Object readValue(ByteBuffer in, int kind, HashCodec.Property<?> property) {
+        switch (kind) {
+            case KIND_LONG:
+                return readZigZag(in);
+            case KIND_INT:
+                return (int) readZigZag(in);
+            case KIND_SHORT:
+                return (short) readZigZag(in);
+            case KIND_BYTE:
+                return in.get();
+            case KIND_DOUBLE:
+                return Double.longBitsToDouble(in.getLong());
+            case KIND_FLOAT:
+                return Float.intBitsToFloat(in.getInt());
+            case KIND_BOOLEAN:
+                return in.get() != 0;
+            case KIND_DATE_TIME:
+                long second = readZigZag(in);
+                int nano = (int) readVarLong(in);
+                return LocalDateTime.ofEpochSecond(second, nano, ZoneOffset.UTC);
+            case KIND_DATE:
+                return LocalDate.ofEpochDay(readZigZag(in));
+            default:
+                int length = (int) readVarLong(in);
+                String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+                return kind == KIND_STRING ? value : property.parser.apply(value);
+        }
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static long readZigZag(ByteBuffer in) {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * 可以直接访问内部数组的ByteArrayOutputStream，并提供变长整数的写入方法
+     */
+    private static final class Output extends ByteArrayOutputStream {
+        Output() {
+            super(128);
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeZigZag(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void writeTo(Output out) {
+            out.write(buf, 0, count);
+        }
+    }
+}
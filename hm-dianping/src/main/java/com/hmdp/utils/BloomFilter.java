@@ -0,0 +1,260 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_FILTER_CHANNEL;
+import static com.hmdp.utils.RedisConstants.BLOOM_FILTER_KEY;
+
+/**
+ * 布隆过滤器，用于在查询Redis、数据库之前拦截一定不存在的id，解决缓存穿透问题
+ * 1. 按名称注册，每个名称一个过滤器（例如商铺id、帖子id）
+ * 2. 本地使用位数组判断，不需要访问Redis
+ * 3. 启动时从数据库加载所有id重建本地位数组，再与Redis中的共享位图合并（BITOP OR），保证各节点的数据一致
+ * 4. 新增数据时同时写入本地位数组、Redis共享位图（SETBIT），并通过Redis发布订阅通知其它节点
+ * 5. 重建完成之前所有id都视为可能存在（直接放行）
+ * 注：布隆过滤器存在误判，被误判为存在的id仍然依靠缓存空值的方式处理
+ */
+@Slf4j
+@Component
+public class BloomFilter implements MessageListener {
+    private static final ExecutorService BLOOM_REBUILD_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    /**
+     * 过滤器名称 --> 过滤器
+     */
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    /**
+     * 注册布隆过滤器，并在后台线程中重建
+     * @param name 过滤器名称，例如shop
+     * @param expectedInsertions 预计的元素个数
+     * @param fpp 期望的误判率
+     * @param idPageLoader 分页加载id的函数：传入上一页的最后一个id（第一页为0），返回按id升序排列的下一页id，没有数据时返回空列表
+     */
+    public void register(String name, long expectedInsertions, double fpp, Function<Long, List<Long>> idPageLoader) {
+        // 位数组长度 m = -n * ln(p) / (ln2)^2 （Redis位图最多2^32位）
+        long bitSize = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        bitSize = Math.max(64, Math.min(bitSize, 1L << 32));
+        // 哈希函数个数 k = m / n * ln2
+        int hashes = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+        // 位数组长度、哈希函数个数不同的过滤器不能合并，因此作为Redis key的一部分
+        String key = BLOOM_FILTER_KEY + name + ":" + bitSize + ":" + hashes;
+        Filter filter = new Filter(key, bitSize, hashes);
+        filters.put(name, filter);
+        log.debug("注册布隆过滤器：{}，位数：{}，哈希函数个数：{}", name, bitSize, hashes);
+        BLOOM_REBUILD_EXECUTOR.submit(() -> {
+            try {
+                rebuild(name, filter, idPageLoader);
+            } catch (Exception e) {
+                log.error("重建布隆过滤器失败：" + name, e);
+            }
+        });
+    }
+
+    /**
+     * 判断id是否可能存在
+     * @param name 过滤器名称
+     * @param id id
+     * @return false表示一定不存在；未注册或尚未重建完成的过滤器返回true
+     */
+    public boolean mightContain(String name, Object id) {
+        Filter filter = filters.get(name);
+        if (filter == null || !filter.ready) {
+            return true;
+        }
+        for (long index : filter.indexes(id)) {
+            if (!filter.get(index)) {
+                filter.rejected.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增id：写入本地位数组、Redis共享位图，并通知其它节点
+     * @param name 过滤器名称
+     * @param id id
+     */
+    public void add(String name, Object id) {
+        Filter filter = filters.get(name);
+        if (filter == null) {
+            return;
+        }
+        long[] indexes = filter.put(id);
+        byte[] key = filter.key.getBytes(StandardCharsets.UTF_8);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long index : indexes) {
+                connection.setBit(key, index, true);
+            }
+            return null;
+        });
+        redisTemplate.convertAndSend(BLOOM_FILTER_CHANNEL, name + ":" + id);
+    }
+
+    /**
+     * 收到其它节点广播的新增消息，写入本地位数组
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.lastIndexOf(':');
+        Filter filter = filters.get(body.substring(0, index));
+        if (filter != null) {
+            filter.put(body.substring(index + 1));
+        }
+    }
+
+    /**
+     * 各个过滤器的情况
+     * @return 过滤器名称 --> {ready, bitSize, hashes, rejected}
+     */
+    public Map<String, Map<String, Object>> stats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        filters.forEach((name, filter) -> {
+            Map<String, Object> stat = new LinkedHashMap<>();
+            stat.put("ready", filter.ready);
+            stat.put("bitSize", filter.bitSize);
+            stat.put("hashes", filter.hashes);
+            stat.put("rejected", filter.rejected.sum());
+            stats.put(name, stat);
+        });
+        return stats;
+    }
+
+    /**
+     * 重建过滤器
+     * 1. 分页从数据库加载所有id，写入本地位数组
+     * 2. 将本地位数组写入临时key，与Redis共享位图做BITOP OR合并
+     * 3. 读取合并后的共享位图，合并到本地位数组（包含其它节点在重建期间新增的id）
+     * 4. 标记为可用
+     */
+    private void rebuild(String name, Filter filter, Function<Long, List<Long>> idPageLoader) {
+        long begin = System.currentTimeMillis();
+        // 1. 分页从数据库加载所有id
+        long count = 0;
+        Long lastId = 0L;
+        List<Long> ids;
+        while (!(ids = idPageLoader.apply(lastId)).isEmpty()) {
+            for (Long id : ids) {
+                filter.put(id);
+            }
+            count += ids.size();
+            lastId = ids.get(ids.size() - 1);
+        }
+        // 2. 与Redis共享位图合并
+        byte[] key = filter.key.getBytes(StandardCharsets.UTF_8);
+        byte[] tmpKey = (filter.key + ":" + UUID.randomUUID()).getBytes(StandardCharsets.UTF_8);
+        byte[] local = filter.toRedisBitmap();
+        byte[] merged = redisTemplate.execute((RedisCallback<byte[]>) connection -> {
+            connection.set(tmpKey, local);
+            connection.bitOp(RedisStringCommands.BitOperation.OR, key, key, tmpKey);
+            connection.del(tmpKey);
+            return connection.get(key);
+        });
+        // 3. 合并到本地位数组
+        if (merged != null) {
+            filter.orRedisBitmap(merged);
+        }
+        // 4. 标记为可用
+        filter.ready = true;
+        log.info("布隆过滤器{}重建完成，加载{}个id，耗时{}ms", name, count, System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 一个布隆过滤器
+     * 本地位数组第i位存放在words[i / 64]的第(i % 64)位（低位在前）
+     * Redis位图第i位存放在第(i / 8)个字节的第(i % 8)位（高位在前），两者之间需要转换
+     */
+    private static final class Filter {
+        final String key;
+        final long bitSize;
+        final int hashes;
+        final AtomicLongArray words;
+        final LongAdder rejected = new LongAdder();
+        volatile boolean ready;
+
+        Filter(String key, long bitSize, int hashes) {
+            this.key = key;
+            this.bitSize = bitSize;
+            this.hashes = hashes;
+            this.words = new AtomicLongArray((int) ((bitSize + 63) >>> 6));
+        }
+
+        /**
+         * 计算id对应的k个位置（对128位MurmurHash的两个64位结果做双重哈希）
+         */
+        long[] indexes(Object id) {
+            long[] hash = MurmurHash.hash128(id.toString());
+            long[] indexes = new long[hashes];
+            long combined = hash[0];
+            for (int i = 0; i < hashes; i++) {
+                indexes[i] = (combined & Long.MAX_VALUE) % bitSize;
+                combined += hash[1];
+            }
+            return indexes;
+        }
+
+        long[] put(Object id) {
+            long[] indexes = indexes(id);
+            for (long index : indexes) {
+                long mask = 1L << (index & 63);
+                words.getAndAccumulate((int) (index >>> 6), mask, (a, b) -> a | b);
+            }
+            return indexes;
+        }
+
+        boolean get(long index) {
+            return (words.get((int) (index >>> 6)) & (1L << (index & 63))) != 0;
+        }
+
+        byte[] toRedisBitmap() {
+            byte[] bitmap = new byte[(int) ((bitSize + 7) >>> 3)];
+            for (int i = 0; i < words.length(); i++) {
+                long word = words.get(i);
+                while (word != 0) {
+                    long index = ((long) i << 6) + Long.numberOfTrailingZeros(word);
+                    bitmap[(int) (index >>> 3)] |= 0x80 >>> (index & 7);
+                    word &= word - 1;
+                }
+            }
+            return bitmap;
+        }
+
+        void orRedisBitmap(byte[] bitmap) {
+            int length = (int) Math.min(bitmap.length, (bitSize + 7) >>> 3);
+            for (int i = 0; i < length; i++) {
+                int b = bitmap[i] & 0xFF;
+                for (int bit = 0; b != 0 && bit < 8; bit++) {
+                    if ((b & (0x80 >>> bit)) != 0) {
+                        long index = ((long) i << 3) + bit;
+                        words.getAndAccumulate((int) (index >>> 6), 1L << (index & 63), (x, y) -> x | y);
+                    }
+                }
+            }
+        }
+    }
+}
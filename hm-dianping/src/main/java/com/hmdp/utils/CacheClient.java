@@ -1,22 +1,34 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.IdUtil;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
 import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
 import static com.hmdp.utils.RedisConstants.*;
@@ -27,6 +39,15 @@ import static com.hmdp.utils.RedisConstants.*;
  * 方法2：将任意Java对象以Hash方式存储在redis中，并且可以设置逻辑过期时间，用于处理缓存击穿问题
  * 方法3：根据指定的key查询缓存，并转化为指定类型，利用缓存空值的方式解决缓存穿透问题
  * 方法4：根据指定的key查询缓存，并转化为指定类型，需要利用逻辑过期解决缓存击穿问题
+ * 方法5：删除指定key的缓存，并清除所有节点上的本地缓存
+ * 方法6：根据指定的key查询缓存，并转化为指定类型，利用互斥锁解决缓存击穿问题
+ * 注：如果某个key前缀在NearCache中开启了本地缓存（或者key是热点key），方法3、方法4、方法6会优先从本地缓存读取
+ * 注：方法3、方法4、方法6每次查询都会将key记录到HotKeyDetector，用于探测热点key
+ * 注：方法3、方法6命中缓存后通过TtlRefresher异步批量刷新过期时间
+ * 注：可以通过setFormat为某个key前缀选择存储格式（Hash/二进制），默认为Hash
+ * 注：可以通过setBloomFilter为某个key前缀指定布隆过滤器，方法3、方法6会先用布隆过滤器拦截一定不存在的id
+ * 注：方法3、方法6在同一个JVM内对同一个key的并发未命中只会查询一次数据库（SingleFlight）
+ * 注：可以通过setEarlyRefresh为某个key前缀开启提前刷新（XFetch），方法4会根据上一次重建缓存的耗时在过期前随机地提前重建
  */
 @Slf4j
 @Component
@@ -34,9 +55,110 @@ public class CacheClient {
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS");
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
+    /**
+     * 释放互斥锁的lua脚本（锁的值与加锁时的标识一致才删除）
+     */
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * key前缀 --> 该前缀的存储格式
+     */
+    private final Map<String, CacheFormat> formats = new ConcurrentHashMap<>();
+
+    /**
+     * key前缀 --> 该前缀使用的布隆过滤器名称
+     */
+    private final Map<String, String> bloomFilters = new ConcurrentHashMap<>();
+
+    /**
+     * 合并同一个key的并发未命中
+     */
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    /**
+     * key前缀 --> 该前缀提前刷新的beta系数（越大越倾向于提前刷新）
+     */
+    private final Map<String, Double> earlyRefreshBetas = new ConcurrentHashMap<>();
+
+    /**
+     * key前缀 --> 该前缀逻辑过期缓存的读取情况
+     */
+    private final Map<String, LogicalExpireMetrics> logicalExpireMetrics = new ConcurrentHashMap<>();
+
     @Autowired
     private StringRedisTemplate redisTemplate;
 
+    @Autowired
+    private NearCache nearCache;
+
+    @Autowired
+    private BloomFilter bloomFilter;
+
+    @Autowired
+    private HotKeyDetector hotKeyDetector;
+
+    @Autowired
+    private TtlRefresher ttlRefresher;
+
+    /**
+     * 二进制格式下，数据超过多少字节时进行LZ4压缩
+     */
+    @Value("${hmdp.cache.binary.compress-threshold:512}")
+    private int compressThreshold;
+
+    /**
+     * 设置某个key前缀的存储格式
+     * @param keyPrefix key前缀
+     * @param format 存储格式
+     */
+    public void setFormat(String keyPrefix, CacheFormat format) {
+        formats.put(keyPrefix, format);
+    }
+
+    /**
+     * 获取某个key的存储格式
+     * @param key 完整的key
+     * @return 存储格式，没有设置过则为HASH
+     */
+    public CacheFormat formatOf(String key) {
+        for (Map.Entry<String, CacheFormat> entry : formats.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return CacheFormat.HASH;
+    }
+
+    /**
+     * 为某个key前缀指定布隆过滤器
+     * @param keyPrefix key前缀
+     * @param bloomFilterName 布隆过滤器名称
+     */
+    public void setBloomFilter(String keyPrefix, String bloomFilterName) {
+        bloomFilters.put(keyPrefix, bloomFilterName);
+    }
+
+    /**
+     * 为某个key前缀开启逻辑过期缓存的提前刷新（XFetch）
+     * 读取未过期的缓存时，如果 当前时间 - 重建耗时 * beta * ln(random) >= 逻辑过期时间，则提前重建缓存
+     * 重建耗时越长、越接近过期时间，提前重建的概率越大，热点key会在过期前由某一次读取触发重建，不会在过期时集中读到旧数据
+     * @param keyPrefix key前缀
+     * @param beta 大于1更倾向于提前刷新，小于1更倾向于推迟刷新，小于等于0表示关闭
+     */
+    public void setEarlyRefresh(String keyPrefix, double beta) {
+        if (beta > 0) {
+            earlyRefreshBetas.put(keyPrefix, beta);
+        } else {
+            earlyRefreshBetas.remove(keyPrefix);
+        }
+    }
+
     /**
      * 将任意Java对象以Hash方式存储在redis中，并且可以设置TTL过期时间
      * @param key 存入redis时的key
@@ -45,22 +167,7 @@ public class CacheClient {
      * @param unit 过期时间的单位
      */
     public void set(String key, Object object, Long timeout, TimeUnit unit) {
-        HashOperations<String, Object, Object> opsForHash = redisTemplate.opsForHash();
-        // 将object转化为map
-        Map<String, Object> objectMap = BeanUtil.beanToMap(object, new HashMap<>(),
-                CopyOptions.create()
-                        .setIgnoreNullValue(true)
-                        .setFieldValueEditor((fieldName, fieldValue) -> {
-                            if (fieldValue != null) {
-                                return fieldValue.toString();
-                            } else {
-                                return "";
-                            }
-        }));
-        // 将map存入redis
-        opsForHash.putAll(key, objectMap);
-        // 设置ttl
-        redisTemplate.expire(key, timeout, unit);
+        write(key, object, null, null, timeout, unit);
     }
 
     /**
@@ -71,36 +178,101 @@ public class CacheClient {
      * @param unit 逻辑过期时间的单位
      */
     public void setWithLogicalExpire(String key, Object object, Long timeout, TimeUnit unit) {
-        HashOperations<String, Object, Object> opsForHash = redisTemplate.opsForHash();
-        // 将object转化为map
-        Map<String, Object> objectMap = BeanUtil.beanToMap(object, new HashMap<>(),
-                CopyOptions.create()
-                        .setIgnoreNullValue(true)
-                        .setFieldValueEditor((fieldName, fieldValue) -> {
-                            if (fieldValue != null) {
-                                if (fieldValue instanceof LocalDateTime) {
-                                    LocalDateTime localDateTime = (LocalDateTime) fieldValue;
-                                    return localDateTime.format(formatter);
-                                }
-                                return String.valueOf(fieldValue);
-                            } else {
-                                return "";
-                            }
-                        }));
+        setWithLogicalExpire(key, object, timeout, unit, null);
+    }
+
+    /**
+     * 将任意Java对象存储在redis中，设置逻辑过期时间，并记录重建缓存的耗时（用于提前刷新）
+     * @param key 存入redis时的key
+     * @param object 需要存入redis的对象
+     * @param timeout 逻辑过期时间
+     * @param unit 逻辑过期时间的单位
+     * @param rebuildCost 重建缓存的耗时（毫秒），为null表示不记录
+     */
+    public void setWithLogicalExpire(String key, Object object, Long timeout, TimeUnit unit, Long rebuildCost) {
         // 设置逻辑过期时间
-        String expireTime = LocalDateTime.now().plusSeconds(unit.toSeconds(timeout)).format(formatter);
-        objectMap.put(LOGICAL_EXPIRE_TIME_FIELD, expireTime);
-        // 将map存入redis
-        opsForHash.putAll(key, objectMap);
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(unit.toSeconds(timeout));
+        write(key, object, expireTime, rebuildCost, null, null);
+    }
+
+    /**
+     * 使用一次pipeline将多个对象写入redis，并设置逻辑过期时间（用于缓存预热）
+     * @param keyPrefix key前缀
+     * @param objects id --> 需要存入redis的对象
+     * @param timeout 逻辑过期时间
+     * @param unit 逻辑过期时间的单位
+     */
+    public <R> void setBatchWithLogicalExpire(String keyPrefix, Map<?, R> objects, Long timeout, TimeUnit unit) {
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(unit.toSeconds(timeout));
+        String expireTimeStr = expireTime.format(formatter);
+        boolean binary = formatOf(keyPrefix) == CacheFormat.BINARY;
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            objects.forEach((id, object) -> {
+                String key = keyPrefix + id;
+                if (binary) {
+                    conn.set(toBytes(key), toBinary(object, expireTime, null));
+                } else {
+                    Map<String, String> objectMap = toHash(object);
+                    objectMap.put(LOGICAL_EXPIRE_TIME_FIELD, expireTimeStr);
+                    conn.hMSet(key, objectMap);
+                }
+            });
+            return null;
+        });
+    }
+
+    /**
+     * 将对象列表以二进制格式存储在redis中（用于商铺类型这类整体读写的小列表）
+     * @param key 存入redis时的key
+     * @param list 对象列表
+     * @param type 对象类型
+     * @param timeout 过期时间，为null表示永不过期
+     * @param unit 过期时间的单位
+     */
+    public <R> void setList(String key, List<R> list, Class<R> type, Long timeout, TimeUnit unit) {
+        byte[] bytes = BinaryCodec.of(type).encodeList(list, compressThreshold);
+        setBytes(key, bytes, timeout, unit);
+    }
+
+    /**
+     * 读取以二进制格式存储的对象列表
+     * @param key 缓存的key
+     * @param type 对象类型
+     * @return 对象列表，未命中或key不是二进制格式时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public <R> List<R> getList(String key, Class<R> type) {
+        try {
+            byte[] bytes = getBytes(key);
+            RedisData redisData = bytes == null || bytes.length == 0 ? null : BinaryCodec.of(type).decode(bytes);
+            return redisData == null ? null : (List<R>) redisData.getData();
+        } catch (DataAccessException e) {
+            if (isWrongType(e)) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 删除指定key的缓存，并清除所有节点上的本地缓存
+     * @param key 缓存的key
+     */
+    public void delete(String key) {
+        redisTemplate.delete(key);
+        nearCache.invalidate(key);
     }
 
     /**
      * 根据指定的key查询缓存，并转化为指定类型，利用缓存空值的方式解决缓存穿透问题
+     * 0. 从本地缓存查询，命中则直接返回
+     *    未命中 --> 使用布隆过滤器判断id是否存在，一定不存在则直接返回空值
      * 1. 根据key从Redis查询缓存
      *    命中 --> 检查是否为空值
      *                  是 --> 返回空值
      *                不是 --> 返回对象信息
-     *    未命中 --> 继续往下
+     *    未命中 --> 继续往下（同一个key的并发未命中只由一个请求执行2、3，其它请求共享其结果）
      * 2. 根据id从数据库查询对于对象信息
      *    未命中 --> 将空值写入Redis，返回空值
      *    命中 --> 继续往下
@@ -111,68 +283,270 @@ public class CacheClient {
      */
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallBack, Long timeout, TimeUnit unit) {
         String key = keyPrefix + id;
+        hotKeyDetector.record(key);
+        // 0. 从本地缓存查询
+        Object local = nearCache.get(keyPrefix, key);
+        if (local != null) {
+            return type.cast(local);
+        }
+        // 布隆过滤器判断一定不存在 不再查询Redis和数据库
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
         // 1. 从Redis查询对象缓存
-        HashOperations<String, Object, Object> ops = redisTemplate.opsForHash();
-        // 如果查询不到key对应的val，ops.entries会返回一个空的Map，而不是null
-        Map<Object, Object> shopMap = ops.entries(key);
+        RedisData cached = read(key, type);
 
         // 缓存命中
-        if (!shopMap.isEmpty()) {
+        if (cached != null) {
             // 检查是否为空值
             // 是空值 则返回null
-            if (shopMap.size() == 1 && shopMap.containsKey("")) {
+            if (cached.getData() == null) {
                 return null;
             } else {
                 // 不是空值
-                // 使用反射创建对象
-                R r = BeanUtils.instantiateClass(type);
-                // 填充对象的属性
-                r = BeanUtil.fillBeanWithMap(shopMap, r, false);
-                // 刷新在redis的过期时间
-                redisTemplate.expire(key, timeout, unit);
+                R r = type.cast(cached.getData());
+                // 刷新在redis的过期时间（异步批量执行）
+                ttlRefresher.touch(key, timeout, unit);
+                // 写入本地缓存
+                nearCache.put(keyPrefix, key, r);
                 return r;
             }
         }
         // 缓存未命中 继续往下
 
-        // 2. 根据id从数据库查询对应信息
+        // 2、3. 根据id从数据库查询对应信息并写入Redis
+        // 4. 返回商铺信息
+        return singleFlight.execute(key, () -> loadAndCache(keyPrefix, id, dbFallBack, timeout, unit));
+    }
+
+    /**
+     * 根据指定的key查询缓存，并转化为指定类型，利用互斥锁解决缓存击穿问题
+     * 同一个JVM内的并发未命中通过SingleFlight合并为一次加载，多个节点之间通过Redis互斥锁保证只有一个节点重建缓存，
+     * 不需要休眠重试
+     * 0. 从本地缓存查询，命中则直接返回
+     *    未命中 --> 使用布隆过滤器判断id是否存在，一定不存在则直接返回空值
+     * 1. 根据key从Redis查询缓存
+     *    命中 --> 返回空值/对象信息
+     *    未命中 --> 继续往下（同一个key的并发未命中只由一个请求执行2~4，其它请求共享其结果）
+     * 2. 尝试获取互斥锁
+     *    失败 --> 其它节点正在重建缓存，直接查询数据库并返回（不写入缓存，每个节点最多只有一个请求查询数据库）
+     *    成功 --> 继续往下
+     * 3. double check 再次从Redis查询缓存
+     *    命中 --> 释放互斥锁，返回空值/对象信息
+     *    未命中 --> 根据id从数据库查询，将对象数据或空值写入Redis
+     * 4. 释放互斥锁，返回空值/对象信息
+     */
+    public <R, ID> R queryWithMutex(String keyPrefix, String lockKeyPrefix, ID id, Class<R> type, Function<ID, R> dbFallBack, Long timeout, TimeUnit unit) {
+        String key = keyPrefix + id;
+        hotKeyDetector.record(key);
+        // 0. 从本地缓存查询
+        Object local = nearCache.get(keyPrefix, key);
+        if (local != null) {
+            return type.cast(local);
+        }
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
+        // 1. 从Redis查询对象缓存
+        RedisData cached = read(key, type);
+        if (cached != null) {
+            return cachedValue(keyPrefix, key, cached, type, timeout, unit);
+        }
+        return singleFlight.execute(key, () -> {
+            // 2. 尝试获取互斥锁
+            String lockKey = lockKeyPrefix + id;
+            String lockToken = tryLock(lockKey);
+            if (lockToken == null) {
+                // 其它节点正在重建缓存 直接查询数据库
+                return dbFallBack.apply(id);
+            }
+            try {
+                // 3. double check
+                RedisData rebuilt = read(key, type);
+                if (rebuilt != null) {
+                    return cachedValue(keyPrefix, key, rebuilt, type, timeout, unit);
+                }
+                return loadAndCache(keyPrefix, id, dbFallBack, timeout, unit);
+            } finally {
+                // 4. 释放互斥锁
+                unlock(lockKey, lockToken);
+            }
+        });
+    }
+
+    /**
+     * 处理Redis命中的缓存：空值返回null，否则刷新ttl、写入本地缓存后返回对象
+     */
+    private <R> R cachedValue(String keyPrefix, String key, RedisData cached, Class<R> type, Long timeout, TimeUnit unit) {
+        if (cached.getData() == null) {
+            return null;
+        }
+        R r = type.cast(cached.getData());
+        ttlRefresher.touch(key, timeout, unit);
+        nearCache.put(keyPrefix, key, r);
+        return r;
+    }
+
+    /**
+     * 根据id从数据库查询，并写入缓存
+     *    未命中 --> 将空值写入Redis，返回空值
+     *    命中 --> 将对象数据写入Redis、本地缓存，返回对象
+     */
+    private <R, ID> R loadAndCache(String keyPrefix, ID id, Function<ID, R> dbFallBack, Long timeout, TimeUnit unit) {
+        String key = keyPrefix + id;
         R r = dbFallBack.apply(id);
         //  如果未命中 将空值写入Redis 返回404
         if (r == null) {
-            // 存入一个空值
-            ops.put(key,"", "");
-            // 设置空值的过期时间为2分钟
-            redisTemplate.expire(key, CACHE_NULL_TTL, TimeUnit.MINUTES);
+            // 存入一个空值 设置空值的过期时间为2分钟
+            writeNull(key);
             return null;
         }
+        // 将对象数据写入Redis（设置ttl）
+        this.set(key, r, timeout, unit);
+        nearCache.put(keyPrefix, key, r);
+        return r;
+    }
 
-        //  如果命中 继续往下
+    /**
+     * @return 合并并发未命中的情况 {inflight, loads, shared}
+     */
+    public Map<String, Long> singleFlightStats() {
+        return singleFlight.stats();
+    }
 
-        // 3. 将商铺数据写入Redis（设置ttl）
-        this.set(key, r, timeout, unit);
+    /**
+     * 根据多个id批量查询缓存，并转化为指定类型，利用缓存空值的方式解决缓存穿透问题
+     * 所有Redis读操作通过一次pipeline完成，所有未命中的id通过一次批量查询数据库完成，所有写操作通过一次pipeline完成
+     * 1. 从本地缓存查询，命中的id不再查询Redis；布隆过滤器判断一定不存在的id直接丢弃
+     * 2. 使用pipeline批量执行HGETALL（二进制格式为GET）
+     *      命中空值 --> 该id不存在
+     *      命中对象 --> 记录结果
+     *      未命中 --> 记录到未命中id列表
+     * 3. 根据未命中id列表批量查询数据库（一次IN查询）
+     * 4. 使用pipeline批量写入Redis：数据库查到的对象写入缓存，查不到的id写入空值；命中的缓存异步刷新ttl
+     * 5. 按照ids的顺序返回结果（不存在的id不会出现在结果中）
+     * @param keyPrefix key前缀
+     * @param ids 需要查询的id
+     * @param type 对象类型
+     * @param dbBatchFallBack 根据多个id批量查询数据库的函数，返回 id --> 对象
+     * @param timeout 过期时间
+     * @param unit 过期时间的单位
+     * @return id --> 对象（按照ids的顺序）
+     */
+    public <R, ID> Map<ID, R> queryBatchWithPassThrough(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                        Function<Collection<ID>, Map<ID, R>> dbBatchFallBack,
+                                                        Long timeout, TimeUnit unit) {
+        Map<ID, R> found = new HashMap<>(ids.size());
+        // 1. 从本地缓存查询
+        List<ID> redisIds = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            hotKeyDetector.record(keyPrefix + id);
+            Object local = nearCache.get(keyPrefix, keyPrefix + id);
+            if (local != null) {
+                found.put(id, type.cast(local));
+            } else if (mightContain(keyPrefix, id)) {
+                redisIds.add(id);
+            }
+        }
 
-        // 4. 返回商铺信息
-        return r;
+        List<ID> hitIds = new ArrayList<>();
+        List<ID> missIds = new ArrayList<>();
+        if (!redisIds.isEmpty()) {
+            // 2. 使用pipeline批量查询Redis
+            List<RedisData> results = readPipelined(keyPrefix, redisIds, type);
+            for (int i = 0; i < redisIds.size(); i++) {
+                ID id = redisIds.get(i);
+                RedisData cached = results.get(i);
+                // 未命中
+                if (cached == null) {
+                    missIds.add(id);
+                    continue;
+                }
+                // 命中空值
+                if (cached.getData() == null) {
+                    continue;
+                }
+                // 命中对象
+                R r = type.cast(cached.getData());
+                nearCache.put(keyPrefix, keyPrefix + id, r);
+                found.put(id, r);
+                hitIds.add(id);
+            }
+        }
+
+        // 3. 根据未命中id列表批量查询数据库
+        Map<ID, R> loaded = missIds.isEmpty() ? Collections.emptyMap() : dbBatchFallBack.apply(missIds);
+        found.putAll(loaded);
+
+        // 4. 使用pipeline批量写入Redis
+        // 4.1 命中的缓存刷新ttl（异步批量执行）
+        for (ID id : hitIds) {
+            ttlRefresher.touch(keyPrefix + id, timeout, unit);
+        }
+        if (!missIds.isEmpty()) {
+            boolean binary = formatOf(keyPrefix) == CacheFormat.BINARY;
+            long ttlSeconds = unit.toSeconds(timeout);
+            long nullTtlSeconds = TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL);
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (ID id : missIds) {
+                    String key = keyPrefix + id;
+                    R r = loaded.get(id);
+                    if (r == null) {
+                        // 4.2 数据库中不存在 写入空值
+                        if (binary) {
+                            conn.set(toBytes(key), new byte[0], Expiration.seconds(nullTtlSeconds), RedisStringCommands.SetOption.upsert());
+                        } else {
+                            conn.hSet(key, "", "");
+                            conn.expire(key, nullTtlSeconds);
+                        }
+                    } else {
+                        // 4.3 数据库中存在 写入对象
+                        if (binary) {
+                            conn.set(toBytes(key), toBinary(r, null, null), Expiration.seconds(ttlSeconds), RedisStringCommands.SetOption.upsert());
+                        } else {
+                            conn.hMSet(key, toHash(r));
+                            conn.expire(key, ttlSeconds);
+                        }
+                        nearCache.put(keyPrefix, key, r);
+                    }
+                }
+                return null;
+            });
+        }
+
+        // 5. 按照ids的顺序返回结果
+        Map<ID, R> result = new LinkedHashMap<>(ids.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.put(id, r);
+            }
+        }
+        return result;
     }
 
     /**
      * 根据指定的key查询缓存，并转化为指定类型，需要利用逻辑过期解决缓存击穿问题
      * 【默认所有热点数据开发者都会提前写入redis中，而不是等到用户第一次访问该数据再写入redis。】
      * 【因此如果redis中查询不到该数据，说明该数据不存在，直接返回空】
+     * 0. 从本地缓存查询，命中、未过期且不需要提前刷新则直接返回（本地缓存中存放的是对象及其逻辑过期时间）
      * 1. 根据id从redis查询对象缓存
      *          未命中 --> 返回空
      *           命中 -->  继续往下
-     * 2. 判断缓存是否过期
-     *      未过期 --> 直接返回对象信息
+     * 2. 判断缓存是否过期（没有逻辑过期时间说明一直有效）
+     *      未过期 --> 开启了提前刷新时，根据重建耗时随机决定是否提前重建
+     *                  不需要 --> 直接返回对象信息
+     *                  需要 --> 继续往下，但返回的是未过期的对象信息
      *      已过期 --> 继续往下
      * 3. 尝试获取互斥锁
      *      是否获取互斥锁成功
      *      否 --> 直接返回对象信息
      *      是 -->
-     *              3.1 double check 再次检测redis缓存是否过期
-     *                      未过期  --> 直接返回对象信息 释放互斥锁
-     *                      已过期  --> 继续往下
-     *              3.2 开启独立线程去执行【根据id查询数据库，将商铺数据写入redis并设置逻辑过期时间，释放互斥锁】重建缓存操作
+     *              3.1 double check 再次检测redis缓存是否已经被其它请求重建（逻辑过期时间比之前读到的晚）
+     *                      已重建  --> 直接返回对象信息 释放互斥锁
+     *                      未重建  --> 继续往下
+     *              3.2 开启独立线程去执行【根据id查询数据库，将商铺数据写入redis并设置逻辑过期时间、记录重建耗时，释放互斥锁】重建缓存操作
      *              3.3 返回对象信息
      *              3.4 释放互斥锁
      * @param id
@@ -180,69 +554,74 @@ public class CacheClient {
      */
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, String lockKeyPrefix, ID id, Class<R> type, Function<ID, R> dbFallBack, Long timeout, TimeUnit unit) {
         String key = keyPrefix + id;
+        LogicalExpireMetrics metrics = logicalExpireMetrics.computeIfAbsent(keyPrefix, k -> new LogicalExpireMetrics());
+        hotKeyDetector.record(key);
+        // 0. 从本地缓存查询 未过期且不需要提前刷新则直接返回
+        RedisData local = (RedisData) nearCache.get(keyPrefix, key);
+        if (local != null && !isExpired(local) && !shouldRefreshEarly(keyPrefix, local)) {
+            metrics.fresh.increment();
+            return type.cast(local.getData());
+        }
         // 1. 根据id从redis查询对象缓存
-        HashOperations<String, Object, Object> ops = redisTemplate.opsForHash();
-        // 如果查询不到key对应的val，ops.entries会返回一个空的Map，而不是null
-        Map<Object, Object> objectMap = ops.entries(key);
+        RedisData cached = read(key, type);
 
         // 缓存未命中 返回空
-        if (objectMap.isEmpty()) {
+        if (cached == null || cached.getData() == null) {
             return null;
         }
         // 缓存命中 继续往下
-
-        // 将map转化为bean
-        R r = BeanUtils.instantiateClass(type);
-        r = BeanUtil.fillBeanWithMap(objectMap, r, false);
+        R r = type.cast(cached.getData());
 
         // 2. 判断缓存是否过期
-        String expireTimeStr = (String) objectMap.get(LOGICAL_EXPIRE_TIME_FIELD);
-        // TODO 如果没有逻辑过期时间 则说明一直有效 直接返回对象即可
-        LocalDateTime expireTime = LocalDateTime.parse(expireTimeStr, formatter);
-
-        // 2.1 未过期 --> 直接返回商铺信息
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            return r;
+        if (!isExpired(cached)) {
+            metrics.fresh.increment();
+            // 写入本地缓存
+            nearCache.put(keyPrefix, key, cached);
+            // 2.1 未过期且不需要提前刷新 --> 直接返回商铺信息
+            if (!shouldRefreshEarly(keyPrefix, cached)) {
+                return r;
+            }
+            // 2.2 需要提前刷新 进行缓存重建
+            metrics.early.increment();
+        } else {
+            // 2.3 已过期 进行缓存重建
+            metrics.stale.increment();
         }
-        // 2.2 已过期 进行缓存重建
 
         // 3. 尝试获取互斥锁
         String lockKey = lockKeyPrefix + id;
-        boolean isLock = tryLock(lockKey);
+        String lockToken = tryLock(lockKey);
 
         // 3.1 获取互斥锁成功
-        if (isLock) {
-            // double check再次检测redis缓存是否过期，如果未过期则无需重建缓存
-            // 根据key获取对象信息
-            objectMap = ops.entries(key);
-            // 获取逻辑过期时间
-            expireTimeStr = (String) objectMap.get(LOGICAL_EXPIRE_TIME_FIELD);
-            // TODO 如果没有逻辑过期时间 则说明一直有效 直接返回对象即可
-            expireTime = LocalDateTime.parse(expireTimeStr, formatter);
-
-            // 检查是否过期
-            // 未过期 直接返回shop对象
-            if (expireTime.isAfter(LocalDateTime.now())) {
-                // 根据objectMap封装R对象
-                r = BeanUtils.instantiateClass(type);
-                r = BeanUtil.fillBeanWithMap(objectMap, r, false);
-                // 返回对象
-                return r;
+        if (lockToken != null) {
+            // double check再次检测redis缓存是否已经被其它请求重建，如果已重建则无需重建缓存
+            RedisData rebuilt = read(key, type);
+            if (rebuilt != null && rebuilt.getData() != null && isNewer(rebuilt, cached)) {
+                unlock(lockKey, lockToken);
+                return type.cast(rebuilt.getData());
             }
-            // 过期 继续往下
+            // 未重建 继续往下
 
             // 3.2 开启独立线程 执行【根据id查询数据库，将商铺数据写入redis并设置逻辑过期时间，释放互斥锁】
             CACHE_REBUILD_EXECUTOR.submit(() -> {
-                System.out.println("重建缓存...");
+                log.debug("重建缓存：{}", key);
                 try {
-                    // 重建缓存
+                    // 重建缓存 记录重建耗时
+                    long begin = System.currentTimeMillis();
                     R obj = dbFallBack.apply(id);
-                    this.setWithLogicalExpire(key, obj, timeout, unit);
+                    long rebuildCost = System.currentTimeMillis() - begin;
+                    if (obj == null) {
+                        // 数据已被删除
+                        this.delete(key);
+                    } else {
+                        this.setWithLogicalExpire(key, obj, timeout, unit, rebuildCost);
+                    }
+                    metrics.rebuilds.increment();
                 } catch (Exception e) {
                     throw new RuntimeException(e);
                 } finally {
                     // 释放锁
-                    unlock(lockKey);
+                    unlock(lockKey, lockToken);
                 }
             });
         }
@@ -251,20 +630,283 @@ public class CacheClient {
     }
 
     /**
-     * 锁住对应的key
+     * 各个key前缀逻辑过期缓存的读取情况
+     * @return key前缀 --> {fresh: 读到未过期数据的次数, stale: 读到已过期数据的次数, early: 提前刷新的次数, rebuilds: 重建缓存的次数}
+     */
+    public Map<String, Map<String, Long>> logicalExpireStats() {
+        Map<String, Map<String, Long>> stats = new LinkedHashMap<>();
+        logicalExpireMetrics.forEach((keyPrefix, metrics) -> {
+            Map<String, Long> stat = new LinkedHashMap<>();
+            stat.put("fresh", metrics.fresh.sum());
+            stat.put("stale", metrics.stale.sum());
+            stat.put("early", metrics.early.sum());
+            stat.put("rebuilds", metrics.rebuilds.sum());
+            stats.put(keyPrefix, stat);
+        });
+        return stats;
+    }
+
+    /**
+     * XFetch：判断是否需要在过期之前提前重建缓存
+     * 当前时间 - 重建耗时 * beta * ln(random) >= 逻辑过期时间 时需要提前重建（random为(0, 1]的随机数，ln(random) <= 0）
+     * 没有开启提前刷新、没有逻辑过期时间或没有记录重建耗时的缓存不会提前刷新
+     */
+    private boolean shouldRefreshEarly(String keyPrefix, RedisData redisData) {
+        Double beta = earlyRefreshBetas.get(keyPrefix);
+        if (beta == null || redisData.getExpireTime() == null || redisData.getRebuildCost() == null) {
+            return false;
+        }
+        long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        double random = 1.0 - ThreadLocalRandom.current().nextDouble();
+        double gap = -redisData.getRebuildCost() * beta * Math.log(random);
+        return System.currentTimeMillis() + gap >= expireAt;
+    }
+
+    /**
+     * 判断缓存a的逻辑过期时间是否比b晚（即a是在b之后重建的）
+     */
+    private static boolean isNewer(RedisData a, RedisData b) {
+        if (a.getExpireTime() == null || b.getExpireTime() == null) {
+            return a.getExpireTime() == null && b.getExpireTime() != null;
+        }
+        return a.getExpireTime().isAfter(b.getExpireTime());
+    }
+
+    /**
+     * 使用key前缀对应的布隆过滤器判断id是否可能存在（没有指定布隆过滤器则返回true）
+     */
+    private boolean mightContain(String keyPrefix, Object id) {
+        String name = bloomFilters.get(keyPrefix);
+        return name == null || bloomFilter.mightContain(name, id);
+    }
+
+    /**
+     * 判断缓存是否已经逻辑过期（没有逻辑过期时间说明一直有效）
+     */
+    private static boolean isExpired(RedisData redisData) {
+        return redisData.getExpireTime() != null && !redisData.getExpireTime().isAfter(LocalDateTime.now());
+    }
+
+    /**
+     * 根据key的存储格式从Redis读取缓存
+     * 二进制格式的key如果仍是Hash类型（迁移前写入的数据），则按Hash格式读取
+     * @param key 缓存的key
+     * @param type 对象类型
+     * @return null表示未命中；data为null表示命中空值；否则data为对象，expireTime为逻辑过期时间（可能为null）
+     */
+    private <R> RedisData read(String key, Class<R> type) {
+        if (formatOf(key) == CacheFormat.BINARY) {
+            try {
+                return fromBinary(getBytes(key), type);
+            } catch (DataAccessException e) {
+                if (!isWrongType(e)) {
+                    throw e;
+                }
+                // 迁移前写入的Hash格式数据 继续往下按Hash读取
+            }
+        }
+        HashOperations<String, Object, Object> ops = redisTemplate.opsForHash();
+        // 如果查询不到key对应的val，ops.entries会返回一个空的Map，而不是null
+        return fromHash(ops.entries(key), type);
+    }
+
+    /**
+     * 使用一次pipeline读取多个key的缓存，返回值与read相同
+     */
+    private <R, ID> List<RedisData> readPipelined(String keyPrefix, List<ID> ids, Class<R> type) {
+        List<RedisData> results = new ArrayList<>(ids.size());
+        if (formatOf(keyPrefix) == CacheFormat.HASH) {
+            List<Object> raws = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (ID id : ids) {
+                    conn.hGetAll(keyPrefix + id);
+                }
+                return null;
+            });
+            for (Object raw : raws) {
+                results.add(fromHash((Map<?, ?>) raw, type));
+            }
+            return results;
+        }
+        List<Object> raws;
+        try {
+            raws = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : ids) {
+                    connection.get(toBytes(keyPrefix + id));
+                }
+                return null;
+            }, RedisSerializer.byteArray());
+        } catch (RedisPipelineException e) {
+            // 部分key仍是Hash格式，结果中对应位置为异常
+            raws = e.getPipelineResult();
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            Object raw = raws.get(i);
+            if (raw instanceof Exception) {
+                results.add(read(keyPrefix + ids.get(i), type));
+            } else {
+                results.add(fromBinary((byte[]) raw, type));
+            }
+        }
+        return results;
+    }
+
+    private <R> RedisData fromHash(Map<?, ?> objectMap, Class<R> type) {
+        if (objectMap == null || objectMap.isEmpty()) {
+            return null;
+        }
+        RedisData redisData = new RedisData();
+        // 空值
+        if (objectMap.size() == 1 && objectMap.containsKey("")) {
+            return redisData;
+        }
+        // 使用编解码器将map转化为对象
+        redisData.setData(HashCodec.of(type).decode(objectMap));
+        Object expireTime = objectMap.get(LOGICAL_EXPIRE_TIME_FIELD);
+        if (expireTime != null) {
+            redisData.setExpireTime(HashCodec.parseLocalDateTime((String) expireTime));
+        }
+        Object rebuildCost = objectMap.get(REBUILD_COST_FIELD);
+        if (rebuildCost != null) {
+            redisData.setRebuildCost(Long.valueOf((String) rebuildCost));
+        }
+        return redisData;
+    }
+
+    private <R> RedisData fromBinary(byte[] bytes, Class<R> type) {
+        if (bytes == null) {
+            return null;
+        }
+        // 空值
+        if (bytes.length == 0) {
+            return new RedisData();
+        }
+        // 对象结构发生变化的旧数据视为未命中
+        return BinaryCodec.of(type).decode(bytes);
+    }
+
+    /**
+     * 根据key的存储格式将对象写入Redis
+     * @param key 缓存的key
+     * @param object 对象
+     * @param expireTime 逻辑过期时间，为null表示不需要
+     * @param rebuildCost 重建缓存的耗时（毫秒），为null表示不需要
+     * @param timeout 过期时间，为null表示不设置过期时间
+     * @param unit 过期时间的单位
+     */
+    private void write(String key, Object object, LocalDateTime expireTime, Long rebuildCost, Long timeout, TimeUnit unit) {
+        if (formatOf(key) == CacheFormat.BINARY) {
+            setBytes(key, toBinary(object, expireTime, rebuildCost), timeout, unit);
+            return;
+        }
+        HashOperations<String, Object, Object> opsForHash = redisTemplate.opsForHash();
+        // 将object转化为map
+        Map<String, String> objectMap = toHash(object);
+        if (expireTime != null) {
+            objectMap.put(LOGICAL_EXPIRE_TIME_FIELD, expireTime.format(formatter));
+        }
+        if (rebuildCost != null) {
+            objectMap.put(REBUILD_COST_FIELD, rebuildCost.toString());
+        }
+        // 将map存入redis
+        opsForHash.putAll(key, objectMap);
+        // 设置ttl
+        if (timeout != null) {
+            redisTemplate.expire(key, timeout, unit);
+        }
+    }
+
+    /**
+     * 写入空值，空值的过期时间为CACHE_NULL_TTL分钟
+     * @param key 缓存的key
+     */
+    private void writeNull(String key) {
+        if (formatOf(key) == CacheFormat.BINARY) {
+            setBytes(key, new byte[0], CACHE_NULL_TTL, TimeUnit.MINUTES);
+            return;
+        }
+        redisTemplate.opsForHash().put(key, "", "");
+        redisTemplate.expire(key, CACHE_NULL_TTL, TimeUnit.MINUTES);
+    }
+
+    private byte[] getBytes(String key) {
+        return redisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(toBytes(key)));
+    }
+
+    private void setBytes(String key, byte[] bytes, Long timeout, TimeUnit unit) {
+        redisTemplate.execute((RedisCallback<Object>) connection -> timeout == null
+                ? connection.set(toBytes(key), bytes)
+                : connection.set(toBytes(key), bytes, Expiration.from(timeout, unit), RedisStringCommands.SetOption.upsert()));
+    }
+
+    private static byte[] toBytes(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 判断是否是由于key的类型与命令不匹配导致的异常（例如对Hash类型的key执行GET）
+     */
+    private static boolean isWrongType(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("WRONGTYPE")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 将对象转化为存入Redis Hash的map（忽略值为null的字段，其余字段均转为字符串）
+     * @param object 对象
+     * @return 字段名 --> 字段值
+     */
+    @SuppressWarnings("unchecked")
+    private <R> Map<String, String> toHash(R object) {
+        HashCodec<R> codec = HashCodec.of((Class<R>) object.getClass());
+        return codec.encode(object);
+    }
+
+    /**
+     * 将对象转化为二进制
+     * @param object 对象
+     * @param expireTime 逻辑过期时间，为null表示不需要
+     * @param rebuildCost 重建缓存的耗时（毫秒），为null表示不需要
+     * @return 二进制数据
+     */
+    @SuppressWarnings("unchecked")
+    private <R> byte[] toBinary(R object, LocalDateTime expireTime, Long rebuildCost) {
+        BinaryCodec<R> codec = BinaryCodec.of((Class<R>) object.getClass());
+        return codec.encode(object, expireTime, rebuildCost, compressThreshold);
+    }
+
+    /**
+     * 锁住对应的key，锁的值为本次加锁的随机标识
+     * （重建缓存耗时超过LOCK_TTL时锁会过期并被其它请求获取，解锁时需要用标识判断锁是否仍然属于自己）
      * @param key
-     * @return
+     * @return 加锁成功返回标识，失败返回null
      */
-    private boolean tryLock(String key) {
-        Boolean result = redisTemplate.opsForValue().setIfAbsent(key, LOCK_VAL, LOCK_TTL, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(result);
+    private String tryLock(String key) {
+        String token = IdUtil.fastSimpleUUID();
+        Boolean result = redisTemplate.opsForValue().setIfAbsent(key, token, LOCK_TTL, TimeUnit.SECONDS);
+        return BooleanUtil.isTrue(result) ? token : null;
     }
 
     /**
-     * 为对应的key解锁
+     * 为对应的key解锁：执行lua脚本，锁的值与标识一致才删除（不会误删其它请求的锁）
      * @param key
+     * @param token 加锁时返回的标识
      */
-    private void unlock(String key) {
-        redisTemplate.delete(key);
+    private void unlock(String key, String token) {
+        redisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key), token);
+    }
+
+    /**
+     * 一个key前缀逻辑过期缓存的读取情况
+     */
+    private static final class LogicalExpireMetrics {
+        final LongAdder fresh = new LongAdder();
+        final LongAdder stale = new LongAdder();
+        final LongAdder early = new LongAdder();
+        final LongAdder rebuilds = new LongAdder();
     }
 }
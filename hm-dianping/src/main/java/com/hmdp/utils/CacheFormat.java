@@ -0,0 +1,16 @@
+package com.hmdp.utils;
+
+/**
+ * 对象在Redis中的存储格式
+ */
+public enum CacheFormat {
+    /**
+     * Hash：每个字段toString()后作为一个field存储（默认）
+     */
+    HASH,
+    /**
+     * 二进制：整个对象使用BinaryCodec编码后作为一个String存储，较大时进行LZ4压缩
+     * 读取时如果发现key仍是Hash类型，会按Hash格式读取，便于从HASH平滑迁移
+     */
+    BINARY
+}
@@ -0,0 +1,83 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.util.*;
+
+/**
+ * 多路归并收件箱与大V发件箱（推拉结合的关注流）
+ * 每一路是一个ZREVRANGEBYSCORE key 0 max WITHSCORES LIMIT 0 offset+count的结果（已经按时间戳从大到小排好序），
+ * 归并后的顺序与把所有帖子放在同一个zset中执行ZREVRANGEBYSCORE的顺序一致：
+ * 时间戳从大到小，时间戳相同时按帖子id（字符串）从大到小
+ * 因此滚动分页的max、offset在归并后的结果上含义不变：跳过前offset条（时间戳=max且已经返回过的帖子），再取count条
+ * 每一路只需要读取前offset+count条：任意一路排在offset+count之后的帖子，在归并结果中也一定排在offset+count之后
+ */
+public final class FeedMerger {
+
+    private static final Comparator<ZSetOperations.TypedTuple<String>> ORDER =
+            Comparator.comparing(ZSetOperations.TypedTuple<String>::getScore, Comparator.reverseOrder())
+                    .thenComparing(ZSetOperations.TypedTuple::getValue, Comparator.reverseOrder());
+
+    private FeedMerger() {
+    }
+
+    /**
+     * 1. 每一路的第一条放入小顶堆（按ORDER排序，堆顶即为当前最新的帖子）
+     * 2. 每次取出堆顶，并放入其所在一路的下一条
+     * 3. 跳过前offset条，收集count条（同一篇帖子出现在多路时只保留一次）
+     * @param sources 每一路的结果（可以为null）
+     * @param offset 跳过的条数
+     * @param count 返回的条数
+     * @return 归并后的帖子id和时间戳
+     */
+    public static List<ZSetOperations.TypedTuple<String>> merge(List<? extends Collection<ZSetOperations.TypedTuple<String>>> sources,
+                                                               int offset, int count) {
+        // 1. 每一路的第一条放入堆
+        PriorityQueue<Head> heap = new PriorityQueue<>(Math.max(1, sources.size()),
+                (a, b) -> ORDER.compare(a.current, b.current));
+        for (Collection<ZSetOperations.TypedTuple<String>> source : sources) {
+            if (source == null) {
+                continue;
+            }
+            Iterator<ZSetOperations.TypedTuple<String>> iterator = source.iterator();
+            if (iterator.hasNext()) {
+                heap.add(new Head(iterator.next(), iterator));
+            }
+        }
+        List<ZSetOperations.TypedTuple<String>> result = new ArrayList<>(count);
+        Set<String> seen = new HashSet<>();
+        int skipped = 0;
+        while (!heap.isEmpty() && result.size() < count) {
+            // 2. 取出堆顶，放入下一条
+            Head head = heap.poll();
+            ZSetOperations.TypedTuple<String> tuple = head.current;
+            if (head.rest.hasNext()) {
+                head.current = head.rest.next();
+                heap.add(head);
+            }
+            // 3. 去重、跳过、收集
+            if (!seen.add(tuple.getValue())) {
+                continue;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            result.add(tuple);
+        }
+        return result;
+    }
+
+    /**
+     * 一路结果中当前未归并的第一条及其后面的部分
+     */
+    private static class Head {
+        private ZSetOperations.TypedTuple<String> current;
+        private final Iterator<ZSetOperations.TypedTuple<String>> rest;
+
+        Head(ZSetOperations.TypedTuple<String> current, Iterator<ZSetOperations.TypedTuple<String>> rest) {
+            this.current = current;
+            this.rest = rest;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.util.StrUtil;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 对象与Redis Hash之间的编解码器
+ * 代替BeanUtil.beanToMap / BeanUtil.fillBeanWithMap：
+ * 每种类型只在第一次使用时通过反射找到字段的getter/setter，并用LambdaMetafactory生成对应的Function/BiConsumer，
+ * 之后的每次编解码都是普通的方法调用，没有反射开销
+ * 编码规则与原来保持一致：字段调用toString()转为字符串，值为null的字段不写入（原来会写成空字符串，解码时同样会被忽略），
+ * 因此可以直接读取已有的缓存数据
+ * @param <T> 对象类型
+ */
+public final class HashCodec<T> {
+
+    /**
+     * 类型 --> 该类型的编解码器
+     */
+    private static final Map<Class<?>, HashCodec<?>> CODECS = new ConcurrentHashMap<>();
+
+    /**
+     * 字段类型 --> 将字符串转化为该类型的函数
+     */
+    private static final Map<Class<?>, Function<String, Object>> PARSERS = new HashMap<>();
+
+    static {
+        PARSERS.put(String.class, s -> s);
+        PARSERS.put(Long.class, Long::valueOf);
+        PARSERS.put(long.class, Long::valueOf);
+        PARSERS.put(Integer.class, Integer::valueOf);
+        PARSERS.put(int.class, Integer::valueOf);
+        PARSERS.put(Double.class, Double::valueOf);
+        PARSERS.put(double.class, Double::valueOf);
+        PARSERS.put(Float.class, Float::valueOf);
+        PARSERS.put(float.class, Float::valueOf);
+        PARSERS.put(Short.class, Short::valueOf);
+        PARSERS.put(short.class, Short::valueOf);
+        PARSERS.put(Byte.class, Byte::valueOf);
+        PARSERS.put(byte.class, Byte::valueOf);
+        PARSERS.put(Boolean.class, Boolean::valueOf);
+        PARSERS.put(boolean.class, Boolean::valueOf);
+        PARSERS.put(BigDecimal.class, BigDecimal::new);
+        PARSERS.put(LocalDateTime.class, HashCodec::parseLocalDateTime);
+        PARSERS.put(LocalDate.class, LocalDate::parse);
+    }
+
+    private final Class<T> type;
+    private final Supplier<T> constructor;
+    private final Property<T>[] properties;
+
+    /**
+     * 获取指定类型的编解码器（第一次获取时生成，之后直接从缓存中获取）
+     * @param type 对象类型，需要有public无参构造方法以及public的getter/setter
+     * @return 编解码器
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> HashCodec<T> of(Class<T> type) {
+        return (HashCodec<T>) CODECS.computeIfAbsent(type, HashCodec::new);
+    }
+
+    @SuppressWarnings("unchecked")
+    private HashCodec(Class<T> type) {
+        this.type = type;
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            this.constructor = createConstructor(lookup, type);
+            List<Property<T>> list = new ArrayList<>();
+            for (Field field : fieldsOf(type)) {
+                Method getter = findGetter(type, field);
+                Method setter = findSetter(type, field);
+                if (getter == null || setter == null) {
+                    continue;
+                }
+                list.add(new Property<>(field.getName(), field.getType(),
+                        createGetter(lookup, type, getter), createSetter(lookup, type, setter)));
+            }
+            this.properties = list.toArray(new Property[0]);
+        } catch (Throwable e) {
+            throw new IllegalStateException("无法生成" + type.getName() + "的编解码器", e);
+        }
+    }
+
+    /**
+     * 将对象编码为Redis Hash（忽略值为null的字段）
+     * @param object 对象
+     * @return 字段名 --> 字段值
+     */
+    public Map<String, String> encode(T object) {
+        Map<String, String> hash = new HashMap<>((int) (properties.length / 0.75f) + 1);
+        for (Property<T> property : properties) {
+            Object value = property.getter.apply(object);
+            if (value != null) {
+                hash.put(property.name, value.toString());
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * 将Redis Hash解码为对象（Hash中不属于该对象的字段会被忽略，例如逻辑过期时间）
+     * @param hash 从Redis中查询到的Hash
+     * @return 对象
+     */
+    public T decode(Map<?, ?> hash) {
+        T object = constructor.get();
+        for (Property<T> property : properties) {
+            Object raw = hash.get(property.name);
+            if (raw == null) {
+                continue;
+            }
+            String value = raw.toString();
+            // 空字符串只对String类型的字段有意义
+            if (value.isEmpty() && property.type != String.class) {
+                continue;
+            }
+            property.setter.accept(object, property.parser.apply(value));
+        }
+        return object;
+    }
+
+    /**
+     * @return 编解码器对应的对象类型
+     */
+    public Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * @return 使用无参构造方法创建的新对象
+     */
+    T newInstance() {
+        return constructor.get();
+    }
+
+    /**
+     * @return 参与编解码的字段（按字段名排序）
+     */
+    List<Property<T>> properties() {
+        return Arrays.asList(properties);
+    }
+
+    /**
+     * 获取类型及其父类中所有非static、非transient的字段，按字段名排序
+     */
+    private static List<Field> fieldsOf(Class<?> type) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)) {
+                    fields.add(field);
+                }
+            }
+        }
+        fields.sort(Comparator.comparing(Field::getName));
+        return fields;
+    }
+
+    private static Method findGetter(Class<?> type, Field field) {
+        String name = StrUtil.upperFirst(field.getName());
+        for (String getterName : new String[]{"get" + name, "is" + name}) {
+            try {
+                Method method = type.getMethod(getterName);
+                if (method.getReturnType() == field.getType()) {
+                    return method;
+                }
+            } catch (NoSuchMethodException ignored) {
+            }
+        }
+        return null;
+    }
+
+    private static Method findSetter(Class<?> type, Field field) {
+        try {
+            // 兼容@Accessors(chain = true)生成的返回this的setter
+            return type.getMethod("set" + StrUtil.upperFirst(field.getName()), field.getType());
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Supplier<T> createConstructor(MethodHandles.Lookup lookup, Class<T> type) throws Throwable {
+        MethodHandle handle = lookup.findConstructor(type, MethodType.methodType(void.class));
+        CallSite site = LambdaMetafactory.metafactory(lookup, "get",
+                MethodType.methodType(Supplier.class),
+                MethodType.methodType(Object.class),
+                handle,
+                MethodType.methodType(type));
+        return (Supplier<T>) site.getTarget().invoke();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Function<T, Object> createGetter(MethodHandles.Lookup lookup, Class<T> type, Method getter) throws Throwable {
+        MethodHandle handle = lookup.unreflect(getter);
+        CallSite site = LambdaMetafactory.metafactory(lookup, "apply",
+                MethodType.methodType(Function.class),
+                MethodType.methodType(Object.class, Object.class),
+                handle,
+                MethodType.methodType(wrap(getter.getReturnType()), type));
+        return (Function<T, Object>) site.getTarget().invoke();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> BiConsumer<T, Object> createSetter(MethodHandles.Lookup lookup, Class<T> type, Method setter) throws Throwable {
+        MethodHandle handle = lookup.unreflect(setter);
+        CallSite site = LambdaMetafactory.metafactory(lookup, "accept",
+                MethodType.methodType(BiConsumer.class),
+                MethodType.methodType(void.class, Object.class, Object.class),
+                handle,
+                MethodType.methodType(void.class, type, wrap(setter.getParameterTypes()[0])));
+        return (BiConsumer<T, Object>) site.getTarget().invoke();
+    }
+
+    /**
+     * 解析LocalDateTime.toString()的结果，格式为yyyy-MM-ddTHH:mm[:ss[.SSS...]]
+     * 比LocalDateTime.parse快一个数量级，格式不符时退回LocalDateTime.parse
+     */
+    static LocalDateTime parseLocalDateTime(String s) {
+        int length = s.length();
+        if (length < 16 || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T' || s.charAt(13) != ':') {
+            return LocalDateTime.parse(s);
+        }
+        int second = 0;
+        int nano = 0;
+        if (length > 16) {
+            if (length < 19 || s.charAt(16) != ':') {
+                return LocalDateTime.parse(s);
+            }
+            second = digits(s, 17, 19);
+            if (length > 19) {
+                if (s.charAt(19) != '.' || length > 29) {
+                    return LocalDateTime.parse(s);
+                }
+                nano = digits(s, 20, length);
+                for (int i = length; i < 29; i++) {
+                    nano *= 10;
+                }
+            }
+        }
+        return LocalDateTime.of(digits(s, 0, 4), digits(s, 5, 7), digits(s, 8, 10),
+                digits(s, 11, 13), digits(s, 14, 16), second, nano);
+    }
+
+    private static int digits(String s, int begin, int end) {
+        int value = 0;
+        for (int i = begin; i < end; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new DateTimeParseException("无法解析的时间：" + s, s, i);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static Class<?> wrap(Class<?> type) {
+        return MethodType.methodType(type).wrap().returnType();
+    }
+
+    /**
+     * 参与编解码的一个字段
+     */
+    static final class Property<T> {
+        final String name;
+        final Class<?> type;
+        final Function<T, Object> getter;
+        final BiConsumer<T, Object> setter;
+        final Function<String, Object> parser;
+
+        Property(String name, Class<?> type, Function<T, Object> getter, BiConsumer<T, Object> setter) {
+            this.name = name;
+            this.type = type;
+            this.getter = getter;
+            this.setter = setter;
+            this.parser = PARSERS.getOrDefault(type, s -> Convert.convert(type, s));
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 热点key探测
+ * 1. 每次访问Redis key时调用record，按采样率采样（降低开销）
+ * 2. 采样到的key计入Count-Min Sketch（固定内存的近似计数，只会高估不会低估）
+ * 3. 估计次数达到阈值的key成为候选
+ * 4. 每个统计窗口结束时，从候选中选出估计次数最多的top-K作为热点key，并将所有计数减半（旧的访问逐渐衰减）
+ * 热点key会被NearCache以较短的有效时间缓存在本地（见NearCache.enablePinning），避免集中访问Redis的同一个分片
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+    private static final ScheduledExecutorService HOT_KEY_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Count-Min Sketch的行数（哈希函数个数）、每行的计数器个数
+     */
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1 << 12;
+
+    private final AtomicLongArray sketch = new AtomicLongArray(DEPTH * WIDTH);
+
+    /**
+     * 候选key
+     */
+    private final Set<String> candidates = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 当前的热点key --> 估计的访问次数（已按采样率还原）
+     */
+    private volatile Map<String, Long> hotKeys = Collections.emptyMap();
+
+    @Value("${hmdp.hotkey.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 采样率
+     */
+    @Value("${hmdp.hotkey.sample-rate:0.1}")
+    private double sampleRate;
+
+    /**
+     * 估计访问次数（计数减半衰减后）达到多少才可能成为热点key
+     */
+    @Value("${hmdp.hotkey.threshold:500}")
+    private long threshold;
+
+    /**
+     * 热点key的个数
+     */
+    @Value("${hmdp.hotkey.top-k:20}")
+    private int topK;
+
+    /**
+     * 统计窗口的长度（秒）
+     */
+    @Value("${hmdp.hotkey.window-seconds:5}")
+    private long windowSeconds;
+
+    /**
+     * 运维接口可以原样展示的key前缀，其它key只展示第一段（例如login:*）
+     */
+    @Value("${hmdp.hotkey.exposed-prefixes:cache:,blog:liked:}")
+    private String[] exposedPrefixes;
+
+    @PostConstruct
+    private void init() {
+        if (enabled) {
+            HOT_KEY_EXECUTOR.scheduleWithFixedDelay(this::rotate, windowSeconds, windowSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 记录一次key的访问
+     * @param key 完整的key
+     */
+    public void record(String key) {
+        if (!enabled || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        long estimate = Long.MAX_VALUE;
+        for (int index : indexes(key)) {
+            estimate = Math.min(estimate, sketch.incrementAndGet(index));
+        }
+        // 候选个数有上限，避免大量key同时达到阈值时占用过多内存
+        if (estimate >= threshold * sampleRate && candidates.size() < topK * 8) {
+            candidates.add(key);
+        }
+    }
+
+    /**
+     * @param key 完整的key
+     * @return 是否是当前的热点key
+     */
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * @return 当前的热点key --> 估计的访问次数，按访问次数降序排列
+     */
+    public Map<String, Long> hotKeys() {
+        return hotKeys;
+    }
+
+    /**
+     * 用于运维接口展示的热点key：前缀不在exposed-prefixes中的key只保留第一段，访问次数合并
+     * @return 热点key（或其掩码） --> 估计的访问次数，按访问次数降序排列
+     */
+    public Map<String, Long> exposedHotKeys() {
+        Map<String, Long> merged = new HashMap<>();
+        for (Map.Entry<String, Long> entry : hotKeys.entrySet()) {
+            merged.merge(mask(entry.getKey()), entry.getValue(), Long::sum);
+        }
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(merged.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        Map<String, Long> exposed = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : entries) {
+            exposed.put(entry.getKey(), entry.getValue());
+        }
+        return exposed;
+    }
+
+    private String mask(String key) {
+        for (String prefix : exposedPrefixes) {
+            if (!prefix.isEmpty() && key.startsWith(prefix)) {
+                return key;
+            }
+        }
+        int end = key.indexOf(':');
+        return (end < 0 ? key : key.substring(0, end)) + ":*";
+    }
+
+    /**
+     * 统计窗口结束
+     * 1. 从候选中选出估计次数仍然达到阈值、且估计次数最多的top-K作为热点key
+     * 2. 所有计数减半
+     * 3. 清空候选，热点key仍然作为下一个窗口的候选
+     */
+    private void rotate() {
+        try {
+            // 1. 选出top-K
+            List<Map.Entry<String, Long>> entries = new ArrayList<>();
+            for (String key : candidates) {
+                long estimate = estimate(key);
+                if (estimate >= threshold * sampleRate) {
+                    entries.add(new AbstractMap.SimpleEntry<>(key, estimate));
+                }
+            }
+            entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+            Map<String, Long> hot = new LinkedHashMap<>();
+            for (Map.Entry<String, Long> entry : entries.subList(0, Math.min(topK, entries.size()))) {
+                hot.put(entry.getKey(), (long) (entry.getValue() / sampleRate));
+            }
+            if (!hot.keySet().equals(hotKeys.keySet())) {
+                log.debug("热点key：{}", hot);
+            }
+            hotKeys = Collections.unmodifiableMap(hot);
+            // 2. 计数减半
+            for (int i = 0; i < sketch.length(); i++) {
+                sketch.getAndUpdate(i, count -> count >>> 1);
+            }
+            // 3. 清空候选
+            candidates.clear();
+            candidates.addAll(hot.keySet());
+        } catch (Exception e) {
+            log.error("统计热点key失败", e);
+        }
+    }
+
+    /**
+     * @return key在Count-Min Sketch中的估计次数（各行计数器的最小值）
+     */
+    private long estimate(String key) {
+        long estimate = Long.MAX_VALUE;
+        for (int index : indexes(key)) {
+            estimate = Math.min(estimate, sketch.get(index));
+        }
+        return estimate;
+    }
+
+    /**
+     * @return key在Count-Min Sketch每一行中对应的计数器下标（对64位MurmurHash的高低32位做双重哈希）
+     */
+    private static int[] indexes(String key) {
+        long hash = MurmurHash.hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        int[] indexes = new int[DEPTH];
+        for (int i = 0; i < DEPTH; i++) {
+            indexes[i] = i * WIDTH + ((h1 + i * h2) & Integer.MAX_VALUE) % WIDTH;
+        }
+        return indexes;
+    }
+}
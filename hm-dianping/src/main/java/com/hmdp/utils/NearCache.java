@@ -0,0 +1,161 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+
+/**
+ * 进程内一级缓存（L1），位于Redis二级缓存（L2）之前
+ * 1. 按key前缀注册，只有注册过的前缀才会走本地缓存
+ * 2. 每个前缀一个LRU缓存，容量满时淘汰最久未访问的数据，写入超过ttl后自动失效
+ * 3. 通过Redis发布订阅广播失效消息，保证某个节点删除缓存后，所有节点的本地缓存都会被清除
+ * 4. 开启热点key缓存后，未注册前缀的key如果被HotKeyDetector判断为热点key，也会以较短的有效时间缓存在本地
+ */
+@Slf4j
+@Component
+public class NearCache implements MessageListener {
+
+    /**
+     * key前缀 --> 该前缀对应的本地缓存
+     */
+    private final Map<String, LRUCache<String, Object>> caches = new ConcurrentHashMap<>();
+
+    /**
+     * 热点key的本地缓存，为null表示未开启
+     */
+    private volatile LRUCache<String, Object> pinned;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private HotKeyDetector hotKeyDetector;
+
+    /**
+     * 为指定的key前缀开启本地缓存
+     * @param keyPrefix key前缀，例如cache:shop:
+     * @param capacity 最多缓存的对象个数
+     * @param ttl 本地缓存的有效时间（应远小于Redis中的ttl，用于兜底失效消息丢失的情况）
+     * @param unit 有效时间的单位
+     */
+    public void register(String keyPrefix, int capacity, long ttl, TimeUnit unit) {
+        caches.put(keyPrefix, CacheUtil.newLRUCache(capacity, unit.toMillis(ttl)));
+        log.debug("开启本地缓存，前缀：{}，容量：{}，ttl：{}ms", keyPrefix, capacity, unit.toMillis(ttl));
+    }
+
+    /**
+     * 开启热点key的本地缓存
+     * @param capacity 最多缓存的热点key个数
+     * @param ttl 有效时间（热点key不属于已注册的前缀，应比前缀缓存的有效时间更短）
+     * @param unit 有效时间的单位
+     */
+    public void enablePinning(int capacity, long ttl, TimeUnit unit) {
+        pinned = CacheUtil.newLRUCache(capacity, unit.toMillis(ttl));
+        log.debug("开启热点key本地缓存，容量：{}，ttl：{}ms", capacity, unit.toMillis(ttl));
+    }
+
+    /**
+     * 从本地缓存获取对象
+     * @param keyPrefix key前缀
+     * @param key 完整的key
+     * @return 缓存的对象，未开启本地缓存或未命中时返回null
+     */
+    public Object get(String keyPrefix, String key) {
+        LRUCache<String, Object> cache = caches.get(keyPrefix);
+        if (cache == null) {
+            // 未注册的前缀 查询热点key缓存
+            LRUCache<String, Object> hot = pinned;
+            return hot == null ? null : hot.get(key, false);
+        }
+        // 不刷新最后访问时间，保证写入ttl之后一定失效
+        return cache.get(key, false);
+    }
+
+    /**
+     * 将对象写入本地缓存（未开启本地缓存的前缀只缓存热点key，其余直接忽略）
+     */
+    public void put(String keyPrefix, String key, Object value) {
+        if (value == null) {
+            return;
+        }
+        LRUCache<String, Object> cache = caches.get(keyPrefix);
+        if (cache != null) {
+            cache.put(key, value);
+            return;
+        }
+        LRUCache<String, Object> hot = pinned;
+        if (hot != null && hotKeyDetector.isHot(key)) {
+            hot.put(key, value);
+        }
+    }
+
+    /**
+     * 清除所有节点上该key的本地缓存
+     * @param key 完整的key
+     */
+    public void invalidate(String key) {
+        evictLocal(key);
+        redisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 只清除当前节点上该key的本地缓存
+     * @param key 完整的key
+     */
+    public void evictLocal(String key) {
+        for (Map.Entry<String, LRUCache<String, Object>> entry : caches.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                entry.getValue().remove(key);
+            }
+        }
+        LRUCache<String, Object> hot = pinned;
+        if (hot != null) {
+            hot.remove(key);
+        }
+    }
+
+    /**
+     * 收到其它节点广播的失效消息，清除本地缓存
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        evictLocal(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 各个前缀的本地缓存命中情况
+     * @return 前缀 --> {size, hit, miss}（热点key缓存的前缀为hotkey）
+     */
+    public Map<String, Map<String, Long>> stats() {
+        Map<String, Map<String, Long>> stats = new LinkedHashMap<>();
+        caches.forEach((keyPrefix, cache) -> {
+            Map<String, Long> stat = new LinkedHashMap<>();
+            stat.put("size", (long) cache.size());
+            stat.put("hit", cache.getHitCount());
+            stat.put("miss", cache.getMissCount());
+            stats.put(keyPrefix, stat);
+        });
+        LRUCache<String, Object> hot = pinned;
+        if (hot != null) {
+            Map<String, Long> stat = new LinkedHashMap<>();
+            stat.put("size", (long) hot.size());
+            stat.put("hit", hot.getHitCount());
+            stat.put("miss", hot.getMissCount());
+            stats.put("hotkey", stat);
+        }
+        return stats;
+    }
+}
@@ -10,6 +10,21 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    /**
+     * 本地缓存失效消息的发布订阅频道
+     */
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+
+    /**
+     * 布隆过滤器的Redis共享位图key前缀，以及新增元素消息的发布订阅频道
+     */
+    public static final String BLOOM_FILTER_KEY = "bloom:";
+    public static final String BLOOM_FILTER_CHANNEL = "bloom:add";
+    /**
+     * 布隆过滤器的名称
+     */
+    public static final String BLOOM_SHOP = "shop";
+    public static final String BLOOM_BLOG = "blog";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
@@ -18,7 +33,49 @@ public class RedisConstants {
      * 秒杀优惠券的库存key
      */
     public static final String SECKILL_STOCK_KEY = "stock:seckillvoucher:";
+    /**
+     * 购买了秒杀优惠券的用户set
+     */
+    public static final String SECKILL_ORDER_KEY = "order:seckillvoucher:";
+    /**
+     * 秒杀优惠券的库存分片个数（不存在表示没有分片）
+     */
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    /**
+     * 用到过的库存分片个数（set），每个节点为前max个分片的订单消息队列启动消费者
+     */
+    public static final String SECKILL_SHARD_COUNTS_KEY = "seckill:shards:counts";
+    /**
+     * 秒杀优惠券售罄、恢复消息的发布订阅频道
+     */
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    /**
+     * 库存对账的分布式锁，多个节点中同一时刻只有一个节点对账、修复
+     */
+    public static final String SECKILL_RECONCILE_LOCK_KEY = "lock:seckill:reconcile";
+    /**
+     * 最近一次库存对账的id（节点据此判断上一次对账之后是否有其它节点对账过）
+     */
+    public static final String SECKILL_RECONCILE_LAST_KEY = "seckill:reconcile:last";
+    /**
+     * 下单消息队列及其消费组
+     */
+    public static final String ORDER_STREAM_KEY = "stream.orders";
+    public static final String ORDER_STREAM_GROUP = "g1";
+    /**
+     * 多次投递仍处理失败的下单消息（死信队列）
+     */
+    public static final String ORDER_STREAM_DLQ_KEY = "stream.orders.dlq";
+    /**
+     * 等待支付的订单zset：订单id --> 支付截止时间（毫秒），超时未支付的订单会被取消并归还库存
+     */
+    public static final String ORDER_TIMEOUT_KEY = "order:timeout";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    /**
+     * 还没有写回数据库的点赞数增量（hash：帖子id --> 增量），以及正在写回的增量
+     */
+    public static final String BLOG_LIKED_DELTA_KEY = "blog:liked:delta";
+    public static final String BLOG_LIKED_FLUSHING_KEY = "blog:liked:delta:flushing";
     /**
      * 用户的关注列表
      */
@@ -27,13 +84,35 @@ public class RedisConstants {
      * 用户收件箱
      */
     public static final String INBOX_KEY = "inbox:";
+    /**
+     * 发布帖子后推送到粉丝收件箱的任务队列及其消费组
+     */
+    public static final String FEED_FANOUT_STREAM_KEY = "stream.feed";
+    public static final String FEED_FANOUT_GROUP = "g1";
+    /**
+     * 帖子推送的进度（hash：已推送到的tb_follow id、已推送的粉丝数、粉丝总数、是否完成）
+     */
+    public static final String FEED_FANOUT_KEY = "feed:fanout:";
+    public static final Long FEED_FANOUT_TTL = 1L;
+    /**
+     * 大V（粉丝数达到阈值的作者）的发件箱，粉丝读取关注流时拉取
+     */
+    public static final String OUTBOX_KEY = "outbox:";
+    /**
+     * 拥有发件箱的作者id（set）
+     */
+    public static final String FEED_BIG_V_KEY = "feed:bigv";
+    /**
+     * 用户最后一次读取关注流的时间（zset），只有其中的用户才有收件箱
+     */
+    public static final String FEED_ACTIVE_KEY = "feed:active";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
     public static final String SHOP_TYPE_KEY = "shop:type";
 
     public static final String LOGICAL_EXPIRE_TIME_FIELD = "expireTime";
+    public static final String REBUILD_COST_FIELD = "rebuildCost";
 
     public static final Long LOCK_TTL = 10L;
-    public static final String LOCK_VAL = "1";
 }
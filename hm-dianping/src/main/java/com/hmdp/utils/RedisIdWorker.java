@@ -1,13 +1,24 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
     // 初始时间2022-01-01 00:00:00对应的时间戳
@@ -15,33 +26,235 @@ public class RedisIdWorker {
 
     private final static int COUNT_BITS = 32;  // 序列号占用的位数
 
+    private final static long MAX_SEQUENCE = (1L << COUNT_BITS) - 1;  // 序列号的最大值
+
+    private final static DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    // 与LocalDateTime.now()一致，使用本地时区的时间作为时间戳
+    private final static TimeZone ZONE = TimeZone.getDefault();
+
+    // 线程池 用于提前获取下一个号段
+    private static final ExecutorService ID_SEGMENT_EXECUTOR = Executors.newSingleThreadExecutor();
+
     @Autowired
     private StringRedisTemplate redisTemplate;
 
+    /**
+     * 是否使用号段模式生成id
+     */
+    @Value("${hmdp.id.segment.enabled:false}")
+    private boolean segmentEnabled;
+
+    /**
+     * 每次从Redis获取的序列号个数
+     */
+    @Value("${hmdp.id.segment.size:1000}")
+    private int segmentSize;
+
+    /**
+     * 当前号段剩余的比例低于多少时，提前获取下一个号段
+     */
+    @Value("${hmdp.id.segment.prefetch-ratio:0.2}")
+    private double prefetchRatio;
+
+    /**
+     * 业务前缀 --> 号段缓冲
+     */
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
 
     /**
      * 生成全局唯一id
      * 1. 生成时间戳
      * 2. 生成序列号
      * 3. 将两者进行拼接 返回id
+     * 开启号段模式时见nextSegmentId
      * @param keyPrefix 业务对应的前缀
      * @return 生成的唯一id
      */
     public Long nextId(String keyPrefix) {
+        if (segmentEnabled) {
+            return nextSegmentId(keyPrefix);
+        }
         // 1. 生成时间戳
         LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        long timestamp = timestamp(now);
         // 2. 生成序列号
-        // 2.1 拼接key [incr:order:2024:05:01]
-        String date = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 每天一个key 便于统计每天的订单量
-        String key = "incr:" + keyPrefix + ":" + date;
+        String key = sequenceKey(keyPrefix, now);
         long count = redisTemplate.opsForValue().increment(key);
         // 3. 将两者进行拼接
-        Long resultId = timestamp << COUNT_BITS | count;
-        // 返回id
-        return resultId;
+        return compose(timestamp, count);
+    }
+
+    /**
+     * 使用号段模式生成全局唯一id
+     * 1. 每次使用INCRBY从Redis的序列号key中获取一段序列号（号段），之后在本地依次分配，不需要访问Redis
+     * 2. 当前号段使用到一定比例时，在后台线程中提前获取下一个号段（双缓冲），当前号段用完时直接切换
+     * 3. 号段属于获取时的日期，日期变化后丢弃未用完的号段，从新日期的key获取号段，保证(时间戳, 序列号)不重复
+     * 4. 时钟回拨时继续使用回拨前的时间戳，保证id递增
+     * 5. 一天的序列号超过32位时抛出异常
+     * @param keyPrefix 业务对应的前缀
+     * @return 生成的唯一id
+     */
+    public long nextSegmentId(String keyPrefix) {
+        return buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next();
+    }
+
+    /**
+     * @param now 当前时间
+     * @return id的时间戳部分（相对于初始时间的秒数）
+     */
+    public long timestamp(LocalDateTime now) {
+        return now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+    }
+
+    /**
+     * 序列号的key [incr:order:2024:05:01]，每天一个key 便于统计每天的订单量
+     * 也可以在lua脚本中对该key执行INCR生成序列号，再用compose拼接id（见seckillVoucher.lua）
+     * @param keyPrefix 业务对应的前缀
+     * @param now 当前时间
+     * @return 序列号的key
+     */
+    public String sequenceKey(String keyPrefix, LocalDateTime now) {
+        return "incr:" + keyPrefix + ":" + now.format(DATE_FORMATTER);
+    }
+
+    /**
+     * 拼接id
+     * @param timestamp 时间戳部分
+     * @param sequence 序列号
+     * @return id
+     */
+    public static long compose(long timestamp, long sequence) {
+        return timestamp << COUNT_BITS | sequence;
+    }
+
+    /**
+     * 从id中解析生成时间
+     * @param id id
+     * @return 生成id时的时间（精确到秒）
+     */
+    public static LocalDateTime createTime(long id) {
+        return LocalDateTime.ofEpochSecond((id >>> COUNT_BITS) + BEGIN_TIMESTAMP, 0, ZoneOffset.UTC);
+    }
+
+    /**
+     * 一个号段：日期epochDay的序列号[start, end]
+     */
+    private static final class Segment {
+        final long day;
+        final AtomicLong cursor;
+        final long end;
+        // 分配到该序列号时提前获取下一个号段
+        final long prefetchAt;
+
+        Segment(long day, long start, long end, long prefetchAt) {
+            this.day = day;
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    /**
+     * 一个业务前缀的号段缓冲：当前号段、提前获取的下一个号段
+     */
+    private final class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private Future<Segment> next;
+        private volatile long lastTimestamp;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next() {
+            while (true) {
+                long timestamp = currentTimestamp();
+                Segment segment = current;
+                if (segment != null && segment.day == day(timestamp)) {
+                    // 快速路径：在当前号段中分配序列号
+                    long sequence = segment.cursor.getAndIncrement();
+                    if (sequence <= segment.end) {
+                        if (sequence == segment.prefetchAt) {
+                            prefetch(segment);
+                        }
+                        return compose(timestamp, sequence);
+                    }
+                }
+                // 号段用完或者日期变化 切换号段
+                switchSegment(segment, day(timestamp));
+            }
+        }
+
+        /**
+         * @return 当前时间戳，时钟回拨时返回回拨前的时间戳
+         */
+        private long currentTimestamp() {
+            long millis = System.currentTimeMillis();
+            long timestamp = (millis + ZONE.getOffset(millis)) / 1000 - BEGIN_TIMESTAMP;
+            long last = lastTimestamp;
+            if (timestamp < last) {
+                if (last - timestamp > 1) {
+                    log.warn("时钟回拨{}秒，继续使用回拨前的时间戳", last - timestamp);
+                }
+                return last;
+            }
+            if (timestamp > last) {
+                lastTimestamp = timestamp;
+            }
+            return timestamp;
+        }
+
+        private synchronized void prefetch(Segment segment) {
+            if (current == segment && next == null) {
+                next = ID_SEGMENT_EXECUTOR.submit(() -> lease(segment.day));
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, long day) {
+            // 其它线程已经切换
+            if (current != exhausted) {
+                return;
+            }
+            Segment segment = null;
+            if (next != null) {
+                try {
+                    segment = next.get();
+                } catch (Exception e) {
+                    log.warn("提前获取号段失败：{}", e.getMessage());
+                }
+                next = null;
+            }
+            // 提前获取的号段属于之前的日期 不能使用
+            if (segment == null || segment.day != day) {
+                segment = lease(day);
+            }
+            current = segment;
+        }
+
+        /**
+         * INCRBY incr:prefix:yyyy:MM:dd segmentSize 获取一个号段
+         */
+        private Segment lease(long day) {
+            String key = "incr:" + keyPrefix + ":" + LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+            Long end = redisTemplate.opsForValue().increment(key, segmentSize);
+            long start = end - segmentSize + 1;
+            if (start > MAX_SEQUENCE) {
+                throw new IllegalStateException("序列号已用完：" + key);
+            }
+            end = Math.min(end, MAX_SEQUENCE);
+            long prefetchAt = start + (long) ((end - start + 1) * (1 - prefetchRatio));
+            return new Segment(day, start, end, Math.min(prefetchAt, end));
+        }
+
+        /**
+         * @return 时间戳对应的日期（epochDay）
+         */
+        private long day(long timestamp) {
+            return (timestamp + BEGIN_TIMESTAMP) / 86400;
+        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,169 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 秒杀请求的本地闸门，在生成订单id、执行秒杀lua脚本之前拦截请求，不需要访问Redis
+ * 1. 售罄标记：秒杀lua脚本第一次返回库存不足时，在本地标记该优惠券已售罄，并通过Redis发布订阅通知其它节点，
+ *    之后该优惠券的请求直接返回库存不足
+ *    售罄标记在sold-out-ttl-ms后过期，过期后放行请求到Redis重新检查库存：仍然售罄会重新标记，
+ *    补充了库存（或者reopen之后又收到了迟到的售罄消息）则自动恢复，不需要重启
+ * 2. 令牌桶：每个优惠券每秒最多放行permits-per-second个请求到Redis，超出的请求直接返回失败（0表示不限制）
+ * 库存恢复（例如取消订单归还库存）后需要调用reopen清除所有节点的售罄标记
+ */
+@Slf4j
+@Component
+public class SeckillGate implements MessageListener {
+    private static final String SOLD_OUT = "soldout:";
+    private static final String REOPEN = "reopen:";
+
+    /**
+     * 已售罄的优惠券id --> 售罄标记的过期时间（毫秒）
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    /**
+     * 优惠券id --> 令牌桶
+     */
+    private final Map<Long, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    private final LongAdder rejectedSoldOut = new LongAdder();
+    private final LongAdder rejectedThrottled = new LongAdder();
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    /**
+     * 每个优惠券每秒最多放行的请求数，0表示不限制
+     */
+    @Value("${hmdp.seckill.gate.permits-per-second:0}")
+    private long permitsPerSecond;
+
+    /**
+     * 令牌桶的容量（允许的突发请求数）
+     */
+    @Value("${hmdp.seckill.gate.burst:0}")
+    private long burst;
+
+    /**
+     * 售罄标记的有效期，过期后重新访问Redis检查库存
+     */
+    @Value("${hmdp.seckill.gate.sold-out-ttl-ms:1000}")
+    private long soldOutTtlMillis;
+
+    /**
+     * 判断请求是否可以放行到Redis
+     * @param voucherId 优惠券id
+     * @return null表示放行，否则为拒绝的原因
+     */
+    public String tryAdmit(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt != null) {
+            if (System.currentTimeMillis() < expireAt) {
+                rejectedSoldOut.increment();
+                return "优惠券已经卖光啦！";
+            }
+            // 售罄标记已过期，放行到Redis重新检查库存
+            soldOut.remove(voucherId, expireAt);
+        }
+        if (permitsPerSecond > 0) {
+            TokenBucket bucket = buckets.computeIfAbsent(voucherId,
+                    id -> new TokenBucket(permitsPerSecond, burst > 0 ? burst : permitsPerSecond));
+            if (!bucket.tryAcquire()) {
+                rejectedThrottled.increment();
+                return "活动太火爆，请稍后再试！";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 标记优惠券已售罄，并通知其它节点（本地已有未过期的标记时只延长有效期，不重复通知）
+     * @param voucherId 优惠券id
+     */
+    public void markSoldOut(Long voucherId) {
+        long now = System.currentTimeMillis();
+        Long previous = soldOut.put(voucherId, now + soldOutTtlMillis);
+        if (previous == null || previous <= now) {
+            buckets.remove(voucherId);
+            redisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId);
+        }
+    }
+
+    /**
+     * 清除优惠券的售罄标记，并通知其它节点
+     * @param voucherId 优惠券id
+     */
+    public void reopen(Long voucherId) {
+        soldOut.remove(voucherId);
+        redisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, REOPEN + voucherId);
+    }
+
+    /**
+     * 收到其它节点广播的售罄、恢复消息
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (body.startsWith(SOLD_OUT)) {
+            Long voucherId = Long.valueOf(body.substring(SOLD_OUT.length()));
+            soldOut.put(voucherId, System.currentTimeMillis() + soldOutTtlMillis);
+            buckets.remove(voucherId);
+        } else if (body.startsWith(REOPEN)) {
+            soldOut.remove(Long.valueOf(body.substring(REOPEN.length())));
+        }
+    }
+
+    /**
+     * @return {soldOut: 已售罄的优惠券id, rejectedSoldOut: 因售罄拒绝的请求数, rejectedThrottled: 因限流拒绝的请求数}
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("soldOut", soldOut.keySet());
+        stats.put("rejectedSoldOut", rejectedSoldOut.sum());
+        stats.put("rejectedThrottled", rejectedThrottled.sum());
+        return stats;
+    }
+
+    /**
+     * 令牌桶：按固定速率补充令牌，最多存放capacity个令牌
+     */
+    static final class TokenBucket {
+        private final double permitsPerNano;
+        private final long capacity;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(long permitsPerSecond, long capacity) {
+            this.permitsPerNano = permitsPerSecond / 1e9;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * permitsPerNano);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
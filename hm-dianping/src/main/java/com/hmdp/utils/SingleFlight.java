@@ -0,0 +1,84 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 合并同一个JVM内对同一个key的并发加载
+ * 第一个请求在自己的线程中执行加载，加载期间到达的其它请求等待并共享同一个结果（包括异常），
+ * 加载完成后立即移除，之后的请求会重新加载
+ * 用于缓存未命中时避免大量线程同时查询数据库，也不需要休眠重试
+ */
+public class SingleFlight {
+
+    /**
+     * key --> 正在进行的加载
+     */
+    private final Map<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * 实际执行加载的次数
+     */
+    private final LongAdder loads = new LongAdder();
+
+    /**
+     * 共享其它请求加载结果的次数
+     */
+    private final LongAdder shared = new LongAdder();
+
+    /**
+     * 执行加载，同一个key同时只会有一个加载在执行
+     * @param key 加载的key
+     * @param loader 加载函数
+     * @return 加载结果
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = calls.putIfAbsent(key, future);
+        // 已有其它请求正在加载 等待并共享结果
+        if (existing != null) {
+            shared.increment();
+            try {
+                return (T) existing.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+        }
+        // 由当前请求执行加载
+        loads.increment();
+        try {
+            T value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, future);
+        }
+    }
+
+    /**
+     * @return {inflight, loads, shared}
+     */
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("inflight", (long) calls.size());
+        stats.put("loads", loads.sum());
+        stats.put("shared", shared.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,351 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.TimedCache;
+import cn.hutool.core.lang.hash.MurmurHash;
+import com.hmdp.entity.SeckillVoucher;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀优惠券的库存分片
+ * 热门优惠券的库存、购买用户set、订单id序列号、消息队列都只有一个key时，所有秒杀请求都落在Redis集群的同一个节点上
+ * 开启分片后（hmdp.seckill.stock-shards大于1）：
+ * 1. 新增秒杀优惠券时，将库存平均拆分到N个子库存 stock:seckillvoucher:{seckill:i}:voucherId，
+ *    每个子库存有自己的购买用户set order:seckillvoucher:{seckill:i}:voucherId，
+ *    每个分片有自己的订单消息队列 stream.orders:{seckill:i}（所有优惠券的第i个分片共用），
+ *    三者的hash tag相同，位于同一个slot，不同分片的slot一般位于集群的不同节点上
+ * 2. 每个用户按用户id的哈希值固定属于一个分片（home分片），一人一单只需要在home分片上判断
+ * 3. 订单id由调用方使用号段模式在本地分配（RedisIdWorker.nextSegmentId），秒杀脚本不访问全局的序列号key，
+ *    只访问一个分片的key
+ * 4. home分片库存不足时，依次尝试其它分片，每个分片的扣减都是原子的条件扣减，因此不会超卖；
+ *    所有分片都没有库存时才返回库存不足，因此总的售出数量与库存完全一致；
+ *    本地记录库存不足的分片（EMPTY_SHARD_TTL_MILLIS内不再尝试），库存耗尽后每个请求只需要访问home分片
+ * 分片个数在新增优惠券时确定并保存在seckill:shards:voucherId中，之后不再改变；没有该key的优惠券使用原来的单个库存key；
+ * 用到过的分片个数记录在seckill:shards:counts中，每个节点为前max个分片的消息队列各启动一个消费者（见orderStreams）
+ */
+@Slf4j
+@Component
+public class StockShards {
+
+    /**
+     * 秒杀lua脚本的返回值类型：{结果, 订单id的序列号}
+     */
+    @SuppressWarnings("unchecked")
+    public static final Class<List<Long>> RESULT_TYPE = (Class<List<Long>>) (Class<?>) List.class;
+
+    /**
+     * 分片库存不足后，多长时间内不再尝试该分片（毫秒）
+     */
+    private static final long EMPTY_SHARD_TTL_MILLIS = 1000;
+
+    /**
+     * 在home分片上判断一人一单并扣减库存的lua脚本
+     */
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+
+    /**
+     * 在其它分片上扣减库存的lua脚本
+     */
+    private static final DefaultRedisScript<Long> FALLOVER_SCRIPT;
+
+    static {
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("seckillVoucherShard.lua"));
+        SHARD_SCRIPT.setResultType(Long.class);
+        FALLOVER_SCRIPT = new DefaultRedisScript<>();
+        FALLOVER_SCRIPT.setLocation(new ClassPathResource("seckillVoucherShardFallover.lua"));
+        FALLOVER_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 取消订单后归还库存的lua脚本
+     */
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("seckillVoucherRelease.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    /**
+     * 新增秒杀优惠券时的库存分片个数，1表示不分片
+     */
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int shardCount;
+
+    /**
+     * 优惠券id --> 分片个数（创建后不再改变，可以一直缓存）
+     */
+    private final Map<Long, Integer> shards = new ConcurrentHashMap<>();
+
+    /**
+     * 没有分片的优惠券id（其它节点可能在之后预热为分片库存，因此只缓存一小段时间）
+     */
+    private final TimedCache<Long, Boolean> unsharded = CacheUtil.newTimedCache(TimeUnit.SECONDS.toMillis(10));
+
+    /**
+     * 优惠券id --> 各个分片库存不足的标记的过期时间（毫秒）
+     */
+    private final Map<Long, AtomicLongArray> emptyShards = new ConcurrentHashMap<>();
+
+    /**
+     * 保存新增秒杀优惠券的库存
+     * @param voucherId 优惠券id
+     * @param stock 库存
+     */
+    public void init(Long voucherId, int stock) {
+        if (shardCount <= 1) {
+            redisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            return;
+        }
+        int[] split = split(stock, shardCount);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < split.length; i++) {
+                conn.set(stockKey(voucherId, i), String.valueOf(split[i]));
+            }
+            // 最后写入分片个数，写入之前秒杀请求按没有库存处理
+            conn.set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(shardCount));
+            conn.sAdd(SECKILL_SHARD_COUNTS_KEY, String.valueOf(shardCount));
+            return null;
+        });
+        shards.put(voucherId, shardCount);
+    }
+
+    /**
+     * 预热秒杀优惠券的库存，已经存在的库存是实时扣减后的数据，不能覆盖
+     * 1. 已经分片的优惠券：按原来的分片个数SETNX各个子库存
+     * 2. 已经存在单个库存key的优惠券：保持不分片
+     * 3. 都不存在的优惠券：按当前的分片个数写入
+     * @param vouchers 秒杀优惠券
+     */
+    public void warmUp(List<SeckillVoucher> vouchers) {
+        // 1. 查询已有的分片个数、单个库存key是否存在
+        List<Object> existing = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (SeckillVoucher voucher : vouchers) {
+                conn.get(SECKILL_SHARDS_KEY + voucher.getVoucherId());
+                conn.exists(SECKILL_STOCK_KEY + voucher.getVoucherId());
+            }
+            return null;
+        });
+        // 2. SETNX库存
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < vouchers.size(); i++) {
+                Long voucherId = vouchers.get(i).getVoucherId();
+                Integer stock = vouchers.get(i).getStock();
+                Object count = existing.get(i * 2);
+                boolean singleKey = Boolean.TRUE.equals(existing.get(i * 2 + 1));
+                int n = count != null ? Integer.parseInt(count.toString()) : singleKey ? 1 : shardCount;
+                if (n <= 1) {
+                    conn.setNX(SECKILL_STOCK_KEY + voucherId, stock.toString());
+                    continue;
+                }
+                int[] split = split(stock, n);
+                for (int shard = 0; shard < n; shard++) {
+                    conn.setNX(stockKey(voucherId, shard), String.valueOf(split[shard]));
+                }
+                conn.setNX(SECKILL_SHARDS_KEY + voucherId, String.valueOf(n));
+                conn.sAdd(SECKILL_SHARD_COUNTS_KEY, String.valueOf(n));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @param voucherId 优惠券id
+     * @return 优惠券的库存分片个数，1表示没有分片
+     */
+    public int shardsOf(Long voucherId) {
+        Integer n = shards.get(voucherId);
+        if (n != null) {
+            return n;
+        }
+        if (unsharded.containsKey(voucherId)) {
+            return 1;
+        }
+        String count = redisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        if (count == null) {
+            unsharded.put(voucherId, true);
+            return 1;
+        }
+        n = Integer.parseInt(count);
+        shards.put(voucherId, n);
+        return n;
+    }
+
+    /**
+     * 各个分片的订单消息队列（不包括原来的stream.orders）
+     * 数量为用到过的最大分片个数与当前配置的分片个数中较大的一个
+     * @return 消息队列的key
+     */
+    public List<String> orderStreams() {
+        int max = shardCount > 1 ? shardCount : 0;
+        Set<String> counts = redisTemplate.opsForSet().members(SECKILL_SHARD_COUNTS_KEY);
+        if (counts != null) {
+            for (String count : counts) {
+                max = Math.max(max, Integer.parseInt(count));
+            }
+        }
+        List<String> streams = new ArrayList<>(max);
+        for (int shard = 0; shard < max; shard++) {
+            streams.add(streamKey(shard));
+        }
+        return streams;
+    }
+
+    /**
+     * 在分片库存上秒杀
+     * 1. 在home分片上判断一人一单、占用名额并尝试扣减库存
+     * 2. home分片库存不足，从下一个分片开始依次尝试扣减（跳过本地记录为库存不足的分片）
+     * 3. 所有分片都没有库存，释放home分片上占用的一人一单名额
+     * @param userId 用户id
+     * @param voucherId 优惠券id
+     * @param orderId 订单id（下单成功时写入消息队列）
+     * @param n 分片个数
+     * @return 0：下单成功，1：库存不足，2：用户已经下过单
+     */
+    public long seckill(Long userId, Long voucherId, long orderId, int n) {
+        String user = userId.toString();
+        String voucher = voucherId.toString();
+        String id = String.valueOf(orderId);
+        AtomicLongArray empty = emptyShards.computeIfAbsent(voucherId, v -> new AtomicLongArray(n));
+        // 1. 在home分片上秒杀
+        int home = homeShard(userId, n);
+        Long result = redisTemplate.execute(SHARD_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), buyerKey(voucherId, home), streamKey(home)), user, voucher, id);
+        if (result == null || result != 1) {
+            return result == null ? 1 : result;
+        }
+        long now = System.currentTimeMillis();
+        empty.set(home, now + EMPTY_SHARD_TTL_MILLIS);
+        // 2. 依次尝试其它分片
+        for (int i = 1; i < n; i++) {
+            int shard = (home + i) % n;
+            if (empty.get(shard) > now) {
+                continue;
+            }
+            result = redisTemplate.execute(FALLOVER_SCRIPT,
+                    Arrays.asList(stockKey(voucherId, shard), streamKey(shard)), user, voucher, id);
+            if (result != null && result == 0) {
+                return 0;
+            }
+            empty.set(shard, now + EMPTY_SHARD_TTL_MILLIS);
+        }
+        // 3. 释放一人一单名额
+        redisTemplate.opsForSet().remove(buyerKey(voucherId, home), user);
+        return 1;
+    }
+
+    /**
+     * 取消订单后归还库存和一人一单名额（分片库存归还到用户的home分片，不一定是实际扣减的分片，总库存不变）
+     * 1. 从ORDER_TIMEOUT_KEY中移除订单，移除成功才会归还，因此多个节点重复处理同一个订单时只归还一次
+     * 2. 执行lua脚本移除一人一单名额并归还库存（只访问同一个slot的key；两步之间宕机会少归还一个库存，由库存对账发现）
+     * @param orderId 订单id
+     * @param userId 用户id
+     * @param voucherId 优惠券id
+     * @return 是否归还了库存
+     */
+    public boolean release(Long orderId, Long userId, Long voucherId) {
+        // 1. 从待取消订单中移除
+        Long removed = redisTemplate.opsForZSet().remove(ORDER_TIMEOUT_KEY, orderId.toString());
+        if (removed == null || removed == 0) {
+            return false;
+        }
+        // 2. 归还库存
+        int n = shardsOf(voucherId);
+        int home = homeShard(userId, n);
+        List<String> keys = Arrays.asList(stockKey(voucherId, home, n), buyerKey(voucherId, home, n));
+        Long result = redisTemplate.execute(RELEASE_SCRIPT, keys, userId.toString());
+        if (result != null && result == 1) {
+            AtomicLongArray empty = emptyShards.get(voucherId);
+            if (empty != null && n > 1) {
+                empty.set(home, 0);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return 第shard个分片的hash tag（所有优惠券的第shard个分片位于同一个slot）
+     */
+    private static String tag(int shard) {
+        return "{seckill:" + shard + "}";
+    }
+
+    /**
+     * @return 第shard个分片的订单消息队列的key
+     */
+    public static String streamKey(int shard) {
+        return ORDER_STREAM_KEY + ":" + tag(shard);
+    }
+
+    /**
+     * @return 第shard个分片的库存key
+     */
+    public static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + tag(shard) + ":" + voucherId;
+    }
+
+    /**
+     * @return 第shard个分片的购买用户set的key
+     */
+    public static String buyerKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + tag(shard) + ":" + voucherId;
+    }
+
+    /**
+     * @param n 分片个数，1表示没有分片
+     * @return 第shard个分片的库存key，没有分片时为原来的单个库存key
+     */
+    public static String stockKey(Long voucherId, int shard, int n) {
+        return n > 1 ? stockKey(voucherId, shard) : SECKILL_STOCK_KEY + voucherId;
+    }
+
+    /**
+     * @param n 分片个数，1表示没有分片
+     * @return 第shard个分片的购买用户set的key，没有分片时为原来的单个set
+     */
+    public static String buyerKey(Long voucherId, int shard, int n) {
+        return n > 1 ? buyerKey(voucherId, shard) : SECKILL_ORDER_KEY + voucherId;
+    }
+
+    /**
+     * @return 用户所属的分片
+     */
+    public static int homeShard(Long userId, int n) {
+        return (MurmurHash.hash32(userId.toString()) & Integer.MAX_VALUE) % n;
+    }
+
+    /**
+     * 将库存平均拆分为n份，前stock % n份各多1个
+     */
+    static int[] split(int stock, int n) {
+        int[] split = new int[n];
+        for (int i = 0; i < n; i++) {
+            split[i] = stock / n + (i < stock % n ? 1 : 0);
+        }
+        return split;
+    }
+}
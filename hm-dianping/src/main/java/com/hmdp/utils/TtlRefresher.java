@@ -0,0 +1,163 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 异步批量刷新key的过期时间（滑动过期）
+ * 代替每次读取缓存后同步执行一次EXPIRE：
+ * 1. 读取缓存后调用touch，只将key及其过期时间记录到缓冲区（同一个key在一个刷新周期内只记录一次）
+ * 2. 后台线程每隔一个刷新周期，使用pipeline批量执行PEXPIRE
+ * 3. 如果key上一次刷新后剩余的过期时间还大于skip-ratio * ttl，则不需要刷新
+ */
+@Slf4j
+@Component
+public class TtlRefresher {
+    private static final ScheduledExecutorService TTL_REFRESH_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * 等待刷新的key --> 过期时间（毫秒）
+     */
+    private final Map<String, Long> pending = new ConcurrentHashMap<>();
+
+    /**
+     * 最近刷新过的key --> 刷新的时间戳
+     */
+    private LRUCache<String, Long> refreshed;
+
+    private final LongAdder touched = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder flushed = new LongAdder();
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    /**
+     * 是否异步刷新，关闭时touch会同步执行EXPIRE
+     */
+    @Value("${hmdp.cache.ttl-refresh.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 刷新周期（毫秒）
+     */
+    @Value("${hmdp.cache.ttl-refresh.interval-ms:200}")
+    private long intervalMillis;
+
+    /**
+     * 剩余过期时间大于ttl的多少比例时不需要刷新
+     */
+    @Value("${hmdp.cache.ttl-refresh.skip-ratio:0.8}")
+    private double skipRatio;
+
+    /**
+     * 每个pipeline最多包含的命令个数
+     */
+    @Value("${hmdp.cache.ttl-refresh.batch-size:500}")
+    private int batchSize;
+
+    /**
+     * 最多记录多少个最近刷新过的key
+     */
+    @Value("${hmdp.cache.ttl-refresh.tracked-keys:100000}")
+    private int trackedKeys;
+
+    @PostConstruct
+    private void init() {
+        refreshed = CacheUtil.newLRUCache(trackedKeys);
+        if (enabled) {
+            TTL_REFRESH_EXECUTOR.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 记录一次key的访问，之后会异步地将key的过期时间刷新为ttl
+     * @param key 完整的key
+     * @param ttl 过期时间
+     * @param unit 过期时间的单位
+     */
+    public void touch(String key, long ttl, TimeUnit unit) {
+        if (!enabled) {
+            redisTemplate.expire(key, ttl, unit);
+            return;
+        }
+        touched.increment();
+        long ttlMillis = unit.toMillis(ttl);
+        // 上一次刷新后剩余的过期时间还足够 不需要刷新
+        Long refreshedAt = refreshed.get(key, false);
+        if (refreshedAt != null && System.currentTimeMillis() - refreshedAt < ttlMillis * (1 - skipRatio)) {
+            skipped.increment();
+            return;
+        }
+        pending.put(key, ttlMillis);
+    }
+
+    /**
+     * @return {touched: touch的次数, skipped: 不需要刷新的次数, flushed: 实际执行PEXPIRE的次数, pending: 等待刷新的key个数}
+     */
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("touched", touched.sum());
+        stats.put("skipped", skipped.sum());
+        stats.put("flushed", flushed.sum());
+        stats.put("pending", (long) pending.size());
+        return stats;
+    }
+
+    /**
+     * 取出缓冲区中的所有key，分批使用pipeline执行PEXPIRE
+     */
+    private void flush() {
+        try {
+            if (pending.isEmpty()) {
+                return;
+            }
+            List<Map.Entry<String, Long>> batch = new ArrayList<>(batchSize);
+            for (Map.Entry<String, Long> entry : pending.entrySet()) {
+                // 只有值没有被并发修改时才移除，避免丢失刷新
+                if (pending.remove(entry.getKey(), entry.getValue())) {
+                    batch.add(entry);
+                }
+                if (batch.size() >= batchSize) {
+                    expire(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                expire(batch);
+            }
+        } catch (Exception e) {
+            log.error("刷新过期时间失败", e);
+        }
+    }
+
+    private void expire(List<Map.Entry<String, Long>> batch) {
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Map.Entry<String, Long> entry : batch) {
+                conn.pExpire(entry.getKey(), entry.getValue());
+            }
+            return null;
+        });
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> entry : batch) {
+            refreshed.put(entry.getKey(), now);
+        }
+        flushed.add(batch.size());
+    }
+}
@@ -0,0 +1,13 @@
+-- 点赞/取消点赞（点赞数不再直接更新数据库，记录到增量hash中，由后台任务批量写回数据库）
+-- KEYS[1] 帖子的点赞用户zset，KEYS[2] 点赞数增量hash
+-- ARGV[1] 用户id，ARGV[2] 当前时间，ARGV[3] 帖子id
+-- 1. 已经点过赞：移除用户，增量-1
+if (redis.call("zscore", KEYS[1], ARGV[1])) then
+    redis.call("zrem", KEYS[1], ARGV[1])
+    redis.call("hincrby", KEYS[2], ARGV[3], -1)
+    return -1
+end
+-- 2. 未点过赞：加入用户，增量+1
+redis.call("zadd", KEYS[1], ARGV[2], ARGV[1])
+redis.call("hincrby", KEYS[2], ARGV[3], 1)
+return 1
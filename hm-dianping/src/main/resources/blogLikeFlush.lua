@@ -0,0 +1,16 @@
+-- 开始一次点赞数写回，返回本批次的id（没有需要写回的增量时返回nil）
+-- KEYS[1] 点赞数增量hash，KEYS[2] 正在写回的增量hash
+-- ARGV[1] 新批次的id
+-- 1. 上一次写回没有完成（宕机、写数据库失败），继续写回上一批次（批次id不变，数据库根据批次id判断是否已经写回过）
+local batch = redis.call("hget", KEYS[2], "_batch")
+if (batch) then
+    return batch
+end
+-- 2. 没有新的增量
+if (redis.call("exists", KEYS[1]) == 0) then
+    return nil
+end
+-- 3. 将增量hash整体改名，之后的点赞写入新的增量hash
+redis.call("rename", KEYS[1], KEYS[2])
+redis.call("hset", KEYS[2], "_batch", ARGV[1])
+return ARGV[1]
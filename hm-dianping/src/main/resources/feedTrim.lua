@@ -0,0 +1,3 @@
+-- 裁剪推送任务队列 KEYS[1] 任务队列stream.feed，ARGV[1] 最早的未完成任务的id
+-- XTRIM MINID只删除id小于ARGV[1]的任务，~表示只删除完整的宏节点（需要Redis 6.2+）
+return redis.call('xtrim', KEYS[1], 'MINID', '~', ARGV[1])
@@ -0,0 +1,10 @@
+-- 取消超时未支付的订单后归还Redis中的库存和一人一单名额
+-- （调用方已经从待取消订单的zset中移除了该订单，保证库存只归还一次；该zset与库存不在同一个slot，因此不在脚本中移除）
+-- KEYS[1] 库存key，KEYS[2] 购买用户set（分片库存时为用户home分片的库存key、购买用户set，hash tag相同）
+-- ARGV[1] 用户id
+-- 移除一人一单名额，并归还库存
+if (redis.call("srem", KEYS[2], ARGV[1]) == 1) then
+    redis.call("incrby", KEYS[1], 1)
+    return 1
+end
+return 0
@@ -0,0 +1,26 @@
+-- 分片库存模式下的秒杀：在用户所属的分片（home分片）上判断一人一单、扣减库存并写入该分片的订单消息队列
+-- KEYS[1] home分片的库存key，KEYS[2] home分片的购买用户set，KEYS[3] home分片的订单消息队列
+-- （三个key的hash tag都是{seckill:分片}，位于同一个slot，可以在Redis集群上执行）
+-- ARGV[1] 用户id，ARGV[2] 优惠券id，ARGV[3] 订单id（由调用方在本地分配，脚本不再访问全局的序列号key）
+local stockKey = KEYS[1]
+local buyerKey = KEYS[2]
+local userId = ARGV[1]
+local voucherId = ARGV[2]
+
+-- 1. 判断用户是否下单（同一个用户总是落在同一个home分片，因此只需要检查这一个set）
+if (redis.call("sismember", buyerKey, userId) == 1) then
+    -- 用户已经下过单 返回2
+    return 2
+end
+-- 2. 占用一人一单的名额（home分片库存不足时，由调用方尝试其它分片，全部失败后再移除）
+redis.call("sadd", buyerKey, userId)
+-- 3. 判断库存是否充足
+if (tonumber(redis.call("get", stockKey) or "0") <= 0) then
+    -- home分片库存不足 返回1
+    return 1
+end
+-- 4. 扣减库存，并将订单放入home分片的消息队列
+redis.call("incrby", stockKey, -1)
+redis.call("xadd", KEYS[3], "*", "userId", userId, "voucherId", voucherId, "id", ARGV[3])
+-- 下单成功 返回0
+return 0
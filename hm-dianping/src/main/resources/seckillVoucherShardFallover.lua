@@ -0,0 +1,15 @@
+-- 分片库存模式下，home分片库存不足时从其它分片扣减库存（一人一单已经在home分片上判断过）
+-- KEYS[1] 其它分片的库存key，KEYS[2] 该分片的订单消息队列（hash tag相同，位于同一个slot）
+-- ARGV[1] 用户id，ARGV[2] 优惠券id，ARGV[3] 订单id
+local stockKey = KEYS[1]
+
+-- 1. 判断库存是否充足
+if (tonumber(redis.call("get", stockKey) or "0") <= 0) then
+    -- 该分片库存不足 返回1
+    return 1
+end
+-- 2. 扣减库存，并将订单放入该分片的消息队列
+redis.call("incrby", stockKey, -1)
+redis.call("xadd", KEYS[2], "*", "userId", ARGV[1], "voucherId", ARGV[2], "id", ARGV[3])
+-- 下单成功 返回0
+return 0
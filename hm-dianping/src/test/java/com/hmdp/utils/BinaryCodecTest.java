@@ -0,0 +1,69 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 单元测试 BinaryCodec的编解码
+ */
+public class BinaryCodecTest {
+
+    @Test
+    public void testRoundTrip() {
+        Shop shop = new Shop()
+                .setId(1L).setName("103茶餐厅").setTypeId(1L).setX(120.149192).setY(30.316078)
+                .setAvgPrice(80L).setSold(4215).setScore(37).setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39, 123_000_000));
+        LocalDateTime expireTime = LocalDateTime.of(2024, 5, 1, 0, 0, 0, 456_000_000);
+        BinaryCodec<Shop> codec = BinaryCodec.of(Shop.class);
+
+        RedisData redisData = codec.decode(codec.encode(shop, expireTime, 512));
+        assertEquals(shop, redisData.getData());
+        assertEquals(expireTime, redisData.getExpireTime());
+        assertNull(redisData.getRebuildCost());
+
+        // 记录重建耗时
+        redisData = codec.decode(codec.encode(shop, expireTime, 35L, 512));
+        assertEquals(shop, redisData.getData());
+        assertEquals(Long.valueOf(35), redisData.getRebuildCost());
+
+        // 不需要逻辑过期时间
+        redisData = codec.decode(codec.encode(shop, null, 512));
+        assertEquals(shop, redisData.getData());
+        assertNull(redisData.getExpireTime());
+    }
+
+    @Test
+    public void testCompressedList() {
+        List<ShopType> types = new ArrayList<>();
+        for (int i = 1; i <= 50; i++) {
+            ShopType type = new ShopType().setId((long) i).setName("美食" + i).setIcon("/types/ms.png").setSort(i);
+            types.add(type);
+        }
+        BinaryCodec<ShopType> codec = BinaryCodec.of(ShopType.class);
+        byte[] compressed = codec.encodeList(types, 64);
+        byte[] raw = codec.encodeList(types, Integer.MAX_VALUE);
+        // 重复的图标路径经过压缩后更小
+        assertTrue(compressed.length < raw.length);
+        assertEquals(types, codec.decode(compressed).getData());
+        assertEquals(types, codec.decode(raw).getData());
+    }
+
+    @Test
+    public void testSchemaMismatch() {
+        byte[] bytes = BinaryCodec.of(ShopType.class).encodeList(Arrays.asList(new ShopType().setId(1L)), 512);
+        // 对象结构不一致的数据视为未命中
+        assertNull(BinaryCodec.of(Shop.class).decode(bytes));
+        // 版本号不一致
+        bytes[0] = 0;
+        assertNull(BinaryCodec.of(ShopType.class).decode(bytes));
+    }
+}
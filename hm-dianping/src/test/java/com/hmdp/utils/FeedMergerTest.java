@@ -0,0 +1,111 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * 单元测试 多路归并的结果需要与把所有帖子放在同一个zset中执行ZREVRANGEBYSCORE的结果一致
+ */
+public class FeedMergerTest {
+
+    private static ZSetOperations.TypedTuple<String> tuple(String blogId, double ts) {
+        return new DefaultTypedTuple<>(blogId, ts);
+    }
+
+    /**
+     * 模拟ZREVRANGEBYSCORE key 0 max WITHSCORES LIMIT offset count
+     */
+    private static List<ZSetOperations.TypedTuple<String>> revRange(List<ZSetOperations.TypedTuple<String>> zset,
+                                                                    double max, int offset, int count) {
+        return zset.stream()
+                .filter(t -> t.getScore() <= max)
+                .sorted(Comparator.comparing(ZSetOperations.TypedTuple<String>::getScore, Comparator.reverseOrder())
+                        .thenComparing(ZSetOperations.TypedTuple::getValue, Comparator.reverseOrder()))
+                .skip(offset).limit(count)
+                .collect(Collectors.toList());
+    }
+
+    private static List<String> ids(List<ZSetOperations.TypedTuple<String>> tuples) {
+        return tuples.stream().map(ZSetOperations.TypedTuple::getValue).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testMerge() {
+        List<ZSetOperations.TypedTuple<String>> inbox = Arrays.asList(tuple("5", 500), tuple("3", 300), tuple("1", 100));
+        List<ZSetOperations.TypedTuple<String>> outbox = Arrays.asList(tuple("4", 400), tuple("2", 200));
+        assertEquals(Arrays.asList("5", "4", "3"), ids(FeedMerger.merge(Arrays.asList(inbox, outbox), 0, 3)));
+        assertEquals(Arrays.asList("2", "1"), ids(FeedMerger.merge(Arrays.asList(inbox, outbox), 3, 3)));
+        // 空的一路
+        assertEquals(Arrays.asList("5", "3"), ids(FeedMerger.merge(Arrays.asList(inbox, null, Collections.emptyList()), 0, 2)));
+    }
+
+    @Test
+    public void testDuplicate() {
+        List<ZSetOperations.TypedTuple<String>> inbox = Arrays.asList(tuple("2", 200), tuple("1", 100));
+        List<ZSetOperations.TypedTuple<String>> outbox = Collections.singletonList(tuple("2", 200));
+        assertEquals(Arrays.asList("2", "1"), ids(FeedMerger.merge(Arrays.asList(inbox, outbox), 0, 5)));
+    }
+
+    /**
+     * 重建的收件箱与大V的发件箱中有同一篇帖子（score相同）：翻页时也只出现一次
+     */
+    @Test
+    public void testDuplicateAcrossPages() {
+        List<ZSetOperations.TypedTuple<String>> inbox = Arrays.asList(tuple("2", 200), tuple("1", 100));
+        List<ZSetOperations.TypedTuple<String>> outbox = Collections.singletonList(tuple("2", 200));
+        assertEquals(Collections.singletonList("2"), ids(FeedMerger.merge(Arrays.asList(inbox, outbox), 0, 1)));
+        // 第二页：max=200, offset=1
+        assertEquals(Collections.singletonList("1"), ids(FeedMerger.merge(Arrays.asList(inbox, outbox), 1, 1)));
+    }
+
+    /**
+     * 随机生成多路（包含大量相同的时间戳），按滚动分页的方式翻页，每一页都与单个zset的结果一致
+     */
+    @Test
+    public void testScrollMatchesSingleZSet() {
+        Random random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            int k = 1 + random.nextInt(5);
+            List<List<ZSetOperations.TypedTuple<String>>> boxes = new ArrayList<>();
+            List<ZSetOperations.TypedTuple<String>> all = new ArrayList<>();
+            int blogId = 0;
+            for (int i = 0; i < k; i++) {
+                List<ZSetOperations.TypedTuple<String>> box = new ArrayList<>();
+                int size = random.nextInt(20);
+                for (int j = 0; j < size; j++) {
+                    box.add(tuple(String.valueOf(blogId++), random.nextInt(10)));
+                }
+                boxes.add(box);
+                all.addAll(box);
+            }
+            int pageSize = 1 + random.nextInt(4);
+            // 滚动分页：下一页的max为本页最小的时间戳，offset为本页中该时间戳的条数（与max相同时累加）
+            double max = Double.MAX_VALUE;
+            int offset = 0;
+            List<String> scrolled = new ArrayList<>();
+            while (true) {
+                List<List<ZSetOperations.TypedTuple<String>>> sources = new ArrayList<>();
+                for (List<ZSetOperations.TypedTuple<String>> box : boxes) {
+                    sources.add(revRange(box, max, 0, offset + pageSize));
+                }
+                List<ZSetOperations.TypedTuple<String>> page = FeedMerger.merge(sources, offset, pageSize);
+                assertEquals(ids(revRange(all, max, offset, pageSize)), ids(page));
+                if (page.isEmpty()) {
+                    break;
+                }
+                scrolled.addAll(ids(page));
+                double minTime = page.get(page.size() - 1).getScore();
+                int sameTime = (int) page.stream().filter(t -> t.getScore() == minTime).count();
+                offset = minTime == max ? offset + sameTime : sameTime;
+                max = minTime;
+            }
+            assertEquals(ids(revRange(all, Double.MAX_VALUE, 0, all.size())), scrolled);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
+import com.hmdp.entity.Shop;
+import org.junit.Test;
+import org.springframework.beans.BeanUtils;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 性能测试 对比BeanUtil反射方式与HashCodec方式将Shop编码为Hash、从Hash解码为Shop的耗时
+ * （类名不以Test结尾，不会在mvn test时自动执行，需要手动运行）
+ *
+ * 本机测试结果（每种方式预热50万次后执行200万次）：
+ * BeanUtil  encode: 4540ms  decode: 29556ms
+ * HashCodec encode: 2638ms  decode:  1162ms
+ * （编码的耗时主要在LocalDateTime、Double的toString上）
+ */
+public class HashCodecBenchmark {
+
+    private static final int WARM_UP = 500_000;
+    private static final int ITERATIONS = 2_000_000;
+
+    @Test
+    public void benchmark() {
+        Shop shop = new Shop()
+                .setId(1L).setName("103茶餐厅").setTypeId(1L).setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号").setX(120.149192).setY(30.316078)
+                .setAvgPrice(80L).setSold(4215).setComments(3035).setScore(37).setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.now()).setUpdateTime(LocalDateTime.now());
+        HashCodec<Shop> codec = HashCodec.of(Shop.class);
+        Map<String, String> hash = codec.encode(shop);
+
+        run("BeanUtil  encode", () -> BeanUtil.beanToMap(shop, new HashMap<>(),
+                CopyOptions.create()
+                        .setIgnoreNullValue(true)
+                        .setFieldValueEditor((fieldName, fieldValue) -> fieldValue == null ? "" : fieldValue.toString())));
+        run("BeanUtil  decode", () -> BeanUtil.fillBeanWithMap(hash, BeanUtils.instantiateClass(Shop.class), false));
+        run("HashCodec encode", () -> codec.encode(shop));
+        run("HashCodec decode", () -> codec.decode(hash));
+    }
+
+    private static void run(String name, Runnable task) {
+        for (int i = 0; i < WARM_UP; i++) {
+            task.run();
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            task.run();
+        }
+        System.out.println(name + ": " + (System.nanoTime() - begin) / 1_000_000 + "ms");
+    }
+}
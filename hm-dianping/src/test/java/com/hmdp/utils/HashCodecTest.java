@@ -0,0 +1,73 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * 单元测试 HashCodec的编解码结果需要与原来的BeanUtil方式保持一致
+ */
+public class HashCodecTest {
+
+    @Test
+    public void testRoundTrip() {
+        Shop shop = new Shop()
+                .setId(1L).setName("103茶餐厅").setTypeId(1L).setX(120.149192).setY(30.316078)
+                .setAvgPrice(80L).setSold(4215).setScore(37).setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        HashCodec<Shop> codec = HashCodec.of(Shop.class);
+        Map<String, String> hash = codec.encode(shop);
+        // 值为null的字段不写入
+        assertFalse(hash.containsKey("images"));
+        assertEquals("120.149192", hash.get("x"));
+        assertEquals(shop, codec.decode(hash));
+    }
+
+    @Test
+    public void testCompatibleWithBeanUtil() {
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("小鱼同学");
+        // 原来写入Redis的方式
+        Map<String, Object> legacy = BeanUtil.beanToMap(user, new HashMap<>(),
+                CopyOptions.create()
+                        .setIgnoreNullValue(true)
+                        .setFieldValueEditor((fieldName, fieldValue) -> fieldValue == null ? "" : fieldValue.toString()));
+        // 原来的方式会把null写成空字符串，HashCodec直接忽略null字段
+        legacy.values().removeIf(""::equals);
+        assertEquals(legacy, new HashMap<String, Object>(HashCodec.of(UserDTO.class).encode(user)));
+        assertEquals(user, HashCodec.of(UserDTO.class).decode(legacy));
+    }
+
+    @Test
+    public void testDecodeIgnoresUnknownAndEmptyFields() {
+        Map<Object, Object> hash = new HashMap<>();
+        hash.put("id", "23");
+        hash.put("liked", "");
+        hash.put("isLike", "true");
+        hash.put("updateTime", "2022-01-03T17:29:56.123");
+        hash.put(RedisConstants.LOGICAL_EXPIRE_TIME_FIELD, "2024-05-01T00:00:00.000");
+        Blog blog = HashCodec.of(Blog.class).decode(hash);
+        assertEquals(Long.valueOf(23), blog.getId());
+        assertNull(blog.getLiked());
+        assertTrue(blog.getIsLike());
+        assertEquals(LocalDateTime.of(2022, 1, 3, 17, 29, 56, 123_000_000), blog.getUpdateTime());
+    }
+
+    @Test
+    public void testParseLocalDateTime() {
+        for (String s : new String[]{"2021-12-22T18:10", "2021-12-22T18:10:39", "2021-12-22T18:10:39.1",
+                "2021-12-22T18:10:39.123", "2021-12-22T18:10:39.123456789"}) {
+            assertEquals(LocalDateTime.parse(s), HashCodec.parseLocalDateTime(s));
+        }
+    }
+}
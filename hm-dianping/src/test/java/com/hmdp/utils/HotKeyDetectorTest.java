@@ -0,0 +1,80 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * 单元测试 热点key探测
+ */
+public class HotKeyDetectorTest {
+
+    private HotKeyDetector newDetector() {
+        HotKeyDetector detector = new HotKeyDetector();
+        ReflectionTestUtils.setField(detector, "enabled", true);
+        ReflectionTestUtils.setField(detector, "sampleRate", 1.0);
+        ReflectionTestUtils.setField(detector, "threshold", 10L);
+        ReflectionTestUtils.setField(detector, "topK", 2);
+        return detector;
+    }
+
+    private static void record(HotKeyDetector detector, String key, int times) {
+        for (int i = 0; i < times; i++) {
+            detector.record(key);
+        }
+    }
+
+    @Test
+    public void testTopK() {
+        HotKeyDetector detector = newDetector();
+        record(detector, "cache:shop:1", 100);
+        record(detector, "cache:shop:2", 50);
+        record(detector, "cache:shop:3", 20);
+        record(detector, "cache:shop:4", 5);
+        for (int i = 0; i < 1000; i++) {
+            detector.record("cache:shop:" + (100 + i));
+        }
+        ReflectionTestUtils.invokeMethod(detector, "rotate");
+
+        Map<String, Long> hotKeys = detector.hotKeys();
+        assertEquals(Arrays.asList("cache:shop:1", "cache:shop:2"), new ArrayList<>(hotKeys.keySet()));
+        // Count-Min Sketch只会高估
+        assertTrue(hotKeys.get("cache:shop:1") >= 100);
+        assertTrue(detector.isHot("cache:shop:2"));
+        assertFalse(detector.isHot("cache:shop:3"));
+    }
+
+    @Test
+    public void testDecay() {
+        HotKeyDetector detector = newDetector();
+        record(detector, "cache:shop:1", 40);
+        ReflectionTestUtils.invokeMethod(detector, "rotate");
+        assertTrue(detector.isHot("cache:shop:1"));
+        // 之后不再访问 计数每个窗口减半 40 -> 20 -> 10 -> 5
+        ReflectionTestUtils.invokeMethod(detector, "rotate");
+        ReflectionTestUtils.invokeMethod(detector, "rotate");
+        assertTrue(detector.isHot("cache:shop:1"));
+        ReflectionTestUtils.invokeMethod(detector, "rotate");
+        assertFalse(detector.isHot("cache:shop:1"));
+    }
+
+    /**
+     * 运维接口只原样展示白名单前缀的key，登录token等其它key只展示第一段
+     */
+    @Test
+    public void testExposedHotKeysMasksOtherPrefixes() {
+        HotKeyDetector detector = newDetector();
+        ReflectionTestUtils.setField(detector, "exposedPrefixes", new String[]{"cache:"});
+        record(detector, "login:token:#0123456789abcdef", 100);
+        record(detector, "cache:shop:1", 50);
+        ReflectionTestUtils.invokeMethod(detector, "rotate");
+
+        Map<String, Long> exposed = detector.exposedHotKeys();
+        assertEquals(Arrays.asList("login:*", "cache:shop:1"), new ArrayList<>(exposed.keySet()));
+    }
+}
@@ -0,0 +1,93 @@
+package com.hmdp.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * 单元测试 号段模式的id唯一、递增，以及Redis访问次数
+ */
+public class RedisIdWorkerTest {
+
+    private RedisIdWorker idWorker;
+    private AtomicLong sequence;
+    private AtomicInteger leases;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        sequence = new AtomicLong();
+        leases = new AtomicInteger();
+        StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> ops = mock(ValueOperations.class);
+        when(redisTemplate.opsForValue()).thenReturn(ops);
+        // 模拟INCRBY
+        when(ops.increment(anyString(), anyLong())).thenAnswer(invocation -> {
+            leases.incrementAndGet();
+            return sequence.addAndGet(invocation.getArgument(1));
+        });
+        idWorker = new RedisIdWorker();
+        ReflectionTestUtils.setField(idWorker, "redisTemplate", redisTemplate);
+        ReflectionTestUtils.setField(idWorker, "segmentSize", 100);
+        ReflectionTestUtils.setField(idWorker, "prefetchRatio", 0.2);
+    }
+
+    @Test
+    public void testSegmentIdsAreUniqueAcrossThreads() throws Exception {
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch done = new CountDownLatch(8);
+            for (int t = 0; t < 8; t++) {
+                executor.submit(() -> {
+                    for (int i = 0; i < 10_000; i++) {
+                        ids.add(idWorker.nextSegmentId("order"));
+                    }
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(80_000, ids.size());
+        // 每100个id访问一次Redis（日期变化时可能多一次）
+        assertTrue(leases.get() <= 80_000 / 100 + 2);
+    }
+
+    @Test
+    public void testSegmentIdsIncreaseInOneThread() {
+        long last = 0;
+        for (int i = 0; i < 1000; i++) {
+            long id = idWorker.nextSegmentId("order");
+            assertTrue(id > last);
+            last = id;
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSequenceOverflow() {
+        sequence.set(1L << 32);
+        idWorker.nextSegmentId("order");
+    }
+
+    @Test
+    public void testCreateTime() {
+        LocalDateTime now = LocalDateTime.of(2024, 5, 1, 12, 30, 45);
+        long id = RedisIdWorker.compose(idWorker.timestamp(now), 12345);
+        assertEquals(now, RedisIdWorker.createTime(id));
+    }
+}
@@ -0,0 +1,64 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * 单元测试 售罄标记、令牌桶限流
+ */
+public class SeckillGateTest {
+
+    @Test
+    public void testSoldOutMessageRejectsLocally() {
+        SeckillGate gate = new SeckillGate();
+        ReflectionTestUtils.setField(gate, "soldOutTtlMillis", 60000L);
+        assertNull(gate.tryAdmit(10L));
+        // 其它节点广播售罄
+        gate.onMessage(message("soldout:10"), null);
+        assertNotNull(gate.tryAdmit(10L));
+        assertNull(gate.tryAdmit(11L));
+        // 其它节点广播恢复
+        gate.onMessage(message("reopen:10"), null);
+        assertNull(gate.tryAdmit(10L));
+    }
+
+    /**
+     * 迟到的售罄消息（例如reopen之后才收到）不会永久拒绝请求：标记过期后放行到Redis重新检查
+     */
+    @Test
+    public void testSoldOutExpires() throws InterruptedException {
+        SeckillGate gate = new SeckillGate();
+        ReflectionTestUtils.setField(gate, "soldOutTtlMillis", 50L);
+        gate.onMessage(message("reopen:10"), null);
+        gate.onMessage(message("soldout:10"), null);
+        assertNotNull(gate.tryAdmit(10L));
+        Thread.sleep(100);
+        assertNull(gate.tryAdmit(10L));
+        assertNull(gate.tryAdmit(10L));
+    }
+
+    @Test
+    public void testTokenBucketLimitsBurst() {
+        SeckillGate gate = new SeckillGate();
+        ReflectionTestUtils.setField(gate, "permitsPerSecond", 1L);
+        ReflectionTestUtils.setField(gate, "burst", 5L);
+        int admitted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (gate.tryAdmit(1L) == null) {
+                admitted++;
+            }
+        }
+        assertEquals(5, admitted);
+        // 每个优惠券有自己的令牌桶
+        assertNull(gate.tryAdmit(2L));
+    }
+
+    private static DefaultMessage message(String body) {
+        return new DefaultMessage("seckill:soldout".getBytes(StandardCharsets.UTF_8), body.getBytes(StandardCharsets.UTF_8));
+    }
+}
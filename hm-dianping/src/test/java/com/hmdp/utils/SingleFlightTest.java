@@ -0,0 +1,73 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 单元测试 同一个key的并发加载只执行一次
+ */
+public class SingleFlightTest {
+
+    @Test
+    public void testConcurrentLoadsShareOneCall() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(20);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            // 第一个请求执行加载，加载过程中阻塞
+            futures.add(executor.submit(() -> singleFlight.execute("cache:shop:1", () -> {
+                calls.incrementAndGet();
+                loading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return "shop";
+            })));
+            loading.await();
+            // 加载过程中到达的请求共享结果
+            for (int i = 0; i < 19; i++) {
+                futures.add(executor.submit(() -> singleFlight.execute("cache:shop:1", () -> {
+                    calls.incrementAndGet();
+                    return "other";
+                })));
+            }
+            while (singleFlight.stats().get("shared") < 19) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            for (Future<String> future : futures) {
+                assertEquals("shop", future.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, calls.get());
+            assertEquals(Long.valueOf(0), singleFlight.stats().get("inflight"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailureIsNotCached() {
+        SingleFlight singleFlight = new SingleFlight();
+        try {
+            singleFlight.execute("cache:shop:1", () -> {
+                throw new IllegalStateException("db down");
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("db down", e.getMessage());
+        }
+        // 加载完成后立即移除，下一次请求重新加载
+        assertEquals("shop", singleFlight.execute("cache:shop:1", () -> "shop"));
+    }
+}
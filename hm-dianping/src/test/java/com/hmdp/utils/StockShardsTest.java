@@ -0,0 +1,49 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 单元测试 库存拆分、用户所属分片、分片key（同一个分片的key位于同一个slot）
+ */
+public class StockShardsTest {
+
+    @Test
+    public void testSplitKeepsTotalStock() {
+        for (int stock : new int[]{0, 1, 7, 100, 1001}) {
+            for (int n = 1; n <= 16; n++) {
+                int[] split = StockShards.split(stock, n);
+                assertEquals(n, split.length);
+                assertEquals(stock, Arrays.stream(split).sum());
+                // 各分片的库存最多相差1
+                int max = Arrays.stream(split).max().getAsInt();
+                int min = Arrays.stream(split).min().getAsInt();
+                assertTrue(max - min <= 1);
+            }
+        }
+    }
+
+    @Test
+    public void testHomeShardIsStableAndInRange() {
+        int[] counts = new int[8];
+        for (long userId = 1; userId <= 8000; userId++) {
+            int shard = StockShards.homeShard(userId, 8);
+            assertEquals(shard, StockShards.homeShard(userId, 8));
+            counts[shard]++;
+        }
+        // 用户大致均匀地分布在各个分片上
+        for (int count : counts) {
+            assertTrue(count > 700 && count < 1300);
+        }
+    }
+
+    @Test
+    public void testStockAndBuyerKeysShareHashTag() {
+        assertEquals("stock:seckillvoucher:{seckill:3}:12", StockShards.stockKey(12L, 3));
+        assertEquals("order:seckillvoucher:{seckill:3}:12", StockShards.buyerKey(12L, 3));
+        assertEquals("stream.orders:{seckill:3}", StockShards.streamKey(3));
+    }
+}
@@ -0,0 +1,64 @@
+package com.hmdp.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * 单元测试 过期时间的去重、批量刷新以及跳过逻辑
+ */
+public class TtlRefresherTest {
+
+    private TtlRefresher refresher;
+    private StringRedisTemplate redisTemplate;
+
+    @Before
+    public void setUp() {
+        redisTemplate = mock(StringRedisTemplate.class);
+        refresher = new TtlRefresher();
+        ReflectionTestUtils.setField(refresher, "redisTemplate", redisTemplate);
+        ReflectionTestUtils.setField(refresher, "skipRatio", 0.8);
+        ReflectionTestUtils.setField(refresher, "batchSize", 2);
+        ReflectionTestUtils.setField(refresher, "trackedKeys", 100);
+        // 不启动定时任务 手动调用flush
+        ReflectionTestUtils.setField(refresher, "enabled", false);
+        ReflectionTestUtils.invokeMethod(refresher, "init");
+        ReflectionTestUtils.setField(refresher, "enabled", true);
+    }
+
+    @Test
+    public void testDeduplicateAndBatch() {
+        for (int i = 0; i < 100; i++) {
+            refresher.touch("cache:shop:1", 30, TimeUnit.MINUTES);
+            refresher.touch("cache:shop:2", 30, TimeUnit.MINUTES);
+            refresher.touch("cache:shop:3", 30, TimeUnit.MINUTES);
+        }
+        ReflectionTestUtils.invokeMethod(refresher, "flush");
+        // 3个key 每个pipeline最多2个命令
+        verify(redisTemplate, times(2)).executePipelined(any(RedisCallback.class));
+        assertEquals(Long.valueOf(3), refresher.stats().get("flushed"));
+        assertEquals(Long.valueOf(0), refresher.stats().get("pending"));
+    }
+
+    @Test
+    public void testSkipRecentlyRefreshed() {
+        refresher.touch("login:token:abc", 30, TimeUnit.MINUTES);
+        ReflectionTestUtils.invokeMethod(refresher, "flush");
+        // 刚刷新过 剩余的过期时间还大于80%
+        refresher.touch("login:token:abc", 30, TimeUnit.MINUTES);
+        assertEquals(Long.valueOf(1), refresher.stats().get("skipped"));
+        assertEquals(Long.valueOf(0), refresher.stats().get("pending"));
+        // ttl很短的key 已经超过20%的ttl 需要刷新
+        refresher.touch("cache:shop:1", 1, TimeUnit.MILLISECONDS);
+        refresher.touch("cache:shop:1", 1, TimeUnit.MILLISECONDS);
+        assertEquals(Long.valueOf(1), refresher.stats().get("pending"));
+    }
+}